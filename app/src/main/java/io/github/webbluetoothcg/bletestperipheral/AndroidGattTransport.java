@@ -0,0 +1,420 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.Context;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattDescriptor;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
+import io.github.webbluetoothcg.bletestperipheral.core.GattStatus;
+import io.github.webbluetoothcg.bletestperipheral.core.GattTransport;
+
+/**
+ * {@link GattTransport} on top of the Android Bluetooth stack: a {@link BluetoothGattServer}
+ * and a {@link BluetoothLeAdvertiser}.
+ *
+ * Every {@link GattService} added is mirrored by a {@link BluetoothGattService}; the callbacks
+ * translate the Android attributes and devices back to the model ones. Android attributes don't
+ * override equals(), so the attribute maps are keyed by identity; devices are keyed by address,
+ * which is what {@link BluetoothDevice#equals} compares, and forgotten once they disconnect.
+ */
+public class AndroidGattTransport implements GattTransport {
+
+  private static final String TAG = AndroidGattTransport.class.getCanonicalName();
+
+  // Advertising and scan response PDUs carry at most 31 bytes: 3 for the flags and 3 for the TX
+  // power level in the advertisement, and two for the header of each list of service UUIDs and
+  // of the device name.
+  private static final int MAX_ADVERTISE_DATA_LENGTH = 31;
+  private static final int ADVERTISE_FLAGS_LENGTH = 3;
+  private static final int ADVERTISE_TX_POWER_LENGTH = 3;
+  private static final int ADVERTISE_FIELD_HEADER_LENGTH = 2;
+  private static final long BLUETOOTH_BASE_UUID_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+  private static final long BLUETOOTH_BASE_UUID_MSB = 0x0000000000001000L;
+  private static final long BLUETOOTH_BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+  private final Context mContext;
+  private final BluetoothManager mBluetoothManager;
+  private final BluetoothAdapter mBluetoothAdapter;
+  private final AdvertiseSettings mAdvSettings;
+  private final ConcurrentHashMap<BluetoothGattService, GattService> mServices =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<BluetoothGattCharacteristic, GattCharacteristic>
+      mCharacteristics = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<GattCharacteristic, BluetoothGattCharacteristic>
+      mBluetoothCharacteristics = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<BluetoothGattDescriptor, GattDescriptor> mDescriptors =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, BluetoothDevice> mDevices = new ConcurrentHashMap<>();
+  private volatile BluetoothGattServer mGattServer;
+  private volatile Callback mCallback;
+  private BluetoothLeAdvertiser mAdvertiser;
+  private volatile AdvertiseCallback mAdvertiseCallback;
+
+  public AndroidGattTransport(Context context) {
+    mContext = context;
+    mBluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+    mBluetoothAdapter = mBluetoothManager.getAdapter();
+    mAdvSettings = new AdvertiseSettings.Builder()
+        .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
+        .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
+        .setConnectable(true)
+        .build();
+  }
+
+  @Override
+  public boolean open(Callback callback) {
+    mCallback = callback;
+    // If the user disabled Bluetooth when the app was in the background,
+    // openGattServer() will return null.
+    mGattServer = mBluetoothManager.openGattServer(mContext, mGattServerCallback);
+    return mGattServer != null;
+  }
+
+  @Override
+  public void close() {
+    BluetoothGattServer gattServer = mGattServer;
+    mGattServer = null;
+    if (gattServer != null) {
+      gattServer.close();
+    }
+    mServices.clear();
+    mCharacteristics.clear();
+    mBluetoothCharacteristics.clear();
+    mDescriptors.clear();
+    mDevices.clear();
+  }
+
+  @Override
+  public boolean addService(GattService service) {
+    BluetoothGattServer gattServer = mGattServer;
+    if (gattServer == null) {
+      return false;
+    }
+    BluetoothGattService bluetoothService = new BluetoothGattService(service.getUuid(),
+        service.getType());
+    for (GattCharacteristic characteristic : service.getCharacteristics()) {
+      BluetoothGattCharacteristic bluetoothCharacteristic = new BluetoothGattCharacteristic(
+          characteristic.getUuid(), characteristic.getProperties(),
+          characteristic.getPermissions());
+      for (GattDescriptor descriptor : characteristic.getDescriptors()) {
+        BluetoothGattDescriptor bluetoothDescriptor = new BluetoothGattDescriptor(
+            descriptor.getUuid(), descriptor.getPermissions());
+        bluetoothCharacteristic.addDescriptor(bluetoothDescriptor);
+        mDescriptors.put(bluetoothDescriptor, descriptor);
+      }
+      bluetoothService.addCharacteristic(bluetoothCharacteristic);
+      mCharacteristics.put(bluetoothCharacteristic, characteristic);
+      mBluetoothCharacteristics.put(characteristic, bluetoothCharacteristic);
+    }
+    mServices.put(bluetoothService, service);
+    return gattServer.addService(bluetoothService);
+  }
+
+  @Override
+  public boolean sendResponse(String device, int requestId, int status, int offset,
+      byte[] value) {
+    BluetoothGattServer gattServer = mGattServer;
+    BluetoothDevice bluetoothDevice = mDevices.get(device);
+    if (gattServer == null || bluetoothDevice == null) {
+      return false;
+    }
+    return gattServer.sendResponse(bluetoothDevice, requestId, status, offset, value);
+  }
+
+  @Override
+  public boolean notifyCharacteristicChanged(String device, GattCharacteristic characteristic,
+      byte[] value, boolean confirm) {
+    BluetoothGattServer gattServer = mGattServer;
+    BluetoothDevice bluetoothDevice = mDevices.get(device);
+    BluetoothGattCharacteristic bluetoothCharacteristic =
+        mBluetoothCharacteristics.get(characteristic);
+    if (gattServer == null || bluetoothDevice == null || bluetoothCharacteristic == null) {
+      return false;
+    }
+    // notifyCharacteristicChanged() sends the current value of the characteristic. Reads are
+    // answered from the model, which is never touched here, so the Android copy only ever holds
+    // the value being sent: setting it and sending it must not interleave with another send.
+    synchronized (bluetoothCharacteristic) {
+      bluetoothCharacteristic.setValue(value);
+      return gattServer.notifyCharacteristicChanged(bluetoothDevice, bluetoothCharacteristic,
+          confirm);
+    }
+  }
+
+  @Override
+  public void cancelConnection(String device) {
+    BluetoothGattServer gattServer = mGattServer;
+    BluetoothDevice bluetoothDevice = mDevices.get(device);
+    if (gattServer != null && bluetoothDevice != null) {
+      Log.d(TAG, "Devices: " + bluetoothDevice.getAddress() + " " + bluetoothDevice.getName());
+      gattServer.cancelConnection(bluetoothDevice);
+    }
+  }
+
+  @Override
+  public boolean isAdvertisingSupported() {
+    return mBluetoothAdapter.isMultipleAdvertisementSupported();
+  }
+
+  /*
+   * Advertises the given UUIDs. UUIDs are put in the advertisement as long as it fits in a
+   * single PDU and the remaining ones in the scan response. The device name goes in the scan
+   * response only if there is room left for it, and UUIDs that fit in neither are left out:
+   * the stack refuses the whole advertisement if either PDU is too large.
+   */
+  @Override
+  public void startAdvertising(List<UUID> serviceUuids, AdvertiseCallback callback) {
+    AdvertisePdu advData = new AdvertisePdu(ADVERTISE_FLAGS_LENGTH + ADVERTISE_TX_POWER_LENGTH);
+    advData.builder.setIncludeTxPowerLevel(true);
+    AdvertisePdu advScanResponse = new AdvertisePdu(/* length */ 0);
+    for (UUID uuid : serviceUuids) {
+      if (!advData.addServiceUuid(uuid) && !advScanResponse.addServiceUuid(uuid)) {
+        Log.w(TAG, "No room to advertise service: " + uuid);
+      }
+    }
+    String name = mBluetoothAdapter.getName();
+    int nameLength = ADVERTISE_FIELD_HEADER_LENGTH
+        + (name == null ? 0 : name.getBytes(StandardCharsets.UTF_8).length);
+    if (advScanResponse.length + nameLength <= MAX_ADVERTISE_DATA_LENGTH) {
+      advScanResponse.builder.setIncludeDeviceName(true);
+    } else {
+      Log.w(TAG, "No room to advertise the device name: " + name);
+    }
+    mAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+    if (mAdvertiser == null) {
+      // Bluetooth was turned off in the meantime.
+      callback.onStartFailure(ADVERTISE_FAILED_INTERNAL_ERROR);
+      return;
+    }
+    mAdvertiseCallback = callback;
+    mAdvertiser.startAdvertising(mAdvSettings, advData.builder.build(),
+        advScanResponse.builder.build(), mAdvCallback);
+  }
+
+  @Override
+  public void stopAdvertising() {
+    if (mBluetoothAdapter.isEnabled() && mAdvertiser != null) {
+      mAdvertiser.stopAdvertising(mAdvCallback);
+    }
+  }
+
+  /*
+   * Advertising data of one PDU along with its length in bytes.
+   */
+  private static class AdvertisePdu {
+    final AdvertiseData.Builder builder = new AdvertiseData.Builder();
+    int length;
+    boolean has16BitUuids;
+    boolean has128BitUuids;
+
+    AdvertisePdu(int length) {
+      this.length = length;
+    }
+
+    /*
+     * @return false if the UUID doesn't fit in the PDU.
+     */
+    boolean addServiceUuid(UUID uuid) {
+      boolean is16Bit = is16BitUuid(uuid);
+      int uuidLength = is16Bit ? 2 : 16;
+      if (is16Bit ? !has16BitUuids : !has128BitUuids) {
+        uuidLength += ADVERTISE_FIELD_HEADER_LENGTH;
+      }
+      if (length + uuidLength > MAX_ADVERTISE_DATA_LENGTH) {
+        return false;
+      }
+      builder.addServiceUuid(new ParcelUuid(uuid));
+      length += uuidLength;
+      has16BitUuids |= is16Bit;
+      has128BitUuids |= !is16Bit;
+      return true;
+    }
+  }
+
+  private static boolean is16BitUuid(UUID uuid) {
+    return (uuid.getMostSignificantBits() & BLUETOOTH_BASE_UUID_MSB_MASK) == BLUETOOTH_BASE_UUID_MSB
+        && uuid.getLeastSignificantBits() == BLUETOOTH_BASE_UUID_LSB;
+  }
+
+  // The ADVERTISE_FAILED_* codes of GattTransport are the ones of the Android advertiser.
+  private final android.bluetooth.le.AdvertiseCallback mAdvCallback =
+      new android.bluetooth.le.AdvertiseCallback() {
+    @Override
+    public void onStartFailure(int errorCode) {
+      super.onStartFailure(errorCode);
+      AdvertiseCallback callback = mAdvertiseCallback;
+      if (callback != null) {
+        callback.onStartFailure(errorCode);
+      }
+    }
+
+    @Override
+    public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+      super.onStartSuccess(settingsInEffect);
+      AdvertiseCallback callback = mAdvertiseCallback;
+      if (callback != null) {
+        callback.onStartSuccess();
+      }
+    }
+  };
+
+  /*
+   * Runs on the Bluetooth binder thread and translates every event to the model attributes.
+   * Attributes the server doesn't know about, such as the ones of the default Generic Access
+   * and Generic Attribute services, are answered with an "Attribute Not Found" error.
+   */
+  private final BluetoothGattServerCallback mGattServerCallback =
+      new BluetoothGattServerCallback() {
+    @Override
+    public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+      String address;
+      if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+        // Requests to a device that is gone fail like those to an unknown one.
+        address = device.getAddress();
+        mDevices.remove(address);
+      } else {
+        address = addDevice(device);
+      }
+      Callback callback = mCallback;
+      if (callback != null) {
+        callback.onConnectionStateChange(address, status, newState);
+      }
+    }
+
+    @Override
+    public void onServiceAdded(int status, BluetoothGattService service) {
+      Callback callback = mCallback;
+      GattService gattService = mServices.get(service);
+      if (callback != null && gattService != null) {
+        callback.onServiceAdded(status, gattService);
+      }
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+        BluetoothGattCharacteristic characteristic) {
+      Callback callback = mCallback;
+      GattCharacteristic gattCharacteristic = mCharacteristics.get(characteristic);
+      if (callback == null || gattCharacteristic == null) {
+        rejectRequest(device, requestId, /* responseNeeded */ true);
+        return;
+      }
+      callback.onCharacteristicReadRequest(addDevice(device), requestId, offset,
+          gattCharacteristic);
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
+        BluetoothGattCharacteristic characteristic, boolean preparedWrite,
+        boolean responseNeeded, int offset, byte[] value) {
+      Callback callback = mCallback;
+      GattCharacteristic gattCharacteristic = mCharacteristics.get(characteristic);
+      if (callback == null || gattCharacteristic == null) {
+        rejectRequest(device, requestId, responseNeeded);
+        return;
+      }
+      callback.onCharacteristicWriteRequest(addDevice(device), requestId, gattCharacteristic,
+          preparedWrite, responseNeeded, offset, value);
+    }
+
+    @Override
+    public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset,
+        BluetoothGattDescriptor descriptor) {
+      Callback callback = mCallback;
+      GattDescriptor gattDescriptor = mDescriptors.get(descriptor);
+      if (callback == null || gattDescriptor == null) {
+        rejectRequest(device, requestId, /* responseNeeded */ true);
+        return;
+      }
+      callback.onDescriptorReadRequest(addDevice(device), requestId, offset, gattDescriptor);
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+        BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
+        int offset, byte[] value) {
+      Callback callback = mCallback;
+      GattDescriptor gattDescriptor = mDescriptors.get(descriptor);
+      if (callback == null || gattDescriptor == null) {
+        rejectRequest(device, requestId, responseNeeded);
+        return;
+      }
+      callback.onDescriptorWriteRequest(addDevice(device), requestId, gattDescriptor,
+          preparedWrite, responseNeeded, offset, value);
+    }
+
+    @Override
+    public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+      Callback callback = mCallback;
+      if (callback != null) {
+        callback.onExecuteWrite(addDevice(device), requestId, execute);
+      }
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+      Callback callback = mCallback;
+      if (callback != null) {
+        callback.onNotificationSent(addDevice(device), status);
+      }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+      Callback callback = mCallback;
+      if (callback != null) {
+        callback.onMtuChanged(addDevice(device), mtu);
+      }
+    }
+
+    private void rejectRequest(BluetoothDevice device, int requestId, boolean responseNeeded) {
+      BluetoothGattServer gattServer = mGattServer;
+      if (responseNeeded && gattServer != null) {
+        gattServer.sendResponse(device, requestId, GattStatus.ATTRIBUTE_NOT_FOUND,
+            /* No need to respond with an offset */ 0,
+            /* No need to respond with a value */ null);
+      }
+    }
+  };
+
+  private String addDevice(BluetoothDevice device) {
+    String address = device.getAddress();
+    mDevices.put(address, device);
+    return address;
+  }
+}
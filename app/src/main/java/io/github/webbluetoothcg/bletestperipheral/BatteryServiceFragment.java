@@ -17,11 +17,7 @@
 package io.github.webbluetoothcg.bletestperipheral;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.os.Bundle;
-import android.os.ParcelUuid;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -38,6 +34,8 @@ import android.widget.Toast;
 
 import java.util.UUID;
 
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
 
 public class BatteryServiceFragment extends ServiceFragment {
 
@@ -106,14 +104,14 @@ public class BatteryServiceFragment extends ServiceFragment {
   };
 
   // GATT
-  private BluetoothGattService mBatteryService;
-  private BluetoothGattCharacteristic mBatteryLevelCharacteristic;
+  private GattService mBatteryService;
+  private GattCharacteristic mBatteryLevelCharacteristic;
 
   public BatteryServiceFragment() {
     mBatteryLevelCharacteristic =
-        new BluetoothGattCharacteristic(BATTERY_LEVEL_UUID,
-            BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-            BluetoothGattCharacteristic.PERMISSION_READ);
+        new GattCharacteristic(BATTERY_LEVEL_UUID,
+            GattCharacteristic.PROPERTY_READ | GattCharacteristic.PROPERTY_NOTIFY,
+            GattCharacteristic.PERMISSION_READ);
 
     mBatteryLevelCharacteristic.addDescriptor(
         Peripheral.getClientCharacteristicConfigurationDescriptor());
@@ -121,8 +119,8 @@ public class BatteryServiceFragment extends ServiceFragment {
     mBatteryLevelCharacteristic.addDescriptor(
         Peripheral.getCharacteristicUserDescriptionDescriptor(BATTERY_LEVEL_DESCRIPTION));
 
-    mBatteryService = new BluetoothGattService(BATTERY_SERVICE_UUID,
-        BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    mBatteryService = new GattService(BATTERY_SERVICE_UUID,
+        GattService.SERVICE_TYPE_PRIMARY);
     mBatteryService.addCharacteristic(mBatteryLevelCharacteristic);
   }
 
@@ -161,18 +159,13 @@ public class BatteryServiceFragment extends ServiceFragment {
     mDelegate = null;
   }
 
-  public BluetoothGattService getBluetoothGattService() {
+  public GattService getGattService() {
     return mBatteryService;
   }
 
-  @Override
-  public ParcelUuid getServiceUUID() {
-    return new ParcelUuid(BATTERY_SERVICE_UUID);
-  }
-
   private void setBatteryLevel(int newBatteryLevel, View source) {
     mBatteryLevelCharacteristic.setValue(newBatteryLevel,
-        BluetoothGattCharacteristic.FORMAT_UINT8, /* offset */ 0);
+        GattCharacteristic.FORMAT_UINT8, /* offset */ 0);
     if (source != mBatteryLevelSeekBar) {
       mBatteryLevelSeekBar.setProgress(newBatteryLevel);
     }
@@ -182,14 +175,14 @@ public class BatteryServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public void notificationsEnabled(BluetoothGattCharacteristic characteristic, boolean indicate) {
-    if (characteristic.getUuid() != BATTERY_LEVEL_UUID) {
+  public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
+    if (characteristic != mBatteryLevelCharacteristic) {
       return;
     }
     if (indicate) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsEnabled, Toast.LENGTH_SHORT)
@@ -199,11 +192,11 @@ public class BatteryServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public void notificationsDisabled(BluetoothGattCharacteristic characteristic) {
-    if (characteristic.getUuid() != BATTERY_LEVEL_UUID) {
+  public void notificationsDisabled(GattCharacteristic characteristic) {
+    if (characteristic != mBatteryLevelCharacteristic) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsNotEnabled, Toast.LENGTH_SHORT)
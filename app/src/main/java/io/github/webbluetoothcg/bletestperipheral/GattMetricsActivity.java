@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Shows the counters and latency percentiles of every GATT callback, per device and per
+ * attribute, and the round trips of the indication confirmations, refreshed every second while
+ * the screen is visible.
+ *
+ * It only binds to a GattServerService that is already running; it never starts one.
+ */
+public class GattMetricsActivity extends Activity {
+
+  private static final String TAG = GattMetricsActivity.class.getCanonicalName();
+  private static final long REFRESH_INTERVAL_MS = 1000;
+
+  private TextView mTextViewMetrics;
+  private GattServerService mGattServerService;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+  private final Runnable mRefresh = new Runnable() {
+    @Override
+    public void run() {
+      showMetrics();
+      mMainHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+    }
+  };
+
+  private final ServiceConnection mServiceConnection = new ServiceConnection() {
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+      mGattServerService = ((GattServerService.LocalBinder) service).getService();
+      showMetrics();
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+      mGattServerService = null;
+    }
+  };
+
+  @Override
+  protected void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    setContentView(R.layout.activity_gatt_metrics);
+    mTextViewMetrics = (TextView) findViewById(R.id.textView_metrics);
+    mTextViewMetrics.setText(R.string.metricsNotAvailable);
+    // No BIND_AUTO_CREATE: the metrics belong to the service the Peripheral activity runs.
+    bindService(new Intent(this, GattServerService.class), mServiceConnection, /* flags */ 0);
+  }
+
+  @Override
+  protected void onResume() {
+    super.onResume();
+    mMainHandler.post(mRefresh);
+  }
+
+  @Override
+  protected void onPause() {
+    super.onPause();
+    mMainHandler.removeCallbacks(mRefresh);
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    mGattServerService = null;
+    unbindService(mServiceConnection);
+  }
+
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    getMenuInflater().inflate(R.menu.menu_gatt_metrics, menu);
+    return true /* show menu */;
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    if (item.getItemId() == R.id.action_reset_metrics && mGattServerService != null) {
+      mGattServerService.getMetrics().reset();
+      mGattServerService.getIndicationTracker().reset();
+      showMetrics();
+      return true /* event_consumed */;
+    }
+    return super.onOptionsItemSelected(item);
+  }
+
+  private void showMetrics() {
+    if (mGattServerService == null) {
+      return;
+    }
+    StringWriter text = new StringWriter();
+    try {
+      mGattServerService.getMetrics().dump(text);
+      text.append('\n');
+      mGattServerService.getIndicationTracker().dump(text);
+    } catch (IOException e) {
+      // A StringWriter doesn't throw.
+      Log.wtf(TAG, e);
+    }
+    mTextViewMetrics.setText(text.toString());
+  }
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.ServiceFragment.ServiceFragmentDelegate;
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattMetrics;
+import io.github.webbluetoothcg.bletestperipheral.core.GattPeripheral;
+import io.github.webbluetoothcg.bletestperipheral.core.GattTransport;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateStream;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateWaveform;
+import io.github.webbluetoothcg.bletestperipheral.core.IndicationTracker;
+import io.github.webbluetoothcg.bletestperipheral.core.MeasurementStore;
+import io.github.webbluetoothcg.bletestperipheral.core.LoopbackGattTransport;
+import io.github.webbluetoothcg.bletestperipheral.core.NotificationQueue;
+import io.github.webbluetoothcg.bletestperipheral.core.NotificationStream;
+import io.github.webbluetoothcg.bletestperipheral.core.SessionReader;
+import io.github.webbluetoothcg.bletestperipheral.core.SessionRecorder;
+import io.github.webbluetoothcg.bletestperipheral.core.SessionReplay;
+import io.github.webbluetoothcg.bletestperipheral.core.StreamSink;
+
+/**
+ * Foreground service that runs the {@link GattPeripheral} on the Android Bluetooth stack, through
+ * an {@link AndroidGattTransport}.
+ *
+ * The {@link Peripheral} activity only binds to it to display the status and to hand over the
+ * services to host, so connections survive rotations, app switches and the screen turning off.
+ * A partial wake lock keeps the CPU running while at least one device is connected. The service
+ * runs until the activity finishes.
+ */
+public class GattServerService extends Service implements ServiceFragmentDelegate {
+
+  private static final String TAG = GattServerService.class.getCanonicalName();
+  private static final String NOTIFICATION_CHANNEL_ID = "gatt_server";
+  private static final int NOTIFICATION_ID = 1;
+  private static final String TRACE_FILE_NAME = "gatt_trace.txt";
+  private static final String METRICS_FILE_NAME = "gatt_metrics.txt";
+  private static final String SESSIONS_DIRECTORY_NAME = "sessions";
+  private static final String REPLAY_FILE_NAME = "gatt_replay.txt";
+  // Interval between two metrics snapshots appended to METRICS_FILE_NAME while the GATT server
+  // runs.
+  private static final long METRICS_SNAPSHOT_INTERVAL_MS = 60 * 1000;
+
+  /**
+   * Receives status updates on the UI thread.
+   */
+  public interface Listener {
+    /**
+     * @param statusText String resource describing the advertising status.
+     */
+    void onAdvertisingStatusChanged(int statusText);
+
+    void onConnectedDevicesChanged(int connectedDevices);
+  }
+
+  public class LocalBinder extends Binder {
+    public GattServerService getService() {
+      return GattServerService.this;
+    }
+  }
+
+  /*
+  BluetoothGATT 서버를 연다고 함은 이렇게 외부 요청 같은 것들을 계속 Callback 받으면서 각각의 요청들에 대한
+  세세한 설정 들을 해놓는 것이다.
+  예를 들어서 Write요청을 받게 된다면 WriteCharacteristic 같은 펑션 콜을 한다든가 하는 것이
+  다 GattPeripheral에 구현이 되어있다.
+
+  다른 모든 fragment들에서 공통적으로 BLUETOOTHGATT 서버를 열어서 사용하기 때문에 fragment가 아닌
+  Activity보다 오래 살아있는 Service에 이걸 구현한 것. (화면이 꺼지거나 회전해도 연결이 유지됨)
+   */
+  private GattPeripheral mGattPeripheral;
+  private GattTransport mTransport;
+
+  private final IBinder mBinder = new LocalBinder();
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  // Writes the metrics snapshots and starts and stops the session recorder, away from the UI
+  // thread.
+  private HandlerThread mIoThread;
+  private Handler mIoHandler;
+  private SessionRecorder mSessionRecorder;
+  // The fragments last hosted, which a replay runs against. Only accessed on the UI thread.
+  private final ArrayList<ServiceFragment> mServiceFragments = new ArrayList<>();
+  private final Runnable mPeriodicMetricsSnapshot = new Runnable() {
+    @Override
+    public void run() {
+      writeMetricsSnapshot();
+      mIoHandler.postDelayed(this, METRICS_SNAPSHOT_INTERVAL_MS);
+    }
+  };
+  private PowerManager.WakeLock mWakeLock;
+  // Only accessed on the UI thread.
+  private Listener mListener;
+  private int mAdvertisingStatus = R.string.status_notAdvertising;
+  private int mConnectedDevices;
+
+  /*
+   * Runs on the Bluetooth and GATT event loop threads; everything is handed over to the UI
+   * thread.
+   */
+  private final GattPeripheral.Listener mPeripheralListener = new GattPeripheral.Listener() {
+    @Override
+    public void onAdvertisingStarted() {
+      Log.v(TAG, "Broadcasting");
+      setAdvertisingStatus(R.string.status_advertising);
+    }
+
+    @Override
+    public void onAdvertisingFailed(int errorCode) {
+      Log.e(TAG, "Not broadcasting: " + errorCode);
+      int statusText;
+      switch (errorCode) {
+        case GattTransport.ADVERTISE_FAILED_ALREADY_STARTED:
+          statusText = R.string.status_advertising;
+          Log.w(TAG, "App was already advertising");
+          break;
+        case GattTransport.ADVERTISE_FAILED_DATA_TOO_LARGE:
+          statusText = R.string.status_advDataTooLarge;
+          break;
+        case GattTransport.ADVERTISE_FAILED_FEATURE_UNSUPPORTED:
+          statusText = R.string.status_advFeatureUnsupported;
+          break;
+        case GattTransport.ADVERTISE_FAILED_INTERNAL_ERROR:
+          statusText = R.string.status_advInternalError;
+          break;
+        case GattTransport.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
+          statusText = R.string.status_advTooManyAdvertisers;
+          break;
+        default:
+          statusText = R.string.status_notAdvertising;
+          Log.wtf(TAG, "Unhandled error: " + errorCode);
+      }
+      setAdvertisingStatus(statusText);
+    }
+
+    @Override
+    public void onAdvertisingStopped() {
+      setAdvertisingStatus(R.string.status_notAdvertising);
+    }
+
+    @Override
+    public void onConnectedDevicesChanged(final int connectedDevices) {
+      mMainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          mConnectedDevices = connectedDevices;
+          updateWakeLock();
+          if (mListener != null) {
+            mListener.onConnectedDevicesChanged(connectedDevices);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void onConnectionError(String device, int status) {
+      showToast(getString(R.string.status_errorWhenConnecting) + ": " + status);
+    }
+  };
+
+  @Override
+  public void sendNotificationToDevices(GattCharacteristic characteristic) {
+    mGattPeripheral.sendNotificationToDevices(characteristic);
+  }
+
+  @Override
+  public void sendNotificationToDevices(GattCharacteristic characteristic,
+      NotificationQueue.DeliveryListener listener) {
+    mGattPeripheral.sendNotificationToDevices(characteristic, listener);
+  }
+
+  @Override
+  public void sendDataToDevices(GattCharacteristic characteristic, byte[] data) {
+    mGattPeripheral.sendDataToDevices(characteristic, data);
+  }
+
+  @Override
+  public NotificationStream startNotificationStream(GattCharacteristic characteristic) {
+    return mGattPeripheral.startStream(characteristic);
+  }
+
+  @Override
+  public StreamSink startStreamSink(GattCharacteristic characteristic) {
+    return mGattPeripheral.startSink(characteristic);
+  }
+
+  @Override
+  public HeartRateStream startHeartRateStream(GattCharacteristic characteristic,
+      HeartRateWaveform waveform) {
+    return mGattPeripheral.startHeartRateStream(characteristic, waveform);
+  }
+
+  @Override
+  public MeasurementStore startMeasurementStore(GattCharacteristic characteristic,
+      int capacity) {
+    return mGattPeripheral.startMeasurementStore(characteristic, capacity);
+  }
+
+  /**
+   * @return ATT_MTU negotiated with the device, or the default of 23 if it never sent an
+   * Exchange MTU Request.
+   */
+  public int getMtu(String device) {
+    return mGattPeripheral.getMtu(device);
+  }
+
+  public void disconnectFromDevices() {
+    Log.d(TAG, "Disconnecting devices...");
+    mGattPeripheral.disconnectDevices();
+  }
+
+  /**
+   * Writes the GATT trace to the app's external files directory.
+   */
+  public void exportTrace() {
+    final File file = new File(getExternalFilesDir(/* type */ null), TRACE_FILE_NAME);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+          mGattPeripheral.getTrace().dump(writer);
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to export trace", e);
+          return;
+        }
+        showToast(getString(R.string.traceExported) + " " + file.getAbsolutePath());
+      }
+    }, "TraceExport").start();
+  }
+
+  public GattMetrics getMetrics() {
+    return mGattPeripheral.getMetrics();
+  }
+
+  public IndicationTracker getIndicationTracker() {
+    return mGattPeripheral.getIndicationTracker();
+  }
+
+  /**
+   * Appends a snapshot of the GATT metrics to the file in the app's external files directory that
+   * also receives the periodic snapshots.
+   */
+  public void exportMetrics() {
+    mIoHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        File file = writeMetricsSnapshot();
+        if (file != null) {
+          showToast(getString(R.string.metricsExported) + " " + file.getAbsolutePath());
+        }
+      }
+    });
+  }
+
+  /*
+   * Runs on mIoThread.
+   *
+   * @return The file written, or null if it couldn't be.
+   */
+  private File writeMetricsSnapshot() {
+    File file = new File(getExternalFilesDir(/* type */ null), METRICS_FILE_NAME);
+    try (Writer writer = new BufferedWriter(new FileWriter(file, /* append */ true))) {
+      mGattPeripheral.getMetrics().dump(writer);
+      mGattPeripheral.getIndicationTracker().dump(writer);
+      writer.append('\n');
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to export metrics", e);
+      return null;
+    }
+    return file;
+  }
+
+  /**
+   * Starts recording every GATT event to the sessions directory of the app's external files
+   * directory, replacing the previous recording, or stops recording.
+   */
+  public void setRecordingSession(final boolean record) {
+    mIoHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!record) {
+          mSessionRecorder.stop();
+          showToast(getString(R.string.sessionRecorded) + " "
+              + mSessionRecorder.getDirectory().getAbsolutePath());
+          return;
+        }
+        try {
+          mSessionRecorder.start();
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to start recording", e);
+          showToast(getString(R.string.sessionRecordingFailed));
+        }
+      }
+    });
+  }
+
+  public boolean isRecordingSession() {
+    return mSessionRecorder.isRecording();
+  }
+
+  /**
+   * Replays the recorded session on a loopback peripheral, against stand-ins for its services
+   * built from the recording, and writes how the responses and latencies compare with the
+   * recording to the app's external files directory. Neither the real centrals nor the hosted
+   * services see the replay. Must be called on the UI thread.
+   *
+   * @param originalTiming true to keep the recorded timing, false to replay as fast as possible.
+   */
+  public void replaySession(final boolean originalTiming) {
+    mIoHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (mSessionRecorder.isRecording()) {
+          showToast(getString(R.string.replayWhileRecording));
+          return;
+        }
+        File file = new File(getExternalFilesDir(/* type */ null), REPLAY_FILE_NAME);
+        try {
+          SessionReplay.Report report = replaySessionOnLoopback(originalTiming);
+          try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+            report.dump(writer);
+          }
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to replay the session", e);
+          showToast(getString(R.string.replayFailed));
+          return;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        showToast(getString(R.string.sessionReplayed) + " " + file.getAbsolutePath());
+      }
+    });
+  }
+
+  /*
+   * Runs on mIoThread. The hosted services keep serving the real centrals on the GATT event
+   * loop, so the replay must not call into them.
+   */
+  private SessionReplay.Report replaySessionOnLoopback(boolean originalTiming)
+      throws IOException, InterruptedException {
+    List<SessionReplay.Request> requests = SessionReplay.load(
+        new SessionReader(mSessionRecorder.getDirectory()));
+    LoopbackGattTransport transport = new LoopbackGattTransport();
+    final CountDownLatch advertising = new CountDownLatch(1);
+    GattPeripheral peripheral = new GattPeripheral(transport, new GattPeripheral.Listener() {
+      @Override
+      public void onAdvertisingStarted() {
+        advertising.countDown();
+      }
+
+      @Override
+      public void onAdvertisingFailed(int errorCode) {
+      }
+
+      @Override
+      public void onAdvertisingStopped() {
+      }
+
+      @Override
+      public void onConnectedDevicesChanged(int connectedDevices) {
+      }
+
+      @Override
+      public void onConnectionError(String device, int status) {
+      }
+    });
+    try {
+      peripheral.start(SessionReplay.createStubServices(requests));
+      if (!advertising.await(5, TimeUnit.SECONDS)) {
+        throw new IOException("Loopback peripheral didn't start");
+      }
+      return new SessionReplay(transport).replay(requests, originalTiming);
+    } finally {
+      peripheral.quit();
+      transport.quit();
+    }
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    mTransport = new AndroidGattTransport(this);
+    mGattPeripheral = new GattPeripheral(mTransport, mPeripheralListener);
+    PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+    mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+    mWakeLock.setReferenceCounted(false);
+    mIoThread = new HandlerThread("GattServerIo");
+    mIoThread.start();
+    mIoHandler = new Handler(mIoThread.getLooper());
+    // Segments are mapped and flushed on the I/O thread, off the GATT event loop.
+    mSessionRecorder = new SessionRecorder(
+        new File(getExternalFilesDir(/* type */ null), SESSIONS_DIRECTORY_NAME),
+        new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            mIoHandler.post(task);
+          }
+        });
+    mGattPeripheral.setSessionRecorder(mSessionRecorder);
+    // Every run of the service starts a new series of snapshots.
+    mIoHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        new File(getExternalFilesDir(/* type */ null), METRICS_FILE_NAME).delete();
+      }
+    });
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    // The hosted services live in the activity's fragments; there is nothing to restart with.
+    return START_NOT_STICKY;
+  }
+
+  @Override
+  public IBinder onBind(Intent intent) {
+    return mBinder;
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    stopGattServer();
+    mGattPeripheral.quit();
+    mIoHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mSessionRecorder.stop();
+      }
+    });
+    mIoThread.quitSafely();
+    if (mWakeLock.isHeld()) {
+      mWakeLock.release();
+    }
+  }
+
+  /**
+   * Sets the listener notified of status changes and immediately reports the current status.
+   * Must be called on the UI thread.
+   */
+  public void setListener(Listener listener) {
+    mListener = listener;
+    if (listener != null) {
+      listener.onAdvertisingStatusChanged(mAdvertisingStatus);
+      listener.onConnectedDevicesChanged(mConnectedDevices);
+    }
+  }
+
+  /**
+   * Opens the GATT server, adds the services of the fragments and starts advertising, unless
+   * the same services are already hosted. Must be called on the UI thread.
+   *
+   * @return false if the GATT server couldn't be opened, e.g. because Bluetooth is disabled.
+   */
+  public boolean start(List<ServiceFragment> serviceFragments) {
+    boolean wasStarted = mGattPeripheral.isStarted();
+    if (!mGattPeripheral.start(serviceFragments)) {
+      if (wasStarted) {
+        stopForeground(true /* removeNotification */);
+      }
+      return false;
+    }
+    mServiceFragments.clear();
+    mServiceFragments.addAll(serviceFragments);
+    startForeground(NOTIFICATION_ID, buildNotification());
+    mIoHandler.removeCallbacks(mPeriodicMetricsSnapshot);
+    mIoHandler.postDelayed(mPeriodicMetricsSnapshot, METRICS_SNAPSHOT_INTERVAL_MS);
+    if (!mTransport.isAdvertisingSupported()) {
+      setAdvertisingStatus(R.string.status_noLeAdv);
+    }
+    return true;
+  }
+
+  private void stopGattServer() {
+    if (!mGattPeripheral.isStarted()) {
+      return;
+    }
+    mGattPeripheral.stop();
+    mIoHandler.removeCallbacks(mPeriodicMetricsSnapshot);
+    // Keeps the counters of the run that just ended.
+    mIoHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        writeMetricsSnapshot();
+      }
+    });
+    stopForeground(true /* removeNotification */);
+    setAdvertisingStatus(R.string.status_notAdvertising);
+  }
+
+  private Notification buildNotification() {
+    // Brings the existing task, and with it the Peripheral activity, back to the front.
+    Intent launchIntent = getPackageManager().getLaunchIntentForPackage(getPackageName());
+    int pendingIntentFlags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+        ? PendingIntent.FLAG_IMMUTABLE : 0;
+    PendingIntent contentIntent = PendingIntent.getActivity(this, /* requestCode */ 0,
+        launchIntent, pendingIntentFlags);
+    Notification.Builder builder;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+          getString(R.string.notificationChannel_gattServer), NotificationManager.IMPORTANCE_LOW);
+      ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
+          .createNotificationChannel(channel);
+      builder = new Notification.Builder(this, NOTIFICATION_CHANNEL_ID);
+    } else {
+      builder = new Notification.Builder(this);
+    }
+    return builder
+        .setSmallIcon(R.mipmap.ic_launcher)
+        .setContentTitle(getString(R.string.app_name))
+        .setContentText(getString(R.string.notification_gattServerRunning))
+        .setContentIntent(contentIntent)
+        .setOngoing(true)
+        .build();
+  }
+
+  /*
+   * Holds the wake lock while at least one device is connected. Runs on the UI thread.
+   */
+  private void updateWakeLock() {
+    if (mConnectedDevices == 0) {
+      if (mWakeLock.isHeld()) {
+        mWakeLock.release();
+      }
+    } else if (!mWakeLock.isHeld()) {
+      mWakeLock.acquire();
+    }
+  }
+
+  private void setAdvertisingStatus(final int statusText) {
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mAdvertisingStatus = statusText;
+        if (mListener != null) {
+          mListener.onAdvertisingStatusChanged(statusText);
+        }
+      }
+    });
+  }
+
+  private void showToast(final String message) {
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        Toast.makeText(GattServerService.this, message, Toast.LENGTH_LONG).show();
+      }
+    });
+  }
+}
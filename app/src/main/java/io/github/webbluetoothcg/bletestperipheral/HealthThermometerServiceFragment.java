@@ -17,12 +17,7 @@
 package io.github.webbluetoothcg.bletestperipheral;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.os.Bundle;
-import android.os.ParcelUuid;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,10 +30,16 @@ import android.widget.Toast;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Calendar;
 import java.util.UUID;
 
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
+import io.github.webbluetoothcg.bletestperipheral.core.GattStatus;
+import io.github.webbluetoothcg.bletestperipheral.core.MeasurementStore;
+import io.github.webbluetoothcg.bletestperipheral.core.PeriodicScheduler;
+import io.github.webbluetoothcg.bletestperipheral.core.TemperatureMeasurement;
+
 public class HealthThermometerServiceFragment extends ServiceFragment {
   /**
    * See <a href="https://developer.bluetooth.org/gatt/services/Pages/ServiceViewer.aspx?u=org.bluetooth.service.health_thermometer.xml">
@@ -68,12 +69,7 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
    */
   private static final UUID TEMPERATURE_MEASUREMENT_UUID = UUID
           .fromString("00002A1C-0000-1000-8000-00805f9b34fb");
-  private static final int TEMPERATURE_MEASUREMENT_VALUE_FORMAT = BluetoothGattCharacteristic.FORMAT_FLOAT;
   private static final float INITIAL_TEMPERATURE_MEASUREMENT_VALUE = 37.0f;
-  private static final int EXPONENT_MASK = 0x7f800000;
-  private static final int EXPONENT_SHIFT = 23;
-  private static final int MANTISSA_MASK = 0x007fffff;
-  private static final int MANTISSA_SHIFT = 0;
   private static final String TEMPERATURE_MEASUREMENT_DESCRIPTION = "This characteristic is used " +
           "to send a temperature measurement.";
 
@@ -83,21 +79,35 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
    */
   private static final UUID MEASUREMENT_INTERVAL_UUID = UUID
           .fromString("00002A21-0000-1000-8000-00805f9b34fb");
-  private static final int MEASUREMENT_INTERVAL_FORMAT = BluetoothGattCharacteristic.FORMAT_UINT16;
+  private static final int MEASUREMENT_INTERVAL_FORMAT = GattCharacteristic.FORMAT_UINT16;
   private static final int INITIAL_MEASUREMENT_INTERVAL = 1;
   private static final int MIN_MEASUREMENT_INTERVAL = 1;
   private static final int MAX_MEASUREMENT_INTERVAL = (int) Math.pow(2, 16) - 1;
+  // Fractions of a second can only be set from the UI, for load tests: the Measurement Interval
+  // characteristic counts whole seconds and reports such intervals rounded up.
+  private static final float MIN_UI_MEASUREMENT_INTERVAL = 0.01f;
+  private static final long NANOS_PER_SECOND = 1000000000L;
   private static final String MEASUREMENT_INTERVAL_DESCRIPTION = "This characteristic is used " +
           "to enable and control the interval between consecutive temperature measurements.";
 
-  private BluetoothGattService mHealthThermometerService;
-  private BluetoothGattCharacteristic mTemperatureMeasurementCharacteristic;
-  private BluetoothGattCharacteristic mMeasurementIntervalCharacteristic;
-  private BluetoothGattDescriptor mMeasurementIntervalCCCDescriptor;
-
-  private ServiceFragmentDelegate mDelegate;
-
-  private Timer mTimer;
+  private GattService mHealthThermometerService;
+  private GattCharacteristic mTemperatureMeasurementCharacteristic;
+  private GattCharacteristic mMeasurementIntervalCharacteristic;
+
+  // Read by the scheduler thread.
+  private volatile ServiceFragmentDelegate mDelegate;
+
+  private PeriodicScheduler.Task mMeasurementTask;
+  // Keeps the measurements taken while no central is subscribed. Created by the scheduler
+  // thread once the GATT server is available; flushed from the GATT event loop.
+  private volatile MeasurementStore mMeasurementStore;
+  // Read by the scheduler thread.
+  private volatile float mTemperature;
+  // Only used by the scheduler thread.
+  private final Calendar mTimeStamp = Calendar.getInstance();
+  // Interval of the timer in seconds, which the UI may set to a fraction. Only used by the UI
+  // thread.
+  private float mMeasurementInterval;
 
   private EditText mEditTextTemperatureMeasurement;
   private final OnEditorActionListener mOnEditorActionListenerTemperatureMeasurement = new OnEditorActionListener() {
@@ -121,12 +131,9 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
     @Override
     public boolean onEditorAction(TextView textView, int actionId, KeyEvent event) {
       if (actionId == EditorInfo.IME_ACTION_DONE) {
-        int newMeasurementInterval = Integer.parseInt(textView.getText().toString());
-        if (isValidMeasurementIntervalValue(newMeasurementInterval)) {
-          mMeasurementIntervalCharacteristic.setValue(newMeasurementInterval,
-                  MEASUREMENT_INTERVAL_FORMAT,
-                  /* offset */ 0);
-          resetTimer(newMeasurementInterval);
+        float newMeasurementInterval = parseMeasurementInterval(textView.getText().toString());
+        if (newMeasurementInterval > 0) {
+          setMeasurementInterval(newMeasurementInterval);
         } else {
           Toast.makeText(getActivity(), R.string.measurementIntervalInvalid,
                   Toast.LENGTH_SHORT).show();
@@ -141,8 +148,8 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
 
   public HealthThermometerServiceFragment() {
     mTemperatureMeasurementCharacteristic =
-            new BluetoothGattCharacteristic(TEMPERATURE_MEASUREMENT_UUID,
-                    BluetoothGattCharacteristic.PROPERTY_INDICATE,
+            new GattCharacteristic(TEMPERATURE_MEASUREMENT_UUID,
+                    GattCharacteristic.PROPERTY_INDICATE,
                     /* No permissions */ 0);
 
     mTemperatureMeasurementCharacteristic.addDescriptor(
@@ -152,27 +159,37 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
             Peripheral.getCharacteristicUserDescriptionDescriptor(TEMPERATURE_MEASUREMENT_DESCRIPTION));
 
     mMeasurementIntervalCharacteristic =
-            new BluetoothGattCharacteristic(
+            new GattCharacteristic(
                     MEASUREMENT_INTERVAL_UUID,
-                    (BluetoothGattCharacteristic.PROPERTY_READ |
-                            BluetoothGattCharacteristic.PROPERTY_WRITE |
-                            BluetoothGattCharacteristic.PROPERTY_INDICATE),
-                    (BluetoothGattCharacteristic.PERMISSION_READ |
-                            BluetoothGattCharacteristic.PERMISSION_WRITE));
+                    (GattCharacteristic.PROPERTY_READ |
+                            GattCharacteristic.PROPERTY_WRITE |
+                            GattCharacteristic.PROPERTY_INDICATE),
+                    (GattCharacteristic.PERMISSION_READ |
+                            GattCharacteristic.PERMISSION_WRITE));
 
-    mMeasurementIntervalCCCDescriptor = Peripheral.getClientCharacteristicConfigurationDescriptor();
-    mMeasurementIntervalCharacteristic.addDescriptor(mMeasurementIntervalCCCDescriptor);
+    mMeasurementIntervalCharacteristic.addDescriptor(
+            Peripheral.getClientCharacteristicConfigurationDescriptor());
 
     mMeasurementIntervalCharacteristic.addDescriptor(
             Peripheral.getCharacteristicUserDescriptionDescriptor(MEASUREMENT_INTERVAL_DESCRIPTION));
 
-    mHealthThermometerService = new BluetoothGattService(HEALTH_THERMOMETER_SERVICE_UUID,
-            BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    mHealthThermometerService = new GattService(HEALTH_THERMOMETER_SERVICE_UUID,
+            GattService.SERVICE_TYPE_PRIMARY);
     mHealthThermometerService.addCharacteristic(mTemperatureMeasurementCharacteristic);
     mHealthThermometerService.addCharacteristic(mMeasurementIntervalCharacteristic);
   }
 
 
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    // Set once: the view is recreated whenever the fragment comes back from the back stack, but
+    // the values and the timer belong to the GATT server.
+    setTemperatureMeasurementValue(INITIAL_TEMPERATURE_MEASUREMENT_VALUE);
+    // Measurements are taken whether or not a central is subscribed; the store keeps them.
+    setMeasurementInterval(INITIAL_MEASUREMENT_INTERVAL);
+  }
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
                            Bundle savedInstanceState) {
@@ -187,13 +204,8 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
     mEditTextMeasurementInterval
             .setOnEditorActionListener(mOnEditorActionListenerMeasurementInterval);
 
-    mEditTextTemperatureMeasurement.setText(Float.toString(INITIAL_TEMPERATURE_MEASUREMENT_VALUE));
-    setTemperatureMeasurementValue(INITIAL_TEMPERATURE_MEASUREMENT_VALUE);
-
-    mMeasurementIntervalCharacteristic.setValue(INITIAL_MEASUREMENT_INTERVAL,
-            MEASUREMENT_INTERVAL_FORMAT,
-            /* offset */ 0);
-    mEditTextMeasurementInterval.setText(Integer.toString(INITIAL_MEASUREMENT_INTERVAL));
+    mEditTextTemperatureMeasurement.setText(Float.toString(mTemperature));
+    mEditTextMeasurementInterval.setText(formatMeasurementInterval(mMeasurementInterval));
 
     mTextViewNotifications = (TextView) view.findViewById(R.id.textView_notifications);
     mTextViewNotifications.setText(R.string.notificationsNotEnabled);
@@ -219,72 +231,103 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public void onStop() {
-    super.onStop();
+  public void onDestroy() {
+    super.onDestroy();
+    // Measurements keep going while the activity is stopped; the GATT server still runs.
     cancelTimer();
   }
 
   @Override
-  public BluetoothGattService getBluetoothGattService() {
+  public GattService getGattService() {
     return mHealthThermometerService;
   }
 
-  @Override
-  public ParcelUuid getServiceUUID() {
-    return new ParcelUuid(HEALTH_THERMOMETER_SERVICE_UUID);
-  }
-
   private void setTemperatureMeasurementValue(float temperatureMeasurementValue) {
-
-    /* Set the org.bluetooth.characteristic.temperature_measurement
-     * characteristic to a byte array of size 5 so
-     * we can use setValue(value, format, offset);
-     *
-     * Flags (8bit) + Temperature Measurement Value (float) = 5 bytes
-     *
-     * Flags:
-     *   Temperature Units Flag (0) -> Celsius
-     *   Time Stamp Flag (0) -> Time Stamp field not present
-     *   Temperature Type Flag (0) -> Temperature Type field not present
-     *   Unused (00000)
-     */
-    mTemperatureMeasurementCharacteristic.setValue(new byte[]{0b00000000, 0, 0, 0, 0});
-    // Characteristic Value: [flags, 0, 0, 0, 0]
-
-    int bits = Float.floatToIntBits(temperatureMeasurementValue);
-    int exponent = (bits & EXPONENT_MASK) >>> EXPONENT_SHIFT;
-    int mantissa = (bits & MANTISSA_MASK) >>> MANTISSA_SHIFT;
-
-    mTemperatureMeasurementCharacteristic.setValue(mantissa, exponent,
-            TEMPERATURE_MEASUREMENT_VALUE_FORMAT,
-            /* offset */ 1);
     // Characteristic Value: [flags, temperature measurement value]
+    // Encoded in place, like the integer setValue() overloads do; notifications send a copy.
+    byte[] value = mTemperatureMeasurementCharacteristic.getValue();
+    if (value == null || value.length != TemperatureMeasurement.LENGTH) {
+      value = new byte[TemperatureMeasurement.LENGTH];
+      mTemperatureMeasurementCharacteristic.setValue(value);
+    }
+    TemperatureMeasurement.encode(temperatureMeasurementValue, value, /* offset */ 0);
+    mTemperature = temperatureMeasurementValue;
   }
 
-  private void setTemperatureMeasurementTimerInterval(int measurementIntervalValueSeconds) {
-    mTimer = new Timer();
-    mTimer.scheduleAtFixedRate(new TimerTask() {
+  private synchronized void setTemperatureMeasurementTimerInterval(long periodNanos) {
+    // Runs on the scheduler thread; submit() only hands the measurement to the GATT event loop.
+    // A measurement that can't be taken on time is skipped: the next one carries the same
+    // temperature.
+    mMeasurementTask = PeriodicScheduler.getShared().schedule(new Runnable() {
       @Override
       public void run() {
-        getActivity().runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            mDelegate.sendNotificationToDevices(mTemperatureMeasurementCharacteristic);
-          }
-        });
+        takeMeasurement();
       }
-    }, 0 /* delay */, measurementIntervalValueSeconds * 1000);
+    }, 0 /* initialDelayNanos */, periodNanos, PeriodicScheduler.POLICY_SKIP);
   }
 
-  private void cancelTimer() {
-    if (mTimer != null) {
-      mTimer.cancel();
+  /*
+   * Runs on the scheduler thread. Subscribed centrals get the measurement right away; otherwise
+   * it is stored with its time stamp until one subscribes.
+   */
+  private void takeMeasurement() {
+    MeasurementStore store = mMeasurementStore;
+    if (store == null) {
+      ServiceFragmentDelegate delegate = mDelegate;
+      if (delegate == null) {
+        return;
+      }
+      store = delegate.startMeasurementStore(mTemperatureMeasurementCharacteristic,
+              MeasurementStore.DEFAULT_CAPACITY);
+      if (store == null) {
+        return;
+      }
+      mMeasurementStore = store;
     }
+    float temperature = mTemperature;
+    mTimeStamp.setTimeInMillis(System.currentTimeMillis());
+    store.submit(TemperatureMeasurement.encode(temperature),
+            TemperatureMeasurement.encode(temperature, mTimeStamp));
   }
 
-  private void resetTimer(int measurementIntervalValue) {
+  private synchronized void cancelTimer() {
+    if (mMeasurementTask != null) {
+      mMeasurementTask.cancel();
+      mMeasurementTask = null;
+    }
+  }
+
+  private synchronized void resetTimer(long periodNanos) {
     cancelTimer();
-    setTemperatureMeasurementTimerInterval(measurementIntervalValue);
+    setTemperatureMeasurementTimerInterval(periodNanos);
+  }
+
+  /*
+   * Sets the interval and restarts the timer. Runs on the UI thread.
+   */
+  private void setMeasurementInterval(float seconds) {
+    mMeasurementInterval = seconds;
+    mMeasurementIntervalCharacteristic.setValue((int) Math.ceil(seconds),
+            MEASUREMENT_INTERVAL_FORMAT,
+            /* offset */ 0);
+    resetTimer((long) (seconds * NANOS_PER_SECOND));
+  }
+
+  private static String formatMeasurementInterval(float seconds) {
+    return seconds == (int) seconds ? Integer.toString((int) seconds) : Float.toString(seconds);
+  }
+
+  /*
+   * @return The interval in seconds, or -1 if it isn't a valid one.
+   */
+  private static float parseMeasurementInterval(String s) {
+    try {
+      float value = Float.parseFloat(s);
+      return value >= MIN_UI_MEASUREMENT_INTERVAL && value <= MAX_MEASUREMENT_INTERVAL
+              ? value : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
   }
 
   private boolean isValidTemperatureMeasurementValue(String s) {
@@ -301,42 +344,38 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+  public int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value) {
     if (offset != 0) {
-      return BluetoothGatt.GATT_INVALID_OFFSET;
+      return GattStatus.INVALID_OFFSET;
     }
     // Measurement Interval is a 16bit characteristic
     if (value.length != 2) {
-      return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      return GattStatus.INVALID_ATTRIBUTE_LENGTH;
     }
     ByteBuffer byteBuffer = ByteBuffer.wrap(value);
     byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
     final int newMeasurementIntervalValue = byteBuffer.getShort();
     if (!isValidMeasurementIntervalValue(newMeasurementIntervalValue)) {
-      return BluetoothGatt.GATT_FAILURE;
+      return GattStatus.FAILURE;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        mMeasurementIntervalCharacteristic.setValue(newMeasurementIntervalValue,
-                MEASUREMENT_INTERVAL_FORMAT,
-                /* offset */ 0);
-        if (mMeasurementIntervalCCCDescriptor.getValue() == BluetoothGattDescriptor.ENABLE_INDICATION_VALUE) {
-          resetTimer(newMeasurementIntervalValue);
-          mTextViewNotifications.setText(R.string.notificationsEnabled);
-        }
+        setMeasurementInterval(newMeasurementIntervalValue);
+        mEditTextMeasurementInterval.setText(
+                formatMeasurementInterval(newMeasurementIntervalValue));
       }
     });
-    return BluetoothGatt.GATT_SUCCESS;
+    return GattStatus.SUCCESS;
   }
 
   @Override
-  public void notificationsDisabled(BluetoothGattCharacteristic characteristic) {
-    if (characteristic.getUuid() != TEMPERATURE_MEASUREMENT_UUID) {
+  public void notificationsDisabled(GattCharacteristic characteristic) {
+    if (characteristic != mTemperatureMeasurementCharacteristic) {
       return;
     }
-    cancelTimer();
-    getActivity().runOnUiThread(new Runnable() {
+    // The timer keeps running: measurements are stored until a central subscribes again.
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         mTextViewNotifications.setText(R.string.notificationsNotEnabled);
@@ -345,25 +384,25 @@ public class HealthThermometerServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public void notificationsEnabled(BluetoothGattCharacteristic characteristic, boolean indicate) {
-    if (characteristic.getUuid() != TEMPERATURE_MEASUREMENT_UUID) {
+  public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
+    if (characteristic != mTemperatureMeasurementCharacteristic) {
       return;
     }
     if (!indicate) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    // Runs on the GATT event loop: the stored measurements start going out, oldest first, each
+    // once the previous one was confirmed.
+    MeasurementStore store = mMeasurementStore;
+    if (store != null) {
+      store.flush();
+    }
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
-        int newMeasurementInterval = Integer.parseInt(mEditTextMeasurementInterval.getText()
-                .toString());
-        if (isValidMeasurementIntervalValue(newMeasurementInterval)) {
-          mMeasurementIntervalCharacteristic.setValue(newMeasurementInterval,
-                  MEASUREMENT_INTERVAL_FORMAT,
-                  /* offset */ 0);
-          resetTimer(newMeasurementInterval);
-          mTextViewNotifications.setText(R.string.notificationsEnabled);
-        }
+        // Restarts the timer so the first live measurement goes out right away.
+        setMeasurementInterval(mMeasurementInterval);
+        mTextViewNotifications.setText(R.string.notificationsEnabled);
       }
     });
   }
@@ -17,12 +17,9 @@
 package io.github.webbluetoothcg.bletestperipheral;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.os.Bundle;
-import android.os.ParcelUuid;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -40,8 +37,17 @@ import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
 
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.UUID;
 
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
+import io.github.webbluetoothcg.bletestperipheral.core.GattStatus;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateMeasurement;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateStream;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateWaveform;
+import io.github.webbluetoothcg.bletestperipheral.core.PeriodicScheduler;
+
 public class HeartRateServiceFragment extends ServiceFragment {
   private static final String TAG = HeartRateServiceFragment.class.getCanonicalName();
   private static final int MIN_UINT = 0;
@@ -60,9 +66,9 @@ public class HeartRateServiceFragment extends ServiceFragment {
    */
   private static final UUID HEART_RATE_MEASUREMENT_UUID = UUID
       .fromString("00002A37-0000-1000-8000-00805f9b34fb");
-  private static final int HEART_RATE_MEASUREMENT_VALUE_FORMAT = BluetoothGattCharacteristic.FORMAT_UINT8;
+  private static final int HEART_RATE_MEASUREMENT_VALUE_FORMAT = GattCharacteristic.FORMAT_UINT8;
   private static final int INITIAL_HEART_RATE_MEASUREMENT_VALUE = 60;
-  private static final int EXPENDED_ENERGY_FORMAT = BluetoothGattCharacteristic.FORMAT_UINT16;
+  private static final int EXPENDED_ENERGY_FORMAT = GattCharacteristic.FORMAT_UINT16;
   private static final int INITIAL_EXPENDED_ENERGY = 0;
   private static final String HEART_RATE_MEASUREMENT_DESCRIPTION = "Used to send a heart rate " +
       "measurement";
@@ -82,10 +88,22 @@ public class HeartRateServiceFragment extends ServiceFragment {
   private static final UUID HEART_RATE_CONTROL_POINT_UUID = UUID
       .fromString("00002A39-0000-1000-8000-00805f9b34fb");
 
-  private BluetoothGattService mHeartRateService;
-  private BluetoothGattCharacteristic mHeartRateMeasurementCharacteristic;
-  private BluetoothGattCharacteristic mBodySensorLocationCharacteristic;
-  private BluetoothGattCharacteristic mHeartRateControlPoint;
+  // Bounds of the simulation parameters.
+  private static final int MIN_SIMULATED_RATE = 20;
+  private static final int MAX_SIMULATED_RATE = 300;
+  private static final int MAX_VARIABILITY_MS = 500;
+  private static final int MIN_CADENCE_MS = 100;
+  private static final int MAX_CADENCE_MS = 10000;
+  // Exercise cycle of the simulation, in seconds: rest, ramp up, hold, ramp down.
+  private static final int EXERCISE_REST_SECONDS = 60;
+  private static final int EXERCISE_RAMP_SECONDS = 120;
+  private static final int EXERCISE_HOLD_SECONDS = 180;
+  private static final long SIMULATION_STATS_INTERVAL_MS = 500;
+
+  private GattService mHeartRateService;
+  private GattCharacteristic mHeartRateMeasurementCharacteristic;
+  private GattCharacteristic mBodySensorLocationCharacteristic;
+  private GattCharacteristic mHeartRateControlPoint;
 
   private ServiceFragmentDelegate mDelegate;
 
@@ -121,6 +139,9 @@ public class HeartRateServiceFragment extends ServiceFragment {
           mHeartRateMeasurementCharacteristic.setValue(newEnergyExpended,
               EXPENDED_ENERGY_FORMAT,
               /* offset */ 2);
+          if (mHeartRateStream != null) {
+            mHeartRateStream.setEnergyExpended(newEnergyExpended);
+          }
         } else {
           Toast.makeText(getActivity(), R.string.energyExpendedInvalid,
               Toast.LENGTH_SHORT).show();
@@ -131,6 +152,26 @@ public class HeartRateServiceFragment extends ServiceFragment {
   };
   private EditText mEditTextEnergyExpended;
   private Spinner mSpinnerBodySensorLocation;
+  private EditText mEditTextRestingRate;
+  private EditText mEditTextPeakRate;
+  private EditText mEditTextVariability;
+  private EditText mEditTextCadence;
+  private Button mSimulateButton;
+  private TextView mTextViewSimulation;
+  // Only accessed on the UI thread.
+  private HeartRateStream mHeartRateStream;
+  private PeriodicScheduler.Task mSimulationTask;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mSimulationStatsRefresh = new Runnable() {
+    @Override
+    public void run() {
+      if (mHeartRateStream == null) {
+        return;
+      }
+      showSimulationStats();
+      mMainHandler.postDelayed(this, SIMULATION_STATS_INTERVAL_MS);
+    }
+  };
 
   private final OnItemSelectedListener mLocationSpinnerOnItemSelectedListener =
       new OnItemSelectedListener() {
@@ -151,10 +192,55 @@ public class HeartRateServiceFragment extends ServiceFragment {
     }
   };
 
+  // Starts or stops notifying generated measurements with RR-Intervals at the chosen interval,
+  // from the shared scheduler thread, until stopped or the fragment goes away.
+  private final OnClickListener mSimulateButtonListener = new OnClickListener() {
+    @Override
+    public void onClick(View v) {
+      if (mHeartRateStream != null) {
+        stopSimulation();
+        return;
+      }
+      int restingRate = parseInt(mEditTextRestingRate, MIN_SIMULATED_RATE, MAX_SIMULATED_RATE);
+      int peakRate = parseInt(mEditTextPeakRate, MIN_SIMULATED_RATE, MAX_SIMULATED_RATE);
+      int variabilityMs = parseInt(mEditTextVariability, 0, MAX_VARIABILITY_MS);
+      int cadenceMs = parseInt(mEditTextCadence, MIN_CADENCE_MS, MAX_CADENCE_MS);
+      if (restingRate < 0 || peakRate < 0 || variabilityMs < 0 || cadenceMs < 0) {
+        Toast.makeText(getActivity(), R.string.heartRateSimulationInvalid, Toast.LENGTH_SHORT)
+            .show();
+        return;
+      }
+      HeartRateWaveform waveform = new HeartRateWaveform(System.nanoTime());
+      waveform.setRestingRate(restingRate);
+      waveform.setVariability(variabilityMs);
+      waveform.setExercise(peakRate, EXERCISE_REST_SECONDS, EXERCISE_RAMP_SECONDS,
+          EXERCISE_HOLD_SECONDS);
+      mHeartRateStream = mDelegate.startHeartRateStream(mHeartRateMeasurementCharacteristic,
+          waveform);
+      if (mHeartRateStream == null) {
+        Toast.makeText(getActivity(), R.string.streamNotAvailable, Toast.LENGTH_SHORT).show();
+        return;
+      }
+      mHeartRateStream.setEnergyExpended(mHeartRateMeasurementCharacteristic.getIntValue(
+          EXPENDED_ENERGY_FORMAT, HeartRateMeasurement.ENERGY_EXPENDED_OFFSET));
+      final HeartRateStream stream = mHeartRateStream;
+      // A late tick sends the beats of the ticks it replaces, so there's nothing to catch up.
+      mSimulationTask = PeriodicScheduler.getShared().schedule(new Runnable() {
+        @Override
+        public void run() {
+          stream.tick();
+        }
+      }, cadenceMs * 1000000L /* initialDelayNanos */, cadenceMs * 1000000L,
+          PeriodicScheduler.POLICY_SKIP);
+      mSimulateButton.setText(R.string.stopSimulation);
+      mMainHandler.postDelayed(mSimulationStatsRefresh, SIMULATION_STATS_INTERVAL_MS);
+    }
+  };
+
   public HeartRateServiceFragment() {
     mHeartRateMeasurementCharacteristic =
-        new BluetoothGattCharacteristic(HEART_RATE_MEASUREMENT_UUID,
-            BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+        new GattCharacteristic(HEART_RATE_MEASUREMENT_UUID,
+            GattCharacteristic.PROPERTY_NOTIFY,
             /* No permissions */ 0);
 
     mHeartRateMeasurementCharacteristic.addDescriptor(
@@ -164,23 +250,33 @@ public class HeartRateServiceFragment extends ServiceFragment {
         Peripheral.getCharacteristicUserDescriptionDescriptor(HEART_RATE_MEASUREMENT_DESCRIPTION));
 
     mBodySensorLocationCharacteristic =
-        new BluetoothGattCharacteristic(BODY_SENSOR_LOCATION_UUID,
-            BluetoothGattCharacteristic.PROPERTY_READ,
-            BluetoothGattCharacteristic.PERMISSION_READ);
+        new GattCharacteristic(BODY_SENSOR_LOCATION_UUID,
+            GattCharacteristic.PROPERTY_READ,
+            GattCharacteristic.PERMISSION_READ);
 
     mHeartRateControlPoint =
-        new BluetoothGattCharacteristic(HEART_RATE_CONTROL_POINT_UUID,
-            BluetoothGattCharacteristic.PROPERTY_WRITE,
-            BluetoothGattCharacteristic.PERMISSION_WRITE);
+        new GattCharacteristic(HEART_RATE_CONTROL_POINT_UUID,
+            GattCharacteristic.PROPERTY_WRITE,
+            GattCharacteristic.PERMISSION_WRITE);
 
-    mHeartRateService = new BluetoothGattService(HEART_RATE_SERVICE_UUID,
-        BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    mHeartRateService = new GattService(HEART_RATE_SERVICE_UUID,
+        GattService.SERVICE_TYPE_PRIMARY);
     mHeartRateService.addCharacteristic(mHeartRateMeasurementCharacteristic);
     mHeartRateService.addCharacteristic(mBodySensorLocationCharacteristic);
     mHeartRateService.addCharacteristic(mHeartRateControlPoint);
   }
 
 
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    // Set once: the view is recreated whenever the fragment comes back from the back stack, but
+    // the values belong to the GATT server.
+    setHeartRateMeasurementValue(INITIAL_HEART_RATE_MEASUREMENT_VALUE,
+        INITIAL_EXPENDED_ENERGY);
+    setBodySensorLocationValue(LOCATION_OTHER);
+  }
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
       Bundle savedInstanceState) {
@@ -198,10 +294,27 @@ public class HeartRateServiceFragment extends ServiceFragment {
         .setOnEditorActionListener(mOnEditorActionListenerEnergyExpended);
     Button notifyButton = (Button) view.findViewById(R.id.button_heartRateMeasurementNotify);
     notifyButton.setOnClickListener(mNotifyButtonListener);
-
-    setHeartRateMeasurementValue(INITIAL_HEART_RATE_MEASUREMENT_VALUE,
-        INITIAL_EXPENDED_ENERGY);
-    setBodySensorLocationValue(LOCATION_OTHER);
+    mEditTextRestingRate = (EditText) view.findViewById(R.id.editText_restingRate);
+    mEditTextPeakRate = (EditText) view.findViewById(R.id.editText_peakRate);
+    mEditTextVariability = (EditText) view.findViewById(R.id.editText_variability);
+    mEditTextCadence = (EditText) view.findViewById(R.id.editText_cadence);
+    mSimulateButton = (Button) view.findViewById(R.id.button_heartRateSimulate);
+    mSimulateButton.setOnClickListener(mSimulateButtonListener);
+    mTextViewSimulation = (TextView) view.findViewById(R.id.textView_heartRateSimulation);
+
+    mEditTextHeartRateMeasurement.setText(Integer.toString(
+        mHeartRateMeasurementCharacteristic.getIntValue(HEART_RATE_MEASUREMENT_VALUE_FORMAT,
+            /* offset */ 1)));
+    mEditTextEnergyExpended.setText(Integer.toString(
+        mHeartRateMeasurementCharacteristic.getIntValue(EXPENDED_ENERGY_FORMAT,
+            HeartRateMeasurement.ENERGY_EXPENDED_OFFSET)));
+    mSpinnerBodySensorLocation.setSelection(mBodySensorLocationCharacteristic.getValue()[0]);
+    // The simulation outlives the view.
+    if (mHeartRateStream != null) {
+      mSimulateButton.setText(R.string.stopSimulation);
+      showSimulationStats();
+      mMainHandler.postDelayed(mSimulationStatsRefresh, SIMULATION_STATS_INTERVAL_MS);
+    }
     return view;
   }
 
@@ -223,55 +336,72 @@ public class HeartRateServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public BluetoothGattService getBluetoothGattService() {
-    return mHeartRateService;
+  public void onDestroyView() {
+    super.onDestroyView();
+    mMainHandler.removeCallbacks(mSimulationStatsRefresh);
   }
 
   @Override
-  public ParcelUuid getServiceUUID() {
-    return new ParcelUuid(HEART_RATE_SERVICE_UUID);
+  public void onDestroy() {
+    super.onDestroy();
+    // Measurements keep going while the view is gone; the GATT server still runs.
+    stopSimulation();
+  }
+
+  @Override
+  public GattService getGattService() {
+    return mHeartRateService;
   }
 
   private void setHeartRateMeasurementValue(int heartRateMeasurementValue, int expendedEnergy) {
 
     Log.d(TAG, Arrays.toString(mHeartRateMeasurementCharacteristic.getValue()));
-    /* Set the org.bluetooth.characteristic.heart_rate_measurement
-     * characteristic to a byte array of size 4 so
-     * we can use setValue(value, format, offset);
-     *
-     * Flags (8bit) + Heart Rate Measurement Value (uint8) + Energy Expended (uint16) = 4 bytes
-     *
-     * Flags = 1 << 3:
-     *   Heart Rate Format (0) -> UINT8
-     *   Sensor Contact Status (00) -> Not Supported
-     *   Energy Expended (1) -> Field Present
-     *   RR-Interval (0) -> Field not pressent
-     *   Unused (000)
-     */
-    mHeartRateMeasurementCharacteristic.setValue(new byte[]{0b00001000, 0, 0, 0});
-    // Characteristic Value: [flags, 0, 0, 0]
-    mHeartRateMeasurementCharacteristic.setValue(heartRateMeasurementValue,
-        HEART_RATE_MEASUREMENT_VALUE_FORMAT,
-        /* offset */ 1);
-    // Characteristic Value: [flags, heart rate value, 0, 0]
-    mEditTextHeartRateMeasurement.setText(Integer.toString(heartRateMeasurementValue));
-    mHeartRateMeasurementCharacteristic.setValue(expendedEnergy,
-        EXPENDED_ENERGY_FORMAT,
-        /* offset */ 2);
     // Characteristic Value: [flags, heart rate value, energy expended (LSB), energy expended (MSB)]
-    mEditTextEnergyExpended.setText(Integer.toString(expendedEnergy));
+    mHeartRateMeasurementCharacteristic.setValue(
+        HeartRateMeasurement.encode(heartRateMeasurementValue, expendedEnergy));
   }
   private void setBodySensorLocationValue(int location) {
     mBodySensorLocationCharacteristic.setValue(new byte[]{(byte) location});
-    mSpinnerBodySensorLocation.setSelection(location);
+  }
+
+  private void stopSimulation() {
+    mMainHandler.removeCallbacks(mSimulationStatsRefresh);
+    if (mHeartRateStream == null) {
+      return;
+    }
+    mSimulationTask.cancel();
+    mSimulationTask = null;
+    mHeartRateStream.stop();
+    showSimulationStats();
+    mHeartRateStream = null;
+    mSimulateButton.setText(R.string.startSimulation);
+  }
+
+  private void showSimulationStats() {
+    mTextViewSimulation.setText(String.format(Locale.US,
+        "%d bpm\n%d measurements, %d RR-Intervals, %d dropped",
+        mHeartRateStream.getHeartRate(), mHeartRateStream.getMeasurementsSent(),
+        mHeartRateStream.getRrIntervalsSent(), mHeartRateStream.getRrIntervalsDropped()));
+  }
+
+  /*
+   * @return The number in the field, or -1 if it isn't a number between min and max.
+   */
+  private static int parseInt(EditText editText, int min, int max) {
+    try {
+      int value = Integer.parseInt(editText.getText().toString());
+      return value >= min && value <= max ? value : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
   }
 
   private boolean isValidCharacteristicValue(String s, int format) {
     try {
       int value = Integer.parseInt(s);
-      if (format == BluetoothGattCharacteristic.FORMAT_UINT8) {
+      if (format == GattCharacteristic.FORMAT_UINT8) {
         return (value >= MIN_UINT) && (value <= MAX_UINT8);
-      } else if (format == BluetoothGattCharacteristic.FORMAT_UINT16) {
+      } else if (format == GattCharacteristic.FORMAT_UINT16) {
         return (value >= MIN_UINT) && (value <= MAX_UINT16);
       } else {
         throw new IllegalArgumentException(format + " is not a valid argument");
@@ -282,36 +412,39 @@ public class HeartRateServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+  public int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value) {
     if (offset != 0) {
-      return BluetoothGatt.GATT_INVALID_OFFSET;
+      return GattStatus.INVALID_OFFSET;
     }
     // Heart Rate control point is a 8bit characteristic
     if (value.length != 1) {
-      return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      return GattStatus.INVALID_ATTRIBUTE_LENGTH;
     }
     if ((value[0] & 1) == 1) {
-      getActivity().runOnUiThread(new Runnable() {
+      runOnUiThread(new Runnable() {
         @Override
         public void run() {
           mHeartRateMeasurementCharacteristic.setValue(INITIAL_EXPENDED_ENERGY,
               EXPENDED_ENERGY_FORMAT, /* offset */ 2);
           mEditTextEnergyExpended.setText(Integer.toString(INITIAL_EXPENDED_ENERGY));
+          if (mHeartRateStream != null) {
+            mHeartRateStream.setEnergyExpended(INITIAL_EXPENDED_ENERGY);
+          }
         }
       });
     }
-    return BluetoothGatt.GATT_SUCCESS;
+    return GattStatus.SUCCESS;
   }
 
   @Override
-  public void notificationsEnabled(BluetoothGattCharacteristic characteristic, boolean indicate) {
-    if (characteristic.getUuid() != HEART_RATE_MEASUREMENT_UUID) {
+  public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
+    if (characteristic != mHeartRateMeasurementCharacteristic) {
       return;
     }
     if (indicate) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsEnabled, Toast.LENGTH_SHORT)
@@ -321,11 +454,11 @@ public class HeartRateServiceFragment extends ServiceFragment {
   }
 
   @Override
-  public void notificationsDisabled(BluetoothGattCharacteristic characteristic) {
-    if (characteristic.getUuid() != HEART_RATE_MEASUREMENT_UUID) {
+  public void notificationsDisabled(GattCharacteristic characteristic) {
+    if (characteristic != mHeartRateMeasurementCharacteristic) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsNotEnabled, Toast.LENGTH_SHORT)
@@ -21,14 +21,12 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.ParcelUuid;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -40,16 +38,23 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
-import java.nio.charset.StandardCharsets;
 import org.w3c.dom.Text;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.TimerTask;
 import java.util.UUID;
 
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattDescriptor;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
+import io.github.webbluetoothcg.bletestperipheral.core.GattStatus;
+import io.github.webbluetoothcg.bletestperipheral.core.NotificationStream;
+import io.github.webbluetoothcg.bletestperipheral.core.StreamSink;
+
 public class NordicUartServiceFragment extends ServiceFragment {
 
 
@@ -62,6 +67,9 @@ public class NordicUartServiceFragment extends ServiceFragment {
   private static final int MIN_UINT = 0;
   private static final int MAX_UINT8 = (int) Math.pow(2, 8) - 1;
   private static final int MAX_UINT16 = (int) Math.pow(2, 16) - 1;
+  private static final int MAX_ATTRIBUTE_LENGTH = 512;
+  // Interval between two refreshes of the stream and sink statistics.
+  private static final long STREAM_STATS_INTERVAL_MS = 500;
   /**
    * See <a href="https://developer.bluetooth.org/gatt/services/Pages/ServiceViewer.aspx?u=org.bluetooth.service.health_thermometer.xml">
    * Health Thermometer Service</a>
@@ -95,7 +103,7 @@ public class NordicUartServiceFragment extends ServiceFragment {
   //이건 TxChar UUID 설정 부분 (보내는 Char)
   private static final UUID SEND_UUID = UUID
           .fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");  //RxChar UUID
-  private static final int SEND_VALUE_FORMAT = BluetoothGattCharacteristic.FORMAT_UINT8;
+  private static final int SEND_VALUE_FORMAT = GattCharacteristic.FORMAT_UINT8;
   private static final String SEND_DESCRIPTION = "This characteristic is used " +
           "as TxChar Nordic Uart device";
 
@@ -107,7 +115,7 @@ public class NordicUartServiceFragment extends ServiceFragment {
    */
   private static final UUID RECIEVE_UUID = UUID
           .fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");  //TxChar UUID
-  private static final int RECEIVE_VALUE_FORMAT = BluetoothGattCharacteristic.FORMAT_UINT8;
+  private static final int RECEIVE_VALUE_FORMAT = GattCharacteristic.FORMAT_UINT8;
 
 
   private static final String RECEIVE_DESCRIPTION = "This characteristic is used " +
@@ -121,34 +129,62 @@ public class NordicUartServiceFragment extends ServiceFragment {
   //////////////////////////////////////////////////////////////////////////////////////////////////
 
 
-  private BluetoothGattService mNordicUartService;
-  private BluetoothGattCharacteristic mSendCharacteristic;
-  private BluetoothGattCharacteristic mReceiveCharacteristic;
-  private BluetoothGattDescriptor mReceiveCCCDescriptor;
+  private GattService mNordicUartService;
+  private GattCharacteristic mSendCharacteristic;
+  private GattCharacteristic mReceiveCharacteristic;
+  private GattDescriptor mReceiveCCCDescriptor;
 
 
   private ServiceFragmentDelegate mDelegate;
 
   //원래있던 TemperatureMeasurement를 Send로 바꿔줌.
   private EditText mEditTextSendValue;
+  private EditText mEditTextReadSize;
   private TextView mTextViewReceiveValue;
+  private volatile ReceiveRateRenderer mReceiveRenderer;
+  private Button mStreamButton;
+  private TextView mTextViewStreamStats;
+  // Only accessed on the UI thread.
+  private NotificationStream mNotificationStream;
+  private long mStreamWindowStartMs;
+  private long mStreamWindowStartPackets;
+  private long mStreamWindowStartBytes;
+  private Button mSinkButton;
+  private TextView mTextViewSinkStats;
+  // Only accessed on the UI thread.
+  private StreamSink mStreamSink;
+  private long mSinkWindowStartMs;
+  private long mSinkWindowStartPackets;
+  private long mSinkWindowStartBytes;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mStreamStatsRefresh = new Runnable() {
+    @Override
+    public void run() {
+      if (mNotificationStream == null) {
+        return;
+      }
+      showStreamStats();
+      mMainHandler.postDelayed(this, STREAM_STATS_INTERVAL_MS);
+    }
+  };
+  private final Runnable mSinkStatsRefresh = new Runnable() {
+    @Override
+    public void run() {
+      if (mStreamSink == null) {
+        return;
+      }
+      showSinkStats();
+      mMainHandler.postDelayed(this, STREAM_STATS_INTERVAL_MS);
+    }
+  };
   //이건 Text Editor에 수정을 할 시에 그걸 가지고 보낼 값(Characteristic Value)을 바꾸는 것.
   private final OnEditorActionListener mOnEditorActionListenerSend = new OnEditorActionListener() {
     @Override
     public boolean onEditorAction(TextView textView, int actionId, KeyEvent event) {
       if (actionId == EditorInfo.IME_ACTION_DONE) {
-        String newSENDValueString = textView.getText().toString();
-        if (isValidCharacteristicValue(newSENDValueString,
-                SEND_VALUE_FORMAT)) {
-//          //첫번째, String 형식을 byte 형식으로 바꾸기
-//          byte[] newSENDbytes = mEditTextSendValue.getText().toString().getBytes(StandardCharsets.US_ASCII);
-//          mSendCharacteristic.setValue(newSENDbytes);
-          //두번째. int로 바꾸기
-          int newSendValue = Integer.parseInt(newSENDValueString);
-
-          mSendCharacteristic.setValue(newSendValue,
-                  SEND_VALUE_FORMAT,
-                  /* offset */ 0);
+        byte[] newSendBytes = textView.getText().toString().getBytes(StandardCharsets.UTF_8);
+        if (isValidSendValue(newSendBytes)) {
+          mSendCharacteristic.setValue(newSendBytes);
         } else {
           Toast.makeText(getActivity(), "Chracteristic 형식이 틀립니다.",
                   Toast.LENGTH_SHORT).show();
@@ -158,6 +194,24 @@ public class NordicUartServiceFragment extends ServiceFragment {
     }
   };
 
+  // Replaces the TX value with a synthetic value of the given size so centrals can measure long
+  // read (Read Blob) throughput.
+  private final OnEditorActionListener mOnEditorActionListenerReadSize = new OnEditorActionListener() {
+    @Override
+    public boolean onEditorAction(TextView textView, int actionId, KeyEvent event) {
+      if (actionId == EditorInfo.IME_ACTION_DONE) {
+        String newReadSizeString = textView.getText().toString();
+        if (isValidReadSize(newReadSizeString)) {
+          mSendCharacteristic.setValue(createSyntheticValue(Integer.parseInt(newReadSizeString)));
+        } else {
+          Toast.makeText(getActivity(), R.string.readValueSizeInvalid,
+                  Toast.LENGTH_SHORT).show();
+        }
+      }
+      return false;
+    }
+  };
+
   //이건 사실 필요없음. TxChar값이 들어가는 건 EditText가 아닌 입력 불가능한 TextView라서 굳이 리스닝 해줄 필요 없기 떄문.
   private final OnEditorActionListener mOnEditorActionListenerReceive = new OnEditorActionListener() {
     @Override
@@ -186,27 +240,73 @@ public class NordicUartServiceFragment extends ServiceFragment {
     @Override
     public void onClick(View v) {
 
-//      //첫번째 방법, String 형식을 byte 형식으로 바꿔서 보내기
-//      byte[] newSENDbytes = mEditTextSendValue.getText().toString().getBytes(StandardCharsets.US_ASCII);
-//      mSendCharacteristic.setValue(newSENDbytes);
-
-      //두번째 방법, Integer로 보내기([값]형태)
-      int integer_to_send = Integer.parseInt(mEditTextSendValue.getText().toString());
-      mSendCharacteristic.setValue(integer_to_send,
-              SEND_VALUE_FORMAT,
-              /* offset */ 0);
+      // The message is sent as UTF-8 text, like a serial line.
+      byte[] bytesToSend = mEditTextSendValue.getText().toString().getBytes(StandardCharsets.UTF_8);
+      if (!isValidSendValue(bytesToSend)) {
+        Toast.makeText(getActivity(), "Chracteristic 형식이 틀립니다.",
+                Toast.LENGTH_SHORT).show();
+        return;
+      }
+      mSendCharacteristic.setValue(bytesToSend);
 
       //★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★
       //정확히는 여기에서 NOTIFICATION을 SEND 해준다. (TxChar을 통해서)
+      // Messages longer than one notification are split using each device's MTU.
       //★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★
-      mDelegate.sendNotificationToDevices(mSendCharacteristic);
-      //Log.v(TAG, "sent: " + Arrays.toString(mSendCharacteristic.getValue()) + " / that is: " + bytesToString(mSendCharacteristic.getValue()));
-      Log.v(TAG, "sent: " + Arrays.toString(mSendCharacteristic.getValue()));
+      mDelegate.sendDataToDevices(mSendCharacteristic, bytesToSend);
+      Log.v(TAG, "sent: " + bytesToSend.length + " bytes");
+    }
+  };
+
+
+
+  // Starts or stops streaming sequence-numbered, checksummed packets of ATT_MTU - 3 bytes on
+  // TX as fast as the link takes them, to measure the notification throughput.
+  private final View.OnClickListener mStreamButtonListener = new View.OnClickListener() {
+    @Override
+    public void onClick(View v) {
+      if (mNotificationStream != null) {
+        stopStream();
+        return;
+      }
+      mNotificationStream = mDelegate.startNotificationStream(mSendCharacteristic);
+      if (mNotificationStream == null) {
+        Toast.makeText(getActivity(), R.string.streamNotAvailable, Toast.LENGTH_SHORT).show();
+        return;
+      }
+      mStreamWindowStartMs = SystemClock.uptimeMillis();
+      mStreamWindowStartPackets = 0;
+      mStreamWindowStartBytes = 0;
+      mStreamButton.setText(R.string.stopStream);
+      mMainHandler.postDelayed(mStreamStatsRefresh, STREAM_STATS_INTERVAL_MS);
     }
   };
 
 
 
+  // Starts or stops checking the packets centrals write to RX, in the same format as the stream,
+  // for lost, duplicated, reordered and corrupted packets. The writes no longer reach
+  // writeCharacteristic while the sink runs.
+  private final View.OnClickListener mSinkButtonListener = new View.OnClickListener() {
+    @Override
+    public void onClick(View v) {
+      if (mStreamSink != null) {
+        stopSink();
+        return;
+      }
+      mStreamSink = mDelegate.startStreamSink(mReceiveCharacteristic);
+      if (mStreamSink == null) {
+        Toast.makeText(getActivity(), R.string.streamNotAvailable, Toast.LENGTH_SHORT).show();
+        return;
+      }
+      mSinkWindowStartMs = SystemClock.uptimeMillis();
+      mSinkWindowStartPackets = 0;
+      mSinkWindowStartBytes = 0;
+      mSinkButton.setText(R.string.stopSink);
+      mMainHandler.postDelayed(mSinkStatsRefresh, STREAM_STATS_INTERVAL_MS);
+    }
+  };
+
   /*
   원래있던 MeasurementInterval을 ReceiveValue로 바꿔줌
   BLUETOOTH GATT 다루는 부분은 아래 사이트 참고
@@ -218,9 +318,9 @@ public class NordicUartServiceFragment extends ServiceFragment {
 
     //이거는 Send
     mSendCharacteristic =
-            new BluetoothGattCharacteristic(SEND_UUID,
-                    BluetoothGattCharacteristic.PROPERTY_NOTIFY|BluetoothGattCharacteristic.PROPERTY_READ,
-                    /* No permissions */ BluetoothGattCharacteristic.PERMISSION_READ);
+            new GattCharacteristic(SEND_UUID,
+                    GattCharacteristic.PROPERTY_NOTIFY|GattCharacteristic.PROPERTY_READ,
+                    /* No permissions */ GattCharacteristic.PERMISSION_READ);
 
     mSendCharacteristic.addDescriptor(
             Peripheral.getClientCharacteristicConfigurationDescriptor());
@@ -230,18 +330,19 @@ public class NordicUartServiceFragment extends ServiceFragment {
 
     //이거는 Receive
     mReceiveCharacteristic =
-            new BluetoothGattCharacteristic(
+            new GattCharacteristic(
                     RECIEVE_UUID,
-                    BluetoothGattCharacteristic.PROPERTY_WRITE,
-                    BluetoothGattCharacteristic.PERMISSION_WRITE);
+                    GattCharacteristic.PROPERTY_WRITE
+                            | GattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                    GattCharacteristic.PERMISSION_WRITE);
 
     mReceiveCharacteristic.addDescriptor(Peripheral.getClientCharacteristicConfigurationDescriptor());
 
     mReceiveCharacteristic.addDescriptor(
             Peripheral.getCharacteristicUserDescriptionDescriptor(RECEIVE_DESCRIPTION));
 
-    mNordicUartService = new BluetoothGattService(UART_SERVICE_UUID,
-            BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    mNordicUartService = new GattService(UART_SERVICE_UUID,
+            GattService.SERVICE_TYPE_PRIMARY);
     mNordicUartService.addCharacteristic(mSendCharacteristic);
     mNordicUartService.addCharacteristic(mReceiveCharacteristic);
   }
@@ -265,9 +366,21 @@ public class NordicUartServiceFragment extends ServiceFragment {
             .findViewById(R.id.Textview_Recievevalue);
     mTextViewReceiveValue
             .setOnEditorActionListener(mOnEditorActionListenerReceive);
+    mReceiveRenderer = new ReceiveRateRenderer(mTextViewReceiveValue);
+
+    mEditTextReadSize = (EditText) view
+            .findViewById(R.id.EditText_ReadSize);
+    mEditTextReadSize
+            .setOnEditorActionListener(mOnEditorActionListenerReadSize);
 
     Button notifyButton = (Button) view.findViewById(R.id.button_SendDataNotify);
     notifyButton.setOnClickListener(mNotifyButtonListener);
+    mStreamButton = (Button) view.findViewById(R.id.button_Stream);
+    mStreamButton.setOnClickListener(mStreamButtonListener);
+    mTextViewStreamStats = (TextView) view.findViewById(R.id.textView_StreamStats);
+    mSinkButton = (Button) view.findViewById(R.id.button_Sink);
+    mSinkButton.setOnClickListener(mSinkButtonListener);
+    mTextViewSinkStats = (TextView) view.findViewById(R.id.textView_SinkStats);
     setSendValue(INITIAL_SEND, INITIAL_RECEIVE);
 
 
@@ -291,6 +404,15 @@ public class NordicUartServiceFragment extends ServiceFragment {
     mDelegate = null;
   }
 
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+    stopStream();
+    stopSink();
+    mReceiveRenderer.detach();
+    mReceiveRenderer = null;
+  }
+
   @Override
   public void onStop() {
     super.onStop();
@@ -310,15 +432,10 @@ public class NordicUartServiceFragment extends ServiceFragment {
   //////////////////////////////////////////////////////////////////////////////////////////////////
 
   @Override
-  public BluetoothGattService getBluetoothGattService() {
+  public GattService getGattService() {
     return mNordicUartService;
   }
 
-  @Override
-  public ParcelUuid getServiceUUID() {
-    return new ParcelUuid(UART_SERVICE_UUID);
-  }
-
   //이건 처음에 onCreate에서 값 세팅 해주는 것. 그냥 시작에만 한번 딱 설정해준다.
   private void setSendValue(int SendValue, int ReceiveValue) {
 
@@ -363,45 +480,36 @@ public class NordicUartServiceFragment extends ServiceFragment {
   //이건 Receive 값 받아오는 함수(Write 권한 있는 RxChar)
   //★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★★
   @Override
-  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+  public int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value) {
     if (offset != 0) {
-      return BluetoothGatt.GATT_INVALID_OFFSET;
+      return GattStatus.INVALID_OFFSET;
     }
     // Heart Rate control point is a 8bit characteristic
     //글자수 제한인데 원래 1글자만 받던거 풀어줌.
     if (value.length > 1000) {
-      return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+      return GattStatus.INVALID_ATTRIBUTE_LENGTH;
     }
-    getActivity().runOnUiThread(new Runnable() {
-      @Override
-      public void run() {
-//        //첫번째 방법, byte 형식을 String 형식으로 바꿔서 받기
-//        //이 부분에서 아스키 코드로 된 btye array를 string으로 변환해줌
-//        mTextViewReceiveValue.setText(bytesToString(value));
-//        //로그에서 원래 아스키코드 배열과 / 변환되어 나온 string값을 보여줌
-//        Log.v(TAG, "Received: " + Arrays.toString(value) + " / converted into:" + bytesToString(value));
-
-        //두번째 방법, Integer로 받기([값]형태)
-        mTextViewReceiveValue.setText(Arrays.toString(value));
-        //로그에서 원래 아스키코드 배열과 / 변환되어 나온 string값을 보여줌
-        Log.v(TAG, "Received: " + Arrays.toString(value));
-      }
-    });
-    return BluetoothGatt.GATT_SUCCESS;
+    // Rendered at most once per frame, together with the write rate, instead of posting every
+    // write to the UI thread.
+    ReceiveRateRenderer receiveRenderer = mReceiveRenderer;
+    if (receiveRenderer != null) {
+      receiveRenderer.onValueReceived(value);
+    }
+    return GattStatus.SUCCESS;
   }
 
 
   // 노티피케이션을 쓸 수 있게 되면 앱 푸시 알림
   @Override
-  public void notificationsEnabled(BluetoothGattCharacteristic characteristic, boolean indicate) {
-    if (characteristic.getUuid() != SEND_UUID) {
+  public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
+    if (characteristic != mSendCharacteristic) {
       Log.v(TAG, "UUID가 SendUUID와 다릅니다: " + characteristic.getUuid());
       return;
     }
     if (indicate) {
       return;
     }
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
 //        int newSENDValueString = Integer.parseInt(mEditTextSendValue.getText().toString());
@@ -417,12 +525,12 @@ public class NordicUartServiceFragment extends ServiceFragment {
 
   //노티피케이션을 못 쓰게 되면 앱 푸시 알림
   @Override
-  public void notificationsDisabled(BluetoothGattCharacteristic characteristic) {
-    if (characteristic.getUuid() != SEND_UUID) {
+  public void notificationsDisabled(GattCharacteristic characteristic) {
+    if (characteristic != mSendCharacteristic) {
       return;
     }
 
-    getActivity().runOnUiThread(new Runnable() {
+    runOnUiThread(new Runnable() {
       @Override
       public void run() {
         Toast.makeText(getActivity(), R.string.notificationsNotEnabled, Toast.LENGTH_SHORT)
@@ -431,14 +539,102 @@ public class NordicUartServiceFragment extends ServiceFragment {
     });
   }
 
+  private void stopStream() {
+    mMainHandler.removeCallbacks(mStreamStatsRefresh);
+    if (mNotificationStream == null) {
+      return;
+    }
+    mNotificationStream.stop();
+    showStreamStats();
+    mNotificationStream = null;
+    mStreamButton.setText(R.string.startStream);
+  }
+
+  // Rates over the last refresh interval, and totals since the stream started.
+  private void showStreamStats() {
+    long packets = mNotificationStream.getPacketsSent();
+    long bytes = mNotificationStream.getBytesSent();
+    long nowMs = SystemClock.uptimeMillis();
+    long elapsedMs = Math.max(1, nowMs - mStreamWindowStartMs);
+    double packetsPerSecond = (packets - mStreamWindowStartPackets) * 1000.0 / elapsedMs;
+    double bytesPerSecond = (bytes - mStreamWindowStartBytes) * 1000.0 / elapsedMs;
+    mStreamWindowStartMs = nowMs;
+    mStreamWindowStartPackets = packets;
+    mStreamWindowStartBytes = bytes;
+    mTextViewStreamStats.setText(String.format(Locale.US,
+        "%.0f packets/s, %.0f B/s\n%d packets, %d bytes, %d dropped",
+        packetsPerSecond, bytesPerSecond, packets, bytes,
+        mNotificationStream.getPacketsDropped()));
+  }
+
+  private void stopSink() {
+    mMainHandler.removeCallbacks(mSinkStatsRefresh);
+    if (mStreamSink == null) {
+      return;
+    }
+    mStreamSink.stop();
+    showSinkStats();
+    mStreamSink = null;
+    mSinkButton.setText(R.string.startSink);
+  }
+
+  // Rate over the last refresh interval and totals of every device, then the totals per device.
+  private void showSinkStats() {
+    StreamSink.Stats total = mStreamSink.getTotalStats();
+    long nowMs = SystemClock.uptimeMillis();
+    long elapsedMs = Math.max(1, nowMs - mSinkWindowStartMs);
+    double packetsPerSecond = (total.getPackets() - mSinkWindowStartPackets) * 1000.0 / elapsedMs;
+    double bytesPerSecond = (total.getBytes() - mSinkWindowStartBytes) * 1000.0 / elapsedMs;
+    mSinkWindowStartMs = nowMs;
+    mSinkWindowStartPackets = total.getPackets();
+    mSinkWindowStartBytes = total.getBytes();
+    StringBuilder text = new StringBuilder(String.format(Locale.US,
+        "%.0f packets/s, %.0f B/s", packetsPerSecond, bytesPerSecond));
+    appendSinkStats(text, "total", total);
+    for (String device : mStreamSink.getDevices()) {
+      appendSinkStats(text, device, mStreamSink.getStats(device));
+    }
+    mTextViewSinkStats.setText(text);
+  }
+
+  private static void appendSinkStats(StringBuilder text, String label, StreamSink.Stats stats) {
+    text.append(String.format(Locale.US,
+        "\n%s: %d packets, %d lost, %d dup, %d reordered, %d corrupted",
+        label, stats.getPackets(), stats.getLost(), stats.getDuplicates(),
+        stats.getReordered(), stats.getCorrupted()));
+  }
+
+  // A GATT attribute value can't be longer than 512 bytes.
+  private boolean isValidSendValue(byte[] value) {
+    return value.length > 0 && value.length <= MAX_ATTRIBUTE_LENGTH;
+  }
+
+  private boolean isValidReadSize(String s) {
+    try {
+      int size = Integer.parseInt(s);
+      return size >= 0 && size <= MAX_ATTRIBUTE_LENGTH;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  // Printable ASCII pattern, so a truncated or misordered long read is easy to spot.
+  private static byte[] createSyntheticValue(int length) {
+    byte[] value = new byte[length];
+    for (int i = 0; i < length; i++) {
+      value[i] = (byte) ('!' + i % ('~' - '!' + 1));
+    }
+    return value;
+  }
+
   // 유효한 특성 값인지 알아내는 함수. 예를 들어 String값을 보낸다면
   // 그게 하나하나 파싱 했을 때 저 비트 안에 들어가는지 ㅇㅇ
   private boolean isValidCharacteristicValue(String s, int format) {
     try {
       int value = Integer.parseInt(s);
-      if (format == BluetoothGattCharacteristic.FORMAT_UINT8) {
+      if (format == GattCharacteristic.FORMAT_UINT8) {
         return (value >= MIN_UINT) && (value <= MAX_UINT8);
-      } else if (format == BluetoothGattCharacteristic.FORMAT_UINT16) {
+      } else if (format == GattCharacteristic.FORMAT_UINT16) {
         return (value >= MIN_UINT) && (value <= MAX_UINT16);
       } else {
         throw new IllegalArgumentException(format + " is not a valid argument");
@@ -460,16 +656,5 @@ public class NordicUartServiceFragment extends ServiceFragment {
     }
     return new String(hexChars);
   }
-  /*
-  이건 string to ASCII. Notify 할 때 쓸 수 있음. string을 editText에 입력 받으면
-  그걸 다시 ASCII로 변환한 다음에 그걸 전송하고
-  */
-  public String bytesToString(byte[] value) {
-    String converted = "";
-    for (int i : value) {
-      converted = converted.concat(Character.toString((char) i));
-    }
-    return converted;
-  }
 
 }
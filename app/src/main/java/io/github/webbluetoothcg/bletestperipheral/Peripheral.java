@@ -18,48 +18,54 @@ package io.github.webbluetoothcg.bletestperipheral;
 
 import android.Manifest;
 import android.app.Activity;
-import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
+import android.app.FragmentTransaction;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattServerCallback;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
-import android.view.WindowManager;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.UUID;
 
 import android.support.v4.app.ActivityCompat;
 import io.github.webbluetoothcg.bletestperipheral.ServiceFragment.ServiceFragmentDelegate;
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattDescriptor;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateStream;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateWaveform;
+import io.github.webbluetoothcg.bletestperipheral.core.IndicationTracker;
+import io.github.webbluetoothcg.bletestperipheral.core.LatencyHistogram;
+import io.github.webbluetoothcg.bletestperipheral.core.MeasurementStore;
+import io.github.webbluetoothcg.bletestperipheral.core.NotificationQueue;
+import io.github.webbluetoothcg.bletestperipheral.core.NotificationStream;
+import io.github.webbluetoothcg.bletestperipheral.core.StreamSink;
 
+/*
+ * The GATT server, the advertiser and the connected devices live in GattServerService, which
+ * keeps running while this activity is stopped or recreated. The activity binds to it to show
+ * its status and hands it the services of its fragments; the service stops once the activity
+ * finishes.
+ */
 public class Peripheral extends Activity implements ServiceFragmentDelegate {
 
   private static final int REQUEST_ENABLE_BT = 1;
   private static final String TAG = Peripheral.class.getCanonicalName();
-  private static final String CURRENT_FRAGMENT_TAG = "CURRENT_FRAGMENT";
+  // Followed by the index of the fragment in mServiceFragments.
+  private static final String SERVICE_FRAGMENT_TAG = "SERVICE_FRAGMENT_";
+  private static final long INDICATION_STATUS_REFRESH_INTERVAL_MS = 1000;
 
   private static final UUID CHARACTERISTIC_USER_DESCRIPTION_UUID = UUID
       .fromString("00002901-0000-1000-8000-00805f9b34fb");
@@ -82,194 +88,47 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
   }
   private TextView mAdvStatus;
   private TextView mConnectionStatus;
-  private ServiceFragment mCurrentServiceFragment;
-  private BluetoothGattService mBluetoothGattService;
-  private HashSet<BluetoothDevice> mBluetoothDevices;
-  private BluetoothManager mBluetoothManager;
-  private BluetoothAdapter mBluetoothAdapter;
-  private AdvertiseData mAdvData;
-  private AdvertiseData mAdvScanResponse;
-  private AdvertiseSettings mAdvSettings;
-  private BluetoothLeAdvertiser mAdvertiser;
-  private final AdvertiseCallback mAdvCallback = new AdvertiseCallback() {
-    @Override
-    public void onStartFailure(int errorCode) {
-      super.onStartFailure(errorCode);
-      Log.e(TAG, "Not broadcasting: " + errorCode);
-      int statusText;
-      switch (errorCode) {
-        case ADVERTISE_FAILED_ALREADY_STARTED:
-          statusText = R.string.status_advertising;
-          Log.w(TAG, "App was already advertising");
-          break;
-        case ADVERTISE_FAILED_DATA_TOO_LARGE:
-          statusText = R.string.status_advDataTooLarge;
-          break;
-        case ADVERTISE_FAILED_FEATURE_UNSUPPORTED:
-          statusText = R.string.status_advFeatureUnsupported;
-          break;
-        case ADVERTISE_FAILED_INTERNAL_ERROR:
-          statusText = R.string.status_advInternalError;
-          break;
-        case ADVERTISE_FAILED_TOO_MANY_ADVERTISERS:
-          statusText = R.string.status_advTooManyAdvertisers;
-          break;
-        default:
-          statusText = R.string.status_notAdvertising;
-          Log.wtf(TAG, "Unhandled error: " + errorCode);
-      }
-      mAdvStatus.setText(statusText);
-    }
-
+  private TextView mIndicationStatus;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private final Runnable mRefreshIndicationStatus = new Runnable() {
     @Override
-    public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-      super.onStartSuccess(settingsInEffect);
-      Log.v(TAG, "Broadcasting");
-      mAdvStatus.setText(R.string.status_advertising);
+    public void run() {
+      showIndicationStatus();
+      mMainHandler.postDelayed(this, INDICATION_STATUS_REFRESH_INTERVAL_MS);
     }
   };
-  /*
-  BluetoothGATT 서버를 연다고 함은 이렇게 외부 요청 같은 것들을 계속 Callback 받으면서 각각의 요청들에 대한
-  세세한 설정 들을 해놓는 것이다.
-  예를 들어서 Write요청을 받게 된다면 WriteCharacteristic 같은 펑션 콜을 한다든가 하는 것이
-  다 여기에 구현이 되어있다.
-
-  다른 모든 fragment들에서 공통적으로 BLUETOOTHGATT 서버를 열어서 사용하기 때문에 fragment가 아닌
-  안드로이드에서 구조적으로 윗 단계인 Activity에 이걸 구현한 것.
-   */
-  private BluetoothGattServer mGattServer;
-  private final BluetoothGattServerCallback mGattServerCallback = new BluetoothGattServerCallback() {
-    @Override
-    public void onConnectionStateChange(BluetoothDevice device, final int status, int newState) {
-      super.onConnectionStateChange(device, status, newState);
-      if (status == BluetoothGatt.GATT_SUCCESS) {
-        if (newState == BluetoothGatt.STATE_CONNECTED) {
-          mBluetoothDevices.add(device);
-          //추가코드 : 컨넥션 연결되었을 떄 advertisement 멈춤.
-          mAdvertiser.stopAdvertising(mAdvCallback);
-          updateConnectedDevicesStatus();
-          Log.v(TAG, "Connected to device: " + device.getAddress());
-        } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-          mBluetoothDevices.remove(device);
-          updateConnectedDevicesStatus();
-
-          Log.v(TAG, "Disconnected from device");
-          //추가코드 : 컨넥션 해제되었을 떄 advertisement 다시 시작.
-          mAdvertiser.startAdvertising(mAdvSettings, mAdvData, mAdvScanResponse, mAdvCallback);
-        }
-      } else {
-        mBluetoothDevices.remove(device);
-        updateConnectedDevicesStatus();
-        // There are too many gatt errors (some of them not even in the documentation) so we just
-        // show the error to the user.
-        final String errorMessage = getString(R.string.status_errorWhenConnecting) + ": " + status;
-        runOnUiThread(new Runnable() {
-          @Override
-          public void run() {
-            Toast.makeText(Peripheral.this, errorMessage, Toast.LENGTH_LONG).show();
-          }
-        });
-        Log.e(TAG, "Error when connecting: " + status);
-      }
-    }
-
-    @Override
-    public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
-        BluetoothGattCharacteristic characteristic) {
-      super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-      Log.d(TAG, "Device tried to read characteristic: " + characteristic.getUuid());
-      Log.d(TAG, "Value: " + Arrays.toString(characteristic.getValue()) +  " that is: " + bytesToString(characteristic.getValue()));
-      if (offset != 0) {
-        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset,
-            /* value (optional) */ null);
-        return;
-      }
-      mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS,
-          offset, characteristic.getValue());
-    }
+  // Fragments of the hosted services, in the order their services are added to the GATT server.
+  // They are retained across configuration changes because the GATT server keeps using them.
+  private final ArrayList<ServiceFragment> mServiceFragments = new ArrayList<>();
+  private BluetoothAdapter mBluetoothAdapter;
+  // Set on the UI thread while bound. The fragments also reach it through the delegate methods
+  // from the scheduler thread, so those read it once into a local.
+  private volatile GattServerService mGattServerService;
 
+  private final GattServerService.Listener mGattServerListener = new GattServerService.Listener() {
     @Override
-    public void onNotificationSent(BluetoothDevice device, int status) {
-      super.onNotificationSent(device, status);
-      Log.v(TAG, "Notification sent. Status: " + status);
+    public void onAdvertisingStatusChanged(int statusText) {
+      mAdvStatus.setText(statusText);
     }
 
     @Override
-    public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId,
-        BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded,
-        int offset, byte[] value) {
-      super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite,
-          responseNeeded, offset, value);
-      int status = mCurrentServiceFragment.writeCharacteristic(characteristic, offset, value);
-      Log.v(TAG, "Characteristic Write request: " + Arrays.toString(value) + "/ status: " + status +  " that is: " + bytesToString(value));
-      if (responseNeeded) {
-        mGattServer.sendResponse(device, requestId, status,
-            /* No need to respond with an offset */ 0,
-            /* No need to respond with a value */ null);
-      }
+    public void onConnectedDevicesChanged(int connectedDevices) {
+      mConnectionStatus.setText(getString(R.string.status_devicesConnected) + " "
+          + connectedDevices);
     }
+  };
 
+  private final ServiceConnection mServiceConnection = new ServiceConnection() {
     @Override
-    public void onDescriptorReadRequest(BluetoothDevice device, int requestId,
-        int offset, BluetoothGattDescriptor descriptor) {
-      super.onDescriptorReadRequest(device, requestId, offset, descriptor);
-      Log.d(TAG, "Device tried to read descriptor: " + descriptor.getUuid());
-      Log.d(TAG, "Value: " + Arrays.toString(descriptor.getValue()) +  " that is: " + bytesToString(descriptor.getValue()));
-      if (offset != 0) {
-        mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset,
-            /* value (optional) */ null);
-        return;
-      }
-      mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
-          descriptor.getValue());
+    public void onServiceConnected(ComponentName name, IBinder service) {
+      mGattServerService = ((GattServerService.LocalBinder) service).getService();
+      mGattServerService.setListener(mGattServerListener);
+      startGattServer();
     }
 
     @Override
-    public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
-        BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
-        int offset,
-        byte[] value) {
-      super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded,
-          offset, value);
-      Log.v(TAG, "Descriptor Write Request " + descriptor.getUuid() + " " + Arrays.toString(value)  +  " that is: " + bytesToString(value));
-      int status = BluetoothGatt.GATT_SUCCESS;
-      if (descriptor.getUuid() == CLIENT_CHARACTERISTIC_CONFIGURATION_UUID) {
-        BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
-        boolean supportsNotifications = (characteristic.getProperties() &
-            BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
-        boolean supportsIndications = (characteristic.getProperties() &
-            BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
-
-        if (!(supportsNotifications || supportsIndications)) {
-          status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
-        } else if (value.length != 2) {
-          status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
-        } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
-          status = BluetoothGatt.GATT_SUCCESS;
-          mCurrentServiceFragment.notificationsDisabled(characteristic);
-          descriptor.setValue(value);
-        } else if (supportsNotifications &&
-            Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-          status = BluetoothGatt.GATT_SUCCESS;
-          mCurrentServiceFragment.notificationsEnabled(characteristic, false /* indicate */);
-          descriptor.setValue(value);
-        } else if (supportsIndications &&
-            Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) {
-          status = BluetoothGatt.GATT_SUCCESS;
-          mCurrentServiceFragment.notificationsEnabled(characteristic, true /* indicate */);
-          descriptor.setValue(value);
-        } else {
-          status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
-        }
-      } else {
-        status = BluetoothGatt.GATT_SUCCESS;
-        descriptor.setValue(value);
-      }
-      if (responseNeeded) {
-        mGattServer.sendResponse(device, requestId, status,
-            /* No need to respond with offset */ 0,
-            /* No need to respond with a value */ null);
-      }
+    public void onServiceDisconnected(ComponentName name) {
+      mGattServerService = null;
     }
   };
 
@@ -297,53 +156,55 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
     } else {
       Log.i("권한 테스트", "권한이 있네요");
     }
-    getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
     mAdvStatus = (TextView) findViewById(R.id.textView_advertisingStatus);
     mConnectionStatus = (TextView) findViewById(R.id.textView_connectionStatus);
-    mBluetoothDevices = new HashSet<>();
-    mBluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-    mBluetoothAdapter = mBluetoothManager.getAdapter();
+    mIndicationStatus = (TextView) findViewById(R.id.textView_indicationStatus);
+    BluetoothManager bluetoothManager =
+        (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+    mBluetoothAdapter = bluetoothManager.getAdapter();
 
 
     //정확히 여기서 4가지 서비스 중 한개로 넘어가는 것 ㅇㅇ Peripherals에서 받아온 리스트 인덱스 번호
     //EXTRA_PERIPHERAL_INDEX를 가지고 어떤 서비스로 넘어갈지 판단한다.
-    //If we are not being restored from a previous state then create and add the fragment.
+    //If we are not being restored from a previous state then create and add the fragments.
     if (savedInstanceState == null) {
       int peripheralIndex = getIntent().getIntExtra(Peripherals.EXTRA_PERIPHERAL_INDEX,
           /* default */ -1);
       if (peripheralIndex == 0) {
-        mCurrentServiceFragment = new BatteryServiceFragment();
+        mServiceFragments.add(new BatteryServiceFragment());
       } else if (peripheralIndex == 1) {
-        mCurrentServiceFragment = new HeartRateServiceFragment();
+        mServiceFragments.add(new HeartRateServiceFragment());
       } else if (peripheralIndex == 2) {
-        mCurrentServiceFragment = new HealthThermometerServiceFragment();
+        mServiceFragments.add(new HealthThermometerServiceFragment());
       } else if (peripheralIndex == 3) {
-        mCurrentServiceFragment = new NordicUartServiceFragment();
+        mServiceFragments.add(new NordicUartServiceFragment());
+      } else if (peripheralIndex == Peripherals.ALL_SERVICES_INDEX) {
+        mServiceFragments.add(new BatteryServiceFragment());
+        mServiceFragments.add(new HeartRateServiceFragment());
+        mServiceFragments.add(new HealthThermometerServiceFragment());
+        mServiceFragments.add(new NordicUartServiceFragment());
       } else {
         Log.wtf(TAG, "Service doesn't exist");
       }
-      getFragmentManager()
-          .beginTransaction()
-          .add(R.id.fragment_container, mCurrentServiceFragment, CURRENT_FRAGMENT_TAG)
-          .commit();
+      FragmentTransaction transaction = getFragmentManager().beginTransaction();
+      for (int i = 0; i < mServiceFragments.size(); i++) {
+        ServiceFragment fragment = mServiceFragments.get(i);
+        fragment.setRetainInstance(true);
+        transaction.add(R.id.fragment_container, fragment, SERVICE_FRAGMENT_TAG + i);
+      }
+      transaction.commit();
     } else {
-      mCurrentServiceFragment = (ServiceFragment) getFragmentManager()
-          .findFragmentByTag(CURRENT_FRAGMENT_TAG);
+      ServiceFragment fragment;
+      while ((fragment = (ServiceFragment) getFragmentManager()
+          .findFragmentByTag(SERVICE_FRAGMENT_TAG + mServiceFragments.size())) != null) {
+        mServiceFragments.add(fragment);
+      }
     }
-    mBluetoothGattService = mCurrentServiceFragment.getBluetoothGattService();
-
-    mAdvSettings = new AdvertiseSettings.Builder()
-        .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
-        .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM)
-        .setConnectable(true)
-        .build();
-    mAdvData = new AdvertiseData.Builder()
-        .setIncludeTxPowerLevel(true)
-        .addServiceUuid(mCurrentServiceFragment.getServiceUUID())
-        .build();
-    mAdvScanResponse = new AdvertiseData.Builder()
-        .setIncludeDeviceName(true)
-        .build();
+
+    // Started and not only bound, so the GATT server outlives configuration changes.
+    Intent serviceIntent = new Intent(this, GattServerService.class);
+    startService(serviceIntent);
+    bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
   }
 
   @Override
@@ -353,6 +214,14 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
     return true /* show menu */;
   }
 
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    // The recorder lives in the service and may have been started by a previous activity.
+    menu.findItem(R.id.action_record_session).setChecked(
+        mGattServerService != null && mGattServerService.isRecordingSession());
+    return super.onPrepareOptionsMenu(menu);
+  }
+
   @Override
   protected void onActivityResult(int requestCode, int resultCode, Intent data) {
     super.onActivityResult(requestCode, resultCode, data);
@@ -362,7 +231,7 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
           Toast.makeText(this, R.string.bluetoothAdvertisingNotSupported, Toast.LENGTH_LONG).show();
           Log.e(TAG, "Advertising not supported");
         }
-        onStart();
+        startGattServer();
       } else {
         //TODO(g-ortuno): UX for asking the user to activate bt
         Toast.makeText(this, R.string.bluetoothNotEnabled, Toast.LENGTH_LONG).show();
@@ -372,78 +241,144 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
     }
   }
 
-
-  @Override
-  protected void onStart() {
-    super.onStart();
-    resetStatusViews();
-    // If the user disabled Bluetooth when the app was in the background,
-    // openGattServer() will return null.
-    mGattServer = mBluetoothManager.openGattServer(this, mGattServerCallback);
-    if (mGattServer == null) {
-      ensureBleFeaturesAvailable();
+  private void startGattServer() {
+    if (mGattServerService == null) {
       return;
     }
-    // Add a service for a total of three services (Generic Attribute and Generic Access
-    // are present by default).
-    mGattServer.addService(mBluetoothGattService);
-
-    if (mBluetoothAdapter.isMultipleAdvertisementSupported()) {
-      mAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
-      mAdvertiser.startAdvertising(mAdvSettings, mAdvData, mAdvScanResponse, mAdvCallback);
-    } else {
-      mAdvStatus.setText(R.string.status_noLeAdv);
+    if (!mGattServerService.start(mServiceFragments)) {
+      ensureBleFeaturesAvailable();
     }
   }
 
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
+    if (mGattServerService == null) {
+      return false /* event_consumed */;
+    }
     if (item.getItemId() == R.id.action_disconnect_devices) {
-      disconnectFromDevices();
+      mGattServerService.disconnectFromDevices();
+      return true /* event_consumed */;
+    } else if (item.getItemId() == R.id.action_export_trace) {
+      mGattServerService.exportTrace();
+      return true /* event_consumed */;
+    } else if (item.getItemId() == R.id.action_show_metrics) {
+      startActivity(new Intent(this, GattMetricsActivity.class));
+      return true /* event_consumed */;
+    } else if (item.getItemId() == R.id.action_export_metrics) {
+      mGattServerService.exportMetrics();
+      return true /* event_consumed */;
+    } else if (item.getItemId() == R.id.action_record_session) {
+      boolean record = !item.isChecked();
+      item.setChecked(record);
+      mGattServerService.setRecordingSession(record);
+      return true /* event_consumed */;
+    } else if (item.getItemId() == R.id.action_replay_session) {
+      mGattServerService.replaySession(false /* originalTiming */);
+      return true /* event_consumed */;
+    } else if (item.getItemId() == R.id.action_replay_session_timed) {
+      mGattServerService.replaySession(true /* originalTiming */);
       return true /* event_consumed */;
     }
     return false /* event_consumed */;
   }
 
   @Override
-  protected void onStop() {
-    super.onStop();
-    if (mGattServer != null) {
-      mGattServer.close();
+  protected void onResume() {
+    super.onResume();
+    mMainHandler.post(mRefreshIndicationStatus);
+  }
+
+  @Override
+  protected void onPause() {
+    super.onPause();
+    mMainHandler.removeCallbacks(mRefreshIndicationStatus);
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    if (mGattServerService != null) {
+      mGattServerService.setListener(null);
+      mGattServerService = null;
+    }
+    unbindService(mServiceConnection);
+    if (isFinishing()) {
+      // The service closes the GATT server once it is neither started nor bound.
+      stopService(new Intent(this, GattServerService.class));
+    }
+  }
+
+  private void showIndicationStatus() {
+    GattServerService service = mGattServerService;
+    if (service == null) {
+      return;
+    }
+    IndicationTracker tracker = service.getIndicationTracker();
+    IndicationTracker.Stats stats = tracker.getTotal();
+    LatencyHistogram roundTrip = stats.getRoundTrip();
+    mIndicationStatus.setText(getString(R.string.status_indications, stats.getConfirmed(),
+        tracker.getOutstandingCount(), stats.getTimedOut(),
+        roundTrip.getValueAtPercentile(50) / 1e6, roundTrip.getValueAtPercentile(99) / 1e6));
+  }
+
+  @Override
+  public void sendNotificationToDevices(GattCharacteristic characteristic) {
+    sendNotificationToDevices(characteristic, /* listener */ null);
+  }
+
+  @Override
+  public void sendNotificationToDevices(GattCharacteristic characteristic,
+      NotificationQueue.DeliveryListener listener) {
+    GattServerService service = mGattServerService;
+    if (service != null) {
+      service.sendNotificationToDevices(characteristic, listener);
     }
-    if (mBluetoothAdapter.isEnabled() && mAdvertiser != null) {
-      // If stopAdvertising() gets called before close() a null
-      // pointer exception is raised.
-      mAdvertiser.stopAdvertising(mAdvCallback);
+  }
+
+  @Override
+  public void sendDataToDevices(GattCharacteristic characteristic, byte[] data) {
+    GattServerService service = mGattServerService;
+    if (service != null) {
+      service.sendDataToDevices(characteristic, data);
     }
-    resetStatusViews();
   }
 
   @Override
-  public void sendNotificationToDevices(BluetoothGattCharacteristic characteristic) {
-    boolean indicate = (characteristic.getProperties()
-        & BluetoothGattCharacteristic.PROPERTY_INDICATE)
-        == BluetoothGattCharacteristic.PROPERTY_INDICATE;
-    for (BluetoothDevice device : mBluetoothDevices) {
-      // true for indication (acknowledge) and false for notification (unacknowledge).
-      mGattServer.notifyCharacteristicChanged(device, characteristic, indicate);
+  public NotificationStream startNotificationStream(GattCharacteristic characteristic) {
+    GattServerService service = mGattServerService;
+    if (service == null) {
+      return null;
     }
+    return service.startNotificationStream(characteristic);
   }
 
-  private void resetStatusViews() {
-    mAdvStatus.setText(R.string.status_notAdvertising);
-    updateConnectedDevicesStatus();
+  @Override
+  public StreamSink startStreamSink(GattCharacteristic characteristic) {
+    GattServerService service = mGattServerService;
+    if (service == null) {
+      return null;
+    }
+    return service.startStreamSink(characteristic);
   }
 
-  private void updateConnectedDevicesStatus() {
-    final String message = getString(R.string.status_devicesConnected) + " "
-        + mBluetoothManager.getConnectedDevices(BluetoothGattServer.GATT).size();
-    runOnUiThread(new Runnable() {
-      @Override
-      public void run() {
-        mConnectionStatus.setText(message);
-      }
-    });
+  @Override
+  public HeartRateStream startHeartRateStream(GattCharacteristic characteristic,
+      HeartRateWaveform waveform) {
+    GattServerService service = mGattServerService;
+    if (service == null) {
+      return null;
+    }
+    return service.startHeartRateStream(characteristic, waveform);
+  }
+
+  @Override
+  public MeasurementStore startMeasurementStore(GattCharacteristic characteristic,
+      int capacity) {
+    GattServerService service = mGattServerService;
+    if (service == null) {
+      return null;
+    }
+    return service.startMeasurementStore(characteristic, capacity);
   }
 
   ///////////////////////
@@ -451,18 +386,18 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
   ///////////////////////
 
   //여기서 처음에 디스크립터의 기본 값들 설정해줌
-  public static BluetoothGattDescriptor getClientCharacteristicConfigurationDescriptor() {
-    BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
+  public static GattDescriptor getClientCharacteristicConfigurationDescriptor() {
+    GattDescriptor descriptor = new GattDescriptor(
         CLIENT_CHARACTERISTIC_CONFIGURATION_UUID,
-        (BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        (GattDescriptor.PERMISSION_READ | GattDescriptor.PERMISSION_WRITE));
     descriptor.setValue(new byte[]{0, 0});
     return descriptor;
   }
 
-  public static BluetoothGattDescriptor getCharacteristicUserDescriptionDescriptor(String defaultValue) {
-    BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
+  public static GattDescriptor getCharacteristicUserDescriptionDescriptor(String defaultValue) {
+    GattDescriptor descriptor = new GattDescriptor(
         CHARACTERISTIC_USER_DESCRIPTION_UUID,
-        (BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        (GattDescriptor.PERMISSION_READ | GattDescriptor.PERMISSION_WRITE));
     try {
       descriptor.setValue(defaultValue.getBytes("UTF-8"));
     } finally {
@@ -481,21 +416,4 @@ public class Peripheral extends Activity implements ServiceFragmentDelegate {
       startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
     }
   }
-  private void disconnectFromDevices() {
-    Log.d(TAG, "Disconnecting devices...");
-    for (BluetoothDevice device : mBluetoothManager.getConnectedDevices(
-        BluetoothGattServer.GATT)) {
-      Log.d(TAG, "Devices: " + device.getAddress() + " " + device.getName());
-      mGattServer.cancelConnection(device);
-    }
-  }
-
-  //이건 개인적으로 추가해준 byte array(Ascii array)에서 string으로 변환 함수.
-  public String bytesToString(byte[] value) {
-    String converted = "";
-    for (int i : value) {
-      converted = converted.concat(Character.toString((char) i));
-    }
-    return converted;
-  }
 }
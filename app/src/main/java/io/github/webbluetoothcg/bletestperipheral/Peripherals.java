@@ -29,11 +29,13 @@ import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
 //제일 먼저 시작하는 액티비티.
-//4가지 메뉴를 보여줌
+//4가지 메뉴와 전체 서비스를 함께 띄우는 메뉴를 보여줌
 public class Peripherals extends ListActivity {
 
-  private static final String[] PERIPHERALS_NAMES = new String[]{"Battery", "Heart Rate Monitor", "Health Thermometer", "Nordic Uart"};
+  private static final String[] PERIPHERALS_NAMES = new String[]{"Battery", "Heart Rate Monitor", "Health Thermometer", "Nordic Uart", "All Services"};
   public final static String EXTRA_PERIPHERAL_INDEX = "PERIPHERAL_INDEX";
+  // Hosts every service above in a single GATT server.
+  public final static int ALL_SERVICES_INDEX = 4;
 
   //시작 시에 블루투스 권한 설정이 없어서 오류가 나길래 추가해주었다.
   private static final int MULTIPLE_PERMISSION = 1004;
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shows the values a central writes, repainting at most once per display frame.
+ *
+ * Posting a Runnable to the UI thread for every write floods the main looper once centrals
+ * write hundreds of times per second. Instead, {@link #onValueReceived} only records the latest
+ * value and a few counters, and schedules a single Choreographer frame callback if none is
+ * pending. The frame callback renders the write rate, the totals and the most recent payload.
+ */
+public class ReceiveRateRenderer implements Choreographer.FrameCallback {
+
+  // Minimum time between two updates of the displayed rate, so it doesn't flicker every frame.
+  private static final long RATE_WINDOW_MS = 500;
+
+  private final TextView mTextView;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private final AtomicBoolean mFrameScheduled = new AtomicBoolean();
+  private final Runnable mScheduleFrame = new Runnable() {
+    @Override
+    public void run() {
+      if (mAttached) {
+        Choreographer.getInstance().postFrameCallback(ReceiveRateRenderer.this);
+      } else {
+        mFrameScheduled.set(false);
+      }
+    }
+  };
+  // Repaints once the rate window elapsed without new writes so the rate drops back to zero.
+  private final Runnable mRefresh = new Runnable() {
+    @Override
+    public void run() {
+      if (mFrameScheduled.compareAndSet(false, true)) {
+        mScheduleFrame.run();
+      }
+    }
+  };
+
+  // Written by the receiving thread.
+  private long mWriteCount;
+  private long mByteCount;
+  private byte[] mLatestValue;
+
+  // Only accessed on the UI thread.
+  private volatile boolean mAttached = true;
+  private long mWindowStartMs = SystemClock.uptimeMillis();
+  private long mWindowStartCount;
+  private long mWindowStartBytes;
+  private double mWritesPerSecond;
+  private double mBytesPerSecond;
+
+  public ReceiveRateRenderer(TextView textView) {
+    mTextView = textView;
+  }
+
+  /**
+   * Records a received value. Safe to call from any thread; never blocks on the UI thread.
+   * The array is kept until the next frame and must not be modified afterwards.
+   */
+  public void onValueReceived(byte[] value) {
+    synchronized (this) {
+      mWriteCount++;
+      mByteCount += value.length;
+      mLatestValue = value;
+    }
+    if (mFrameScheduled.compareAndSet(false, true)) {
+      mMainHandler.post(mScheduleFrame);
+    }
+  }
+
+  /**
+   * Stops rendering, e.g. when the view is destroyed. Must be called on the UI thread.
+   */
+  public void detach() {
+    mAttached = false;
+    Choreographer.getInstance().removeFrameCallback(this);
+    mMainHandler.removeCallbacks(mScheduleFrame);
+    mMainHandler.removeCallbacks(mRefresh);
+    mFrameScheduled.set(false);
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    // Clear the flag before reading so a value received while rendering schedules a new frame.
+    mFrameScheduled.set(false);
+    if (!mAttached) {
+      return;
+    }
+    long writeCount;
+    long byteCount;
+    byte[] latestValue;
+    synchronized (this) {
+      writeCount = mWriteCount;
+      byteCount = mByteCount;
+      latestValue = mLatestValue;
+    }
+    long nowMs = SystemClock.uptimeMillis();
+    long elapsedMs = nowMs - mWindowStartMs;
+    if (elapsedMs >= RATE_WINDOW_MS) {
+      mWritesPerSecond = (writeCount - mWindowStartCount) * 1000.0 / elapsedMs;
+      mBytesPerSecond = (byteCount - mWindowStartBytes) * 1000.0 / elapsedMs;
+      mWindowStartMs = nowMs;
+      mWindowStartCount = writeCount;
+      mWindowStartBytes = byteCount;
+    }
+    mTextView.setText(String.format(Locale.US, "%.1f writes/s, %.0f B/s\n%d writes, %d bytes\n%s",
+        mWritesPerSecond, mBytesPerSecond, writeCount, byteCount,
+        Arrays.toString(latestValue)));
+    if (mWritesPerSecond > 0) {
+      mMainHandler.removeCallbacks(mRefresh);
+      mMainHandler.postDelayed(mRefresh, RATE_WINDOW_MS);
+    }
+  }
+}
@@ -17,14 +17,24 @@
 package io.github.webbluetoothcg.bletestperipheral;
 
 import android.app.Fragment;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.os.ParcelUuid;
+import android.os.Handler;
+import android.os.Looper;
 
-public abstract class ServiceFragment extends Fragment{
-  public abstract BluetoothGattService getBluetoothGattService();
-  public abstract ParcelUuid getServiceUUID();
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
+import io.github.webbluetoothcg.bletestperipheral.core.GattServiceHandler;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateStream;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateWaveform;
+import io.github.webbluetoothcg.bletestperipheral.core.MeasurementStore;
+import io.github.webbluetoothcg.bletestperipheral.core.NotificationQueue;
+import io.github.webbluetoothcg.bletestperipheral.core.NotificationStream;
+import io.github.webbluetoothcg.bletestperipheral.core.StreamSink;
+
+public abstract class ServiceFragment extends Fragment implements GattServiceHandler {
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+  @Override
+  public abstract GattService getGattService();
 
   /**
    * Function to communicate to the ServiceFragment that a device wants to write to a
@@ -34,10 +44,11 @@ public abstract class ServiceFragment extends Fragment{
    * return a code appropriately. The ServiceFragment should update the UI to reflect the change.
    * @param characteristic Characteristic to write to
    * @param value Value to write to the characteristic
-   * @return {@link android.bluetooth.BluetoothGatt#GATT_SUCCESS} if the write operation
-   * was completed successfully. See {@link android.bluetooth.BluetoothGatt} for GATT return codes.
+   * @return {@link GattStatus#SUCCESS} if the write operation
+   * was completed successfully. See {@link GattStatus} for GATT return codes.
    */
-  public int writeCharacteristic(BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+  @Override
+  public int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value) {
     throw new UnsupportedOperationException("Method writeCharacteristic not overridden");
   };
 
@@ -48,7 +59,8 @@ public abstract class ServiceFragment extends Fragment{
    * The ServiceFragment should update the UI to reflect the change.
    * @param characteristic Characteristic written to
    */
-  public void notificationsDisabled(BluetoothGattCharacteristic characteristic) {
+  @Override
+  public void notificationsDisabled(GattCharacteristic characteristic) {
     throw new UnsupportedOperationException("Method notificationsDisabled not overridden");
   };
 
@@ -60,15 +72,81 @@ public abstract class ServiceFragment extends Fragment{
    * @param characteristic Characteristic written to
    * @param indicate Boolean that says if it's indicate or notify.
    */
-  public void notificationsEnabled(BluetoothGattCharacteristic characteristic, boolean indicate) {
+  @Override
+  public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
     throw new UnsupportedOperationException("Method notificationsEnabled not overridden");
   };
 
+  /**
+   * Runs the action on the UI thread if the fragment is still attached to an activity by then.
+   *
+   * The GATT server lives in {@link GattServerService}, so requests keep arriving while the
+   * activity is being recreated; UI updates for those are dropped.
+   */
+  protected void runOnUiThread(final Runnable action) {
+    mMainHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (getActivity() != null) {
+          action.run();
+        }
+      }
+    });
+  }
+
   /**
    * This interface must be implemented by activities that contain a ServiceFragment to allow an
    * interaction in the fragment to be communicated to the activity.
    */
   public interface ServiceFragmentDelegate {
-    void sendNotificationToDevices(BluetoothGattCharacteristic characteristic);
+    void sendNotificationToDevices(GattCharacteristic characteristic);
+
+    /**
+     * Same as {@link #sendNotificationToDevices(GattCharacteristic)} but reports the
+     * outcome for every connected device. The listener is called once per device, on the GATT
+     * event loop, after the stack sent the notification or it was dropped.
+     */
+    void sendNotificationToDevices(GattCharacteristic characteristic,
+        NotificationQueue.DeliveryListener listener);
+
+    /**
+     * Sends data that may not fit in a single notification. The data is split into chunks of
+     * ATT_MTU - 3 bytes using the MTU each device negotiated, and the chunks are sent in order.
+     */
+    void sendDataToDevices(GattCharacteristic characteristic, byte[] data);
+
+    /**
+     * Streams MTU-sized packets with a sequence number and a checksum to every device subscribed
+     * to the characteristic, as fast as the link takes them, until the stream is stopped.
+     *
+     * @return The running stream, or null if the GATT server isn't available.
+     */
+    NotificationStream startNotificationStream(GattCharacteristic characteristic);
+
+    /**
+     * Checks the sequence numbers and checksums of the packets centrals write to the
+     * characteristic, per device, instead of handing the writes to the fragment.
+     *
+     * @return The running sink, or null if the GATT server isn't available.
+     */
+    StreamSink startStreamSink(GattCharacteristic characteristic);
+
+    /**
+     * Prepares notifying Heart Rate Measurements generated by the waveform, with RR-Intervals
+     * packed to the ATT_MTU of each device subscribed to the characteristic. A measurement is
+     * sent whenever the stream ticks.
+     *
+     * @return The stream, or null if the GATT server isn't available.
+     */
+    HeartRateStream startHeartRateStream(GattCharacteristic characteristic,
+        HeartRateWaveform waveform);
+
+    /**
+     * Prepares storing the measurements of the characteristic while no device is subscribed to
+     * it and forwarding them, in order, to the next device that subscribes.
+     *
+     * @return The store, or null if the GATT server isn't available.
+     */
+    MeasurementStore startMeasurementStore(GattCharacteristic characteristic, int capacity);
   }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattTrace;
+
+/**
+ * Cost of turning received values into text: the hex dump of the GATT trace, the payload shown
+ * by the UART screen and the UTF-8 decoding of a string value.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteFormattingBenchmark {
+
+  private static final UUID RX_UUID = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
+
+  @Param({"20", "244"})
+  public int valueLength;
+
+  private byte[] mValue;
+  private GattCharacteristic mCharacteristic;
+  private final StringBuilder mBuilder = new StringBuilder();
+
+  @Setup
+  public void setUp() {
+    mValue = new byte[valueLength];
+    for (int i = 0; i < valueLength; i++) {
+      mValue[i] = (byte) ('!' + i % ('~' - '!' + 1));
+    }
+    mCharacteristic = new GattCharacteristic(RX_UUID, GattCharacteristic.PROPERTY_WRITE,
+        GattCharacteristic.PERMISSION_WRITE);
+    mCharacteristic.setValue(mValue);
+  }
+
+  @Benchmark
+  public int tracePayload() {
+    mBuilder.setLength(0);
+    GattTrace.appendPayload(mBuilder, mValue, /* offset */ 0,
+        Math.min(mValue.length, GattTrace.MAX_PAYLOAD_LENGTH),
+        mValue.length > GattTrace.MAX_PAYLOAD_LENGTH);
+    return mBuilder.length();
+  }
+
+  @Benchmark
+  public String arraysToString() {
+    return Arrays.toString(mValue);
+  }
+
+  @Benchmark
+  public String stringValue() {
+    return mCharacteristic.getStringValue(/* offset */ 0);
+  }
+
+  @Benchmark
+  public String newUtf8String() {
+    return new String(mValue, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.webbluetoothcg.bletestperipheral.core.AttributeTable;
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattDescriptor;
+import io.github.webbluetoothcg.bletestperipheral.core.GattPeripheral;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
+import io.github.webbluetoothcg.bletestperipheral.core.GattServiceHandler;
+import io.github.webbluetoothcg.bletestperipheral.core.GattStatus;
+import io.github.webbluetoothcg.bletestperipheral.core.LoopbackGattTransport;
+import io.github.webbluetoothcg.bletestperipheral.core.SubscriptionTable;
+
+/**
+ * Cost of dispatching characteristic and CCCD writes.
+ *
+ * The table benchmarks measure the lookups done for every request on the event loop. The round
+ * trip benchmarks send a request from a loopback central and wait for its response, so they
+ * include the hand-offs to the event loop and back to the link thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+  private static final UUID SERVICE_UUID = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+  private static final UUID TX_UUID = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
+  private static final UUID RX_UUID = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID
+      .fromString("00002902-0000-1000-8000-00805f9b34fb");
+  private static final String DEVICE = "00:11:22:33:44:55";
+  private static final byte[] RX_VALUE = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
+      17, 18, 19, 20};
+
+  private GattService mService;
+  private GattCharacteristic mTxCharacteristic;
+  private GattCharacteristic mRxCharacteristic;
+  private GattDescriptor mTxCccd;
+  private AttributeTable mAttributes;
+  private SubscriptionTable mSubscriptions;
+  private LoopbackGattTransport mTransport;
+  private GattPeripheral mPeripheral;
+  private LoopbackGattTransport.Central mCentral;
+  private boolean mSubscribed;
+
+  private volatile Thread mWaiter;
+  private volatile int mLastStatus = -1;
+  private final LoopbackGattTransport.ResponseListener mResponseListener =
+      new LoopbackGattTransport.ResponseListener() {
+    @Override
+    public void onResponse(int status, int offset, byte[] value) {
+      mLastStatus = status;
+      LockSupport.unpark(mWaiter);
+    }
+  };
+
+  private final GattServiceHandler mHandler = new GattServiceHandler() {
+    @Override
+    public GattService getGattService() {
+      return mService;
+    }
+
+    @Override
+    public int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value) {
+      return GattStatus.SUCCESS;
+    }
+
+    @Override
+    public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
+    }
+
+    @Override
+    public void notificationsDisabled(GattCharacteristic characteristic) {
+    }
+  };
+
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    mService = new GattService(SERVICE_UUID, GattService.SERVICE_TYPE_PRIMARY);
+    mTxCharacteristic = new GattCharacteristic(TX_UUID, GattCharacteristic.PROPERTY_NOTIFY,
+        GattCharacteristic.PERMISSION_READ);
+    mTxCccd = new GattDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID,
+        GattDescriptor.PERMISSION_READ | GattDescriptor.PERMISSION_WRITE);
+    mTxCccd.setValue(new byte[]{0, 0});
+    mTxCharacteristic.addDescriptor(mTxCccd);
+    mRxCharacteristic = new GattCharacteristic(RX_UUID, GattCharacteristic.PROPERTY_WRITE,
+        GattCharacteristic.PERMISSION_WRITE);
+    mService.addCharacteristic(mTxCharacteristic);
+    mService.addCharacteristic(mRxCharacteristic);
+
+    mAttributes = new AttributeTable();
+    mAttributes.register(mService, mHandler);
+    mSubscriptions = new SubscriptionTable();
+
+    mTransport = new LoopbackGattTransport();
+    final CountDownLatch advertising = new CountDownLatch(1);
+    mPeripheral = new GattPeripheral(mTransport, new GattPeripheral.Listener() {
+      @Override
+      public void onAdvertisingStarted() {
+        advertising.countDown();
+      }
+
+      @Override
+      public void onAdvertisingFailed(int errorCode) {
+      }
+
+      @Override
+      public void onAdvertisingStopped() {
+      }
+
+      @Override
+      public void onConnectedDevicesChanged(int connectedDevices) {
+      }
+
+      @Override
+      public void onConnectionError(String device, int status) {
+      }
+    });
+    mPeripheral.start(Collections.singletonList(mHandler));
+    if (!advertising.await(5, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Peripheral didn't start");
+    }
+    mCentral = mTransport.getCentral(DEVICE);
+    mCentral.connect();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mPeripheral.quit();
+    mTransport.quit();
+  }
+
+  @Benchmark
+  public AttributeTable.Entry attributeLookup() {
+    return mAttributes.get(mRxCharacteristic);
+  }
+
+  @Benchmark
+  public boolean cccdSubscriptionToggle() {
+    AttributeTable.Entry entry = mAttributes.get(mTxCccd);
+    mSubscribed = !mSubscribed;
+    mSubscriptions.setSubscription(DEVICE, entry.characteristic, mSubscribed
+        ? SubscriptionTable.SUBSCRIPTION_NOTIFY : SubscriptionTable.SUBSCRIPTION_NONE);
+    return mSubscriptions.hasSubscribers(entry.characteristic);
+  }
+
+  @Benchmark
+  public int writeRoundTrip() {
+    mWaiter = Thread.currentThread();
+    mLastStatus = -1;
+    mCentral.write(mRxCharacteristic, RX_VALUE, /* responseNeeded */ true, mResponseListener);
+    return awaitResponse();
+  }
+
+  @Benchmark
+  public int cccdWriteRoundTrip() {
+    mWaiter = Thread.currentThread();
+    mLastStatus = -1;
+    mSubscribed = !mSubscribed;
+    mCentral.writeDescriptor(mTxCccd, mSubscribed
+        ? GattDescriptor.ENABLE_NOTIFICATION_VALUE : GattDescriptor.DISABLE_NOTIFICATION_VALUE,
+        mResponseListener);
+    return awaitResponse();
+  }
+
+  private int awaitResponse() {
+    int status;
+    while ((status = mLastStatus) == -1) {
+      LockSupport.park(this);
+    }
+    return status;
+  }
+}
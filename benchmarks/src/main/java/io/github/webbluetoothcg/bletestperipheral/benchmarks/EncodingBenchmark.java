@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.HeartRateMeasurement;
+import io.github.webbluetoothcg.bletestperipheral.core.Ieee11073Float;
+import io.github.webbluetoothcg.bletestperipheral.core.TemperatureMeasurement;
+
+/**
+ * Cost of producing the value of each characteristic the peripheral notifies, the way the
+ * service fragments do it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+  private static final UUID BATTERY_LEVEL_UUID = UUID
+      .fromString("00002A19-0000-1000-8000-00805f9b34fb");
+
+  /**
+   * Text typed on the UART screen.
+   */
+  @State(Scope.Thread)
+  public static class UartMessage {
+    // Typical UART message sizes: one default-MTU notification, a 2M PHY notification and the
+    // longest attribute value.
+    @Param({"20", "244", "512"})
+    public int length;
+
+    private String mText;
+
+    @Setup
+    public void setUp() {
+      char[] text = new char[length];
+      Arrays.fill(text, 'a');
+      mText = new String(text);
+    }
+  }
+
+  private GattCharacteristic mBatteryLevelCharacteristic;
+  private int mHeartRate;
+  private float mTemperature;
+  private final byte[] mTemperatureValue = new byte[TemperatureMeasurement.LENGTH];
+  // Alternates between 368 and 14.58 so the decoder sees both exponent signs.
+  private int mFloatBits;
+
+  @Setup
+  public void setUp() {
+    mBatteryLevelCharacteristic = new GattCharacteristic(BATTERY_LEVEL_UUID,
+        GattCharacteristic.PROPERTY_READ | GattCharacteristic.PROPERTY_NOTIFY,
+        GattCharacteristic.PERMISSION_READ);
+    mBatteryLevelCharacteristic.setValue(new byte[]{50});
+    mHeartRate = 60;
+    mTemperature = 37.0f;
+  }
+
+  @Benchmark
+  public byte[] heartRateMeasurement() {
+    mHeartRate = (mHeartRate + 1) & 0xFF;
+    return HeartRateMeasurement.encode(mHeartRate, /* energyExpended */ 1200);
+  }
+
+  @Benchmark
+  public byte[] temperatureMeasurement() {
+    mTemperature += 0.1f;
+    return TemperatureMeasurement.encode(mTemperature);
+  }
+
+  @Benchmark
+  public byte[] temperatureMeasurementInPlace() {
+    mTemperature += 0.1f;
+    TemperatureMeasurement.encode(mTemperature, mTemperatureValue, /* offset */ 0);
+    return mTemperatureValue;
+  }
+
+  @Benchmark
+  public int ieee11073Float() {
+    mTemperature += 0.1f;
+    return Ieee11073Float.toFloat(mTemperature);
+  }
+
+  @Benchmark
+  public int ieee11073FloatFixedExponent() {
+    mTemperature += 0.1f;
+    return Ieee11073Float.toFloat(mTemperature, /* exponent */ -2);
+  }
+
+  @Benchmark
+  public int ieee11073Sfloat() {
+    mTemperature += 0.1f;
+    return Ieee11073Float.toSfloat(mTemperature);
+  }
+
+  @Benchmark
+  public double ieee11073FloatDecode() {
+    mFloatBits = mFloatBits == 0x00000170 ? 0xFE0005B2 : 0x00000170;
+    return Ieee11073Float.floatToDouble(mFloatBits);
+  }
+
+  @Benchmark
+  public byte[] batteryLevel() {
+    mBatteryLevelCharacteristic.setValue(mHeartRate++ % 101, GattCharacteristic.FORMAT_UINT8,
+        /* offset */ 0);
+    return mBatteryLevelCharacteristic.getValue();
+  }
+
+  @Benchmark
+  public byte[] uartPayload(UartMessage message) {
+    return message.mText.getBytes(StandardCharsets.UTF_8);
+  }
+}
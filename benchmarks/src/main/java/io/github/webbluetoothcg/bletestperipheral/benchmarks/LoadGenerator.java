@@ -0,0 +1,406 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.webbluetoothcg.bletestperipheral.core.GattCharacteristic;
+import io.github.webbluetoothcg.bletestperipheral.core.GattDescriptor;
+import io.github.webbluetoothcg.bletestperipheral.core.GattPeripheral;
+import io.github.webbluetoothcg.bletestperipheral.core.GattService;
+import io.github.webbluetoothcg.bletestperipheral.core.GattServiceHandler;
+import io.github.webbluetoothcg.bletestperipheral.core.GattStatus;
+import io.github.webbluetoothcg.bletestperipheral.core.LatencyHistogram;
+import io.github.webbluetoothcg.bletestperipheral.core.LoopbackGattTransport;
+
+/**
+ * Drives the peripheral engine with concurrent virtual centrals over a
+ * {@link LoopbackGattTransport} and reports the throughput and request-to-response latency
+ * percentiles of every operation type.
+ *
+ * Every central runs on its own thread with one request in flight, like a real central, and
+ * picks reads, writes and CCCD toggles according to the request mix. With a rate, requests are
+ * sent on a fixed schedule and their latency is measured from the time they were due, so a
+ * stalled peripheral shows up in the percentiles instead of just slowing the centrals down.
+ *
+ * Options, all optional:
+ * <pre>
+ *   --centrals=1,4,8,16   number of centrals of each run
+ *   --duration=10         measured seconds of each run
+ *   --warmup=2            seconds of each run that are not measured
+ *   --rate=0              requests per second of each central, 0 for as fast as possible
+ *   --mix=50,40,10        relative weights of reads, writes and CCCD toggles
+ *   --payload=20          length of the written values
+ * </pre>
+ */
+public class LoadGenerator {
+
+  private static final UUID SERVICE_UUID = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+  private static final UUID TX_UUID = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
+  private static final UUID RX_UUID = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID
+      .fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  private static final int OP_READ = 0;
+  private static final int OP_WRITE = 1;
+  private static final int OP_CCCD = 2;
+  private static final String[] OP_NAMES = {"read", "write", "cccd"};
+
+  private static final long RESPONSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final int[] mCentralCounts;
+  private final long mDurationNanos;
+  private final long mWarmupNanos;
+  private final int mRate;
+  private final int[] mMix;
+  private final int mPayloadLength;
+
+  public LoadGenerator(int[] centralCounts, int durationSeconds, int warmupSeconds, int rate,
+      int[] mix, int payloadLength) {
+    mCentralCounts = centralCounts;
+    mDurationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+    mWarmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+    mRate = rate;
+    mMix = mix;
+    mPayloadLength = payloadLength;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int[] centralCounts = {1, 4, 8, 16};
+    int duration = 10;
+    int warmup = 2;
+    int rate = 0;
+    int[] mix = {50, 40, 10};
+    int payload = 20;
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Expected --option=value: " + arg);
+      }
+      String name = arg.substring(2, separator);
+      String value = arg.substring(separator + 1);
+      switch (name) {
+        case "centrals":
+          centralCounts = parseInts(value);
+          break;
+        case "duration":
+          duration = Integer.parseInt(value);
+          break;
+        case "warmup":
+          warmup = Integer.parseInt(value);
+          break;
+        case "rate":
+          rate = Integer.parseInt(value);
+          break;
+        case "mix":
+          mix = parseInts(value);
+          if (mix.length != OP_NAMES.length) {
+            throw new IllegalArgumentException("--mix takes a weight for read, write and cccd");
+          }
+          break;
+        case "payload":
+          payload = Integer.parseInt(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + name);
+      }
+    }
+    new LoadGenerator(centralCounts, duration, warmup, rate, mix, payload).run(System.out);
+  }
+
+  public void run(PrintStream out) throws InterruptedException {
+    out.printf(Locale.US, "mix read/write/cccd=%d/%d/%d, rate=%s, payload=%d B, %d s per run%n",
+        mMix[0], mMix[1], mMix[2], mRate == 0 ? "unbounded" : mRate + "/s per central",
+        mPayloadLength, TimeUnit.NANOSECONDS.toSeconds(mDurationNanos));
+    for (int centralCount : mCentralCounts) {
+      report(out, centralCount, runOnce(centralCount));
+    }
+  }
+
+  /*
+   * Runs the given number of centrals against a fresh peripheral and merges their results.
+   */
+  private RunResult runOnce(int centralCount) throws InterruptedException {
+    TestService service = new TestService();
+    LoopbackGattTransport transport = new LoopbackGattTransport();
+    final CountDownLatch advertising = new CountDownLatch(1);
+    GattPeripheral peripheral = new GattPeripheral(transport, new GattPeripheral.Listener() {
+      @Override
+      public void onAdvertisingStarted() {
+        advertising.countDown();
+      }
+
+      @Override
+      public void onAdvertisingFailed(int errorCode) {
+      }
+
+      @Override
+      public void onAdvertisingStopped() {
+      }
+
+      @Override
+      public void onConnectedDevicesChanged(int connectedDevices) {
+      }
+
+      @Override
+      public void onConnectionError(String device, int status) {
+      }
+    });
+    try {
+      peripheral.start(Collections.singletonList(service));
+      if (!advertising.await(5, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Peripheral didn't start advertising");
+      }
+      long startNanos = System.nanoTime();
+      long measureFromNanos = startNanos + mWarmupNanos;
+      long endNanos = measureFromNanos + mDurationNanos;
+      List<VirtualCentral> centrals = new ArrayList<>();
+      for (int i = 0; i < centralCount; i++) {
+        LoopbackGattTransport.Central central = transport.getCentral(
+            String.format(Locale.US, "00:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+        central.connect();
+        centrals.add(new VirtualCentral(central, service, /* seed */ i, measureFromNanos,
+            endNanos));
+      }
+      for (VirtualCentral central : centrals) {
+        central.start();
+      }
+      RunResult result = new RunResult();
+      for (VirtualCentral central : centrals) {
+        central.join();
+        for (int op = 0; op < OP_NAMES.length; op++) {
+          result.latencies[op].add(central.mLatencies[op]);
+          result.errors[op] += central.mErrors[op];
+        }
+        result.timeouts += central.mTimeouts;
+      }
+      return result;
+    } finally {
+      peripheral.quit();
+      transport.quit();
+    }
+  }
+
+  private void report(PrintStream out, int centralCount, RunResult result) {
+    double seconds = mDurationNanos / 1e9;
+    long total = 0;
+    out.printf(Locale.US, "%n%d central(s)%n", centralCount);
+    out.printf(Locale.US, "%-6s %10s %12s %10s %10s %10s %10s %8s%n", "op", "count", "ops/s",
+        "p50 us", "p99 us", "p999 us", "max us", "errors");
+    for (int op = 0; op < OP_NAMES.length; op++) {
+      LatencyHistogram latencies = result.latencies[op];
+      total += latencies.getCount();
+      out.printf(Locale.US, "%-6s %10d %12.0f %10.1f %10.1f %10.1f %10.1f %8d%n", OP_NAMES[op],
+          latencies.getCount(), latencies.getCount() / seconds,
+          latencies.getValueAtPercentile(50) / 1e3, latencies.getValueAtPercentile(99) / 1e3,
+          latencies.getValueAtPercentile(99.9) / 1e3, latencies.getMax() / 1e3,
+          result.errors[op]);
+    }
+    out.printf(Locale.US, "total  %10d %12.0f%n", total, total / seconds);
+    if (result.timeouts > 0) {
+      out.printf(Locale.US, "%d request(s) timed out%n", result.timeouts);
+    }
+  }
+
+  private static int[] parseInts(String value) {
+    String[] parts = value.split(",");
+    int[] ints = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      ints[i] = Integer.parseInt(parts[i].trim());
+    }
+    return ints;
+  }
+
+  private static class RunResult {
+    final LatencyHistogram[] latencies = new LatencyHistogram[OP_NAMES.length];
+    final long[] errors = new long[OP_NAMES.length];
+    long timeouts;
+
+    RunResult() {
+      for (int op = 0; op < OP_NAMES.length; op++) {
+        latencies[op] = new LatencyHistogram();
+      }
+    }
+  }
+
+  /*
+   * A UART-like service: a readable TX characteristic with a CCCD and a writable RX
+   * characteristic. Writes are accepted without doing anything, so the numbers are those of the
+   * engine.
+   */
+  private static class TestService implements GattServiceHandler {
+    final GattService mService = new GattService(SERVICE_UUID, GattService.SERVICE_TYPE_PRIMARY);
+    final GattCharacteristic mTx = new GattCharacteristic(TX_UUID,
+        GattCharacteristic.PROPERTY_READ | GattCharacteristic.PROPERTY_NOTIFY,
+        GattCharacteristic.PERMISSION_READ);
+    final GattCharacteristic mRx = new GattCharacteristic(RX_UUID,
+        GattCharacteristic.PROPERTY_WRITE, GattCharacteristic.PERMISSION_WRITE);
+    final GattDescriptor mTxCccd = new GattDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID,
+        GattDescriptor.PERMISSION_READ | GattDescriptor.PERMISSION_WRITE);
+
+    TestService() {
+      mTxCccd.setValue(new byte[]{0, 0});
+      mTx.addDescriptor(mTxCccd);
+      mTx.setValue(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+          19});
+      mService.addCharacteristic(mTx);
+      mService.addCharacteristic(mRx);
+    }
+
+    @Override
+    public GattService getGattService() {
+      return mService;
+    }
+
+    @Override
+    public int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value) {
+      return GattStatus.SUCCESS;
+    }
+
+    @Override
+    public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
+    }
+
+    @Override
+    public void notificationsDisabled(GattCharacteristic characteristic) {
+    }
+  }
+
+  private class VirtualCentral extends Thread {
+    private final LoopbackGattTransport.Central mCentral;
+    private final TestService mService;
+    private final Random mRandom;
+    private final long mMeasureFromNanos;
+    private final long mEndNanos;
+    private final byte[] mPayload;
+    // Only written by this thread; read after join().
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[OP_NAMES.length];
+    private final long[] mErrors = new long[OP_NAMES.length];
+    private long mTimeouts;
+    private boolean mSubscribed;
+
+    private volatile int mStatus;
+    private volatile boolean mResponded;
+    private final LoopbackGattTransport.ResponseListener mResponseListener =
+        new LoopbackGattTransport.ResponseListener() {
+      @Override
+      public void onResponse(int status, int offset, byte[] value) {
+        mStatus = status;
+        mResponded = true;
+        LockSupport.unpark(VirtualCentral.this);
+      }
+    };
+
+    VirtualCentral(LoopbackGattTransport.Central central, TestService service, long seed,
+        long measureFromNanos, long endNanos) {
+      super("VirtualCentral-" + central.getAddress());
+      mCentral = central;
+      mService = service;
+      mRandom = new Random(seed);
+      mMeasureFromNanos = measureFromNanos;
+      mEndNanos = endNanos;
+      mPayload = new byte[mPayloadLength];
+      mRandom.nextBytes(mPayload);
+      for (int op = 0; op < OP_NAMES.length; op++) {
+        mLatencies[op] = new LatencyHistogram();
+      }
+    }
+
+    @Override
+    public void run() {
+      long intervalNanos = mRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / mRate;
+      long dueNanos = System.nanoTime();
+      while (true) {
+        if (intervalNanos > 0) {
+          long waitNanos;
+          while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(waitNanos);
+          }
+        } else {
+          dueNanos = System.nanoTime();
+        }
+        if (dueNanos >= mEndNanos) {
+          return;
+        }
+        int op = pickOperation();
+        mResponded = false;
+        send(op);
+        if (!awaitResponse()) {
+          if (dueNanos >= mMeasureFromNanos) {
+            mTimeouts++;
+          }
+          // The response may still come and would be taken for the one of the next request.
+          return;
+        }
+        long latencyNanos = System.nanoTime() - dueNanos;
+        if (dueNanos >= mMeasureFromNanos) {
+          mLatencies[op].record(latencyNanos);
+          if (mStatus != GattStatus.SUCCESS) {
+            mErrors[op]++;
+          }
+        }
+        dueNanos += intervalNanos;
+      }
+    }
+
+    private int pickOperation() {
+      int total = mMix[OP_READ] + mMix[OP_WRITE] + mMix[OP_CCCD];
+      int pick = mRandom.nextInt(total);
+      if (pick < mMix[OP_READ]) {
+        return OP_READ;
+      }
+      return pick < mMix[OP_READ] + mMix[OP_WRITE] ? OP_WRITE : OP_CCCD;
+    }
+
+    private void send(int op) {
+      switch (op) {
+        case OP_READ:
+          mCentral.read(mService.mTx, /* offset */ 0, mResponseListener);
+          break;
+        case OP_WRITE:
+          mCentral.write(mService.mRx, mPayload, /* responseNeeded */ true, mResponseListener);
+          break;
+        default:
+          mSubscribed = !mSubscribed;
+          mCentral.writeDescriptor(mService.mTxCccd, mSubscribed
+              ? GattDescriptor.ENABLE_NOTIFICATION_VALUE
+              : GattDescriptor.DISABLE_NOTIFICATION_VALUE, mResponseListener);
+      }
+    }
+
+    private boolean awaitResponse() {
+      long deadline = System.nanoTime() + RESPONSE_TIMEOUT_NANOS;
+      while (!mResponded) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        LockSupport.parkNanos(this, remaining);
+      }
+      return true;
+    }
+  }
+}
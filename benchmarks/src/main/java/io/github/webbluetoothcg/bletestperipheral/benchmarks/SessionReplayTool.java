@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.webbluetoothcg.bletestperipheral.core.GattPeripheral;
+import io.github.webbluetoothcg.bletestperipheral.core.LoopbackGattTransport;
+import io.github.webbluetoothcg.bletestperipheral.core.SessionReader;
+import io.github.webbluetoothcg.bletestperipheral.core.SessionReplay;
+
+/**
+ * Replays a session recorded on a device into the peripheral engine on the JVM and prints how
+ * the responses and latencies compare with the original ones, as a regression benchmark.
+ *
+ * The services of the app need Android, so they are stood in for by the stub services of
+ * {@link SessionReplay#createStubServices}.
+ *
+ * Options:
+ * <pre>
+ *   --session=DIR         directory of the recording, as pulled from the device (required)
+ *   --timing=fast         "original" to keep the recorded timing, "fast" for none
+ *   --iterations=1        number of replays, each against a fresh peripheral
+ * </pre>
+ */
+public class SessionReplayTool {
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    File session = null;
+    boolean originalTiming = false;
+    int iterations = 1;
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Expected --option=value: " + arg);
+      }
+      String name = arg.substring(2, separator);
+      String value = arg.substring(separator + 1);
+      switch (name) {
+        case "session":
+          session = new File(value);
+          break;
+        case "timing":
+          if (!value.equals("original") && !value.equals("fast")) {
+            throw new IllegalArgumentException("--timing takes original or fast: " + value);
+          }
+          originalTiming = value.equals("original");
+          break;
+        case "iterations":
+          iterations = Integer.parseInt(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + name);
+      }
+    }
+    if (session == null) {
+      throw new IllegalArgumentException("--session is required");
+    }
+    List<SessionReplay.Request> requests = SessionReplay.load(new SessionReader(session));
+    System.out.printf(Locale.US, "%d requests in %s, %s timing%n", requests.size(), session,
+        originalTiming ? "original" : "no");
+    Writer out = new OutputStreamWriter(System.out);
+    for (int i = 0; i < iterations; i++) {
+      out.append(String.format(Locale.US, "%niteration %d%n", i + 1));
+      replayOnce(requests, originalTiming).dump(out);
+      out.flush();
+    }
+  }
+
+  private static SessionReplay.Report replayOnce(List<SessionReplay.Request> requests,
+      boolean originalTiming) throws InterruptedException {
+    LoopbackGattTransport transport = new LoopbackGattTransport();
+    final CountDownLatch advertising = new CountDownLatch(1);
+    GattPeripheral peripheral = new GattPeripheral(transport, new GattPeripheral.Listener() {
+      @Override
+      public void onAdvertisingStarted() {
+        advertising.countDown();
+      }
+
+      @Override
+      public void onAdvertisingFailed(int errorCode) {
+      }
+
+      @Override
+      public void onAdvertisingStopped() {
+      }
+
+      @Override
+      public void onConnectedDevicesChanged(int connectedDevices) {
+      }
+
+      @Override
+      public void onConnectionError(String device, int status) {
+      }
+    });
+    try {
+      peripheral.start(SessionReplay.createStubServices(requests));
+      if (!advertising.await(5, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Peripheral didn't start advertising");
+      }
+      return new SessionReplay(transport).replay(requests, originalTiming);
+    } finally {
+      peripheral.quit();
+      transport.quit();
+    }
+  }
+}
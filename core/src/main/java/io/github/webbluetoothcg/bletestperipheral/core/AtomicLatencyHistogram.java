@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe version of {@link LatencyHistogram} for values recorded from several threads at
+ * once, with the same buckets.
+ *
+ * Recording is lock-free and never allocates. {@link #snapshot} copies the counters into a
+ * plain LatencyHistogram for the percentiles; a snapshot taken while values are being recorded
+ * may miss the sum or the extremes of the values being recorded at that moment.
+ */
+public class AtomicLatencyHistogram {
+
+  private final AtomicLongArray mCounts = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong mMax = new AtomicLong();
+
+  /**
+   * @param value Duration in nanoseconds. Negative values are recorded as 0.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    mCounts.incrementAndGet(LatencyHistogram.bucketIndex(value));
+    mSum.addAndGet(value);
+    long min;
+    while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+      // Lost the race against another value, try again.
+    }
+    long max;
+    while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+      // Lost the race against another value, try again.
+    }
+  }
+
+  public void reset() {
+    for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+      mCounts.set(i, 0);
+    }
+    mSum.set(0);
+    mMin.set(Long.MAX_VALUE);
+    mMax.set(0);
+  }
+
+  public LatencyHistogram snapshot() {
+    long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = mCounts.get(i);
+    }
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.set(counts, mSum.get(), mMin.get(), mMax.get());
+    return histogram;
+  }
+}
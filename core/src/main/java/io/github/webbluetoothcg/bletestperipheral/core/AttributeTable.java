@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.IdentityHashMap;
+import java.util.UUID;
+
+/**
+ * Dispatch table from the characteristic and descriptor instances of the registered services to
+ * the GattServiceHandler that handles them.
+ *
+ * The stack hands back the same instances that were added to the GATT server, so requests are
+ * routed with a single identity lookup instead of comparing UUIDs. The table is built when a
+ * service is registered and replaced as a whole, so lookups never take a lock.
+ */
+public class AttributeTable {
+
+  public static final int KIND_CHARACTERISTIC = 0;
+  /** Client Characteristic Configuration Descriptor. */
+  public static final int KIND_CCCD = 1;
+  public static final int KIND_DESCRIPTOR = 2;
+
+  private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUID
+      .fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  /**
+   * What the table knows about a single attribute.
+   */
+  public static class Entry {
+    public final int kind;
+    /** The characteristic itself, or the characteristic a descriptor belongs to. */
+    public final GattCharacteristic characteristic;
+    public final GattServiceHandler handler;
+
+    Entry(int kind, GattCharacteristic characteristic, GattServiceHandler handler) {
+      this.kind = kind;
+      this.characteristic = characteristic;
+      this.handler = handler;
+    }
+  }
+
+  private volatile IdentityHashMap<Object, Entry> mEntries = new IdentityHashMap<>();
+
+  /**
+   * Adds the characteristics and descriptors of a service, routing them to the handler.
+   */
+  public synchronized void register(GattService service, GattServiceHandler handler) {
+    IdentityHashMap<Object, Entry> entries = new IdentityHashMap<>(mEntries);
+    for (GattCharacteristic characteristic : service.getCharacteristics()) {
+      entries.put(characteristic, new Entry(KIND_CHARACTERISTIC, characteristic, handler));
+      for (GattDescriptor descriptor : characteristic.getDescriptors()) {
+        int kind = CLIENT_CHARACTERISTIC_CONFIGURATION_UUID.equals(descriptor.getUuid())
+            ? KIND_CCCD : KIND_DESCRIPTOR;
+        entries.put(descriptor, new Entry(kind, characteristic, handler));
+      }
+    }
+    mEntries = entries;
+  }
+
+  public synchronized void clear() {
+    mEntries = new IdentityHashMap<>();
+  }
+
+  /**
+   * @param attribute Characteristic or descriptor received in a GATT callback.
+   * @return The entry for the attribute, or null if it doesn't belong to a registered service.
+   */
+  public Entry get(Object attribute) {
+    return mEntries.get(attribute);
+  }
+}
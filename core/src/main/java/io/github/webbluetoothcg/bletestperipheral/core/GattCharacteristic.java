@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Characteristic of a {@link GattService}. Mirrors
+ * {@code android.bluetooth.BluetoothGattCharacteristic}, including its little-endian value
+ * encoding helpers, without depending on Android.
+ *
+ * The value array is replaced, not modified in place, by {@link #setValue(byte[])}; the integer
+ * and float setters write into the current array like Android's do.
+ */
+public class GattCharacteristic {
+
+  public static final int PROPERTY_BROADCAST = 0x01;
+  public static final int PROPERTY_READ = 0x02;
+  public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+  public static final int PROPERTY_WRITE = 0x08;
+  public static final int PROPERTY_NOTIFY = 0x10;
+  public static final int PROPERTY_INDICATE = 0x20;
+
+  public static final int PERMISSION_READ = 0x01;
+  public static final int PERMISSION_WRITE = 0x10;
+
+  // The low nibble of a format is its length in bytes.
+  public static final int FORMAT_UINT8 = 0x11;
+  public static final int FORMAT_UINT16 = 0x12;
+  public static final int FORMAT_UINT32 = 0x14;
+  public static final int FORMAT_SINT8 = 0x21;
+  public static final int FORMAT_SINT16 = 0x22;
+  public static final int FORMAT_SINT32 = 0x24;
+  public static final int FORMAT_SFLOAT = 0x32;
+  public static final int FORMAT_FLOAT = 0x34;
+
+  private final UUID mUuid;
+  private final int mProperties;
+  private final int mPermissions;
+  private final ArrayList<GattDescriptor> mDescriptors = new ArrayList<>();
+  private GattService mService;
+  private volatile byte[] mValue;
+
+  public GattCharacteristic(UUID uuid, int properties, int permissions) {
+    mUuid = uuid;
+    mProperties = properties;
+    mPermissions = permissions;
+  }
+
+  public UUID getUuid() {
+    return mUuid;
+  }
+
+  public int getProperties() {
+    return mProperties;
+  }
+
+  public int getPermissions() {
+    return mPermissions;
+  }
+
+  public GattService getService() {
+    return mService;
+  }
+
+  void setService(GattService service) {
+    mService = service;
+  }
+
+  public boolean addDescriptor(GattDescriptor descriptor) {
+    mDescriptors.add(descriptor);
+    descriptor.setCharacteristic(this);
+    return true;
+  }
+
+  public List<GattDescriptor> getDescriptors() {
+    return mDescriptors;
+  }
+
+  /**
+   * @return The first descriptor with the given UUID, or null.
+   */
+  public GattDescriptor getDescriptor(UUID uuid) {
+    for (GattDescriptor descriptor : mDescriptors) {
+      if (descriptor.getUuid().equals(uuid)) {
+        return descriptor;
+      }
+    }
+    return null;
+  }
+
+  public byte[] getValue() {
+    return mValue;
+  }
+
+  public boolean setValue(byte[] value) {
+    mValue = value;
+    return true;
+  }
+
+  public boolean setValue(String value) {
+    mValue = value.getBytes(StandardCharsets.UTF_8);
+    return true;
+  }
+
+  /**
+   * Writes an integer at the given offset, allocating the value if there is none yet.
+   *
+   * @param formatType One of the FORMAT_UINT* or FORMAT_SINT* constants.
+   * @return false if the value is too short or the format is not an integer format.
+   */
+  @SuppressWarnings("fallthrough")
+  public boolean setValue(int value, int formatType, int offset) {
+    byte[] bytes = prepareValue(formatType, offset);
+    if (bytes == null) {
+      return false;
+    }
+    switch (formatType) {
+      case FORMAT_SINT8:
+        value = intToSignedBits(value, 8);
+        // Fall through
+      case FORMAT_UINT8:
+        bytes[offset] = (byte) (value & 0xFF);
+        break;
+      case FORMAT_SINT16:
+        value = intToSignedBits(value, 16);
+        // Fall through
+      case FORMAT_UINT16:
+        bytes[offset++] = (byte) (value & 0xFF);
+        bytes[offset] = (byte) ((value >> 8) & 0xFF);
+        break;
+      case FORMAT_SINT32:
+        value = intToSignedBits(value, 32);
+        // Fall through
+      case FORMAT_UINT32:
+        bytes[offset++] = (byte) (value & 0xFF);
+        bytes[offset++] = (byte) ((value >> 8) & 0xFF);
+        bytes[offset++] = (byte) ((value >> 16) & 0xFF);
+        bytes[offset] = (byte) ((value >> 24) & 0xFF);
+        break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Writes an IEEE-11073 float, value = mantissa * 10^exponent, at the given offset.
+   *
+   * @param formatType {@link #FORMAT_SFLOAT} or {@link #FORMAT_FLOAT}.
+   * @return false if the value is too short or the format is not a float format.
+   */
+  public boolean setValue(int mantissa, int exponent, int formatType, int offset) {
+    byte[] bytes = prepareValue(formatType, offset);
+    if (bytes == null) {
+      return false;
+    }
+    switch (formatType) {
+      case FORMAT_SFLOAT:
+        mantissa = intToSignedBits(mantissa, 12);
+        exponent = intToSignedBits(exponent, 4);
+        bytes[offset++] = (byte) (mantissa & 0xFF);
+        bytes[offset] = (byte) (((mantissa >> 8) & 0x0F) | ((exponent & 0x0F) << 4));
+        break;
+      case FORMAT_FLOAT:
+        mantissa = intToSignedBits(mantissa, 24);
+        exponent = intToSignedBits(exponent, 8);
+        bytes[offset++] = (byte) (mantissa & 0xFF);
+        bytes[offset++] = (byte) ((mantissa >> 8) & 0xFF);
+        bytes[offset++] = (byte) ((mantissa >> 16) & 0xFF);
+        bytes[offset] = (byte) (exponent & 0xFF);
+        break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return The integer at the given offset, or null if the value is too short.
+   */
+  public Integer getIntValue(int formatType, int offset) {
+    byte[] bytes = mValue;
+    if (bytes == null || offset + getTypeLen(formatType) > bytes.length) {
+      return null;
+    }
+    switch (formatType) {
+      case FORMAT_UINT8:
+        return bytes[offset] & 0xFF;
+      case FORMAT_UINT16:
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+      case FORMAT_UINT32:
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+            | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+      case FORMAT_SINT8:
+        return (int) bytes[offset];
+      case FORMAT_SINT16:
+        return (bytes[offset] & 0xFF) | bytes[offset + 1] << 8;
+      case FORMAT_SINT32:
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+            | (bytes[offset + 2] & 0xFF) << 16 | bytes[offset + 3] << 24;
+      default:
+        return null;
+    }
+  }
+
+  public String getStringValue(int offset) {
+    byte[] bytes = mValue;
+    if (bytes == null || offset > bytes.length) {
+      return null;
+    }
+    return new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8);
+  }
+
+  private byte[] prepareValue(int formatType, int offset) {
+    int length = offset + getTypeLen(formatType);
+    byte[] bytes = mValue;
+    if (bytes == null) {
+      bytes = new byte[length];
+      mValue = bytes;
+    }
+    return length > bytes.length ? null : bytes;
+  }
+
+  private static int getTypeLen(int formatType) {
+    return formatType & 0xF;
+  }
+
+  private static int intToSignedBits(int value, int size) {
+    if (value < 0) {
+      value = (1 << (size - 1)) + (value & ((1 << (size - 1)) - 1));
+    }
+    return value;
+  }
+}
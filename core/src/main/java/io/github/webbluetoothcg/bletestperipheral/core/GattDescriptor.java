@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.UUID;
+
+/**
+ * Descriptor of a {@link GattCharacteristic}. Mirrors
+ * {@code android.bluetooth.BluetoothGattDescriptor} without depending on Android.
+ */
+public class GattDescriptor {
+
+  public static final int PERMISSION_READ = 0x01;
+  public static final int PERMISSION_WRITE = 0x10;
+
+  public static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+  public static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+  public static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+  private final UUID mUuid;
+  private final int mPermissions;
+  private GattCharacteristic mCharacteristic;
+  private volatile byte[] mValue;
+
+  public GattDescriptor(UUID uuid, int permissions) {
+    mUuid = uuid;
+    mPermissions = permissions;
+  }
+
+  public UUID getUuid() {
+    return mUuid;
+  }
+
+  public int getPermissions() {
+    return mPermissions;
+  }
+
+  public GattCharacteristic getCharacteristic() {
+    return mCharacteristic;
+  }
+
+  void setCharacteristic(GattCharacteristic characteristic) {
+    mCharacteristic = characteristic;
+  }
+
+  public byte[] getValue() {
+    return mValue;
+  }
+
+  public boolean setValue(byte[] value) {
+    mValue = value;
+    return true;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single thread that owns the GATT server state and handles every GATT event in order.
+ *
+ * Bluetooth callbacks arrive on a binder thread that should return as fast as possible, so they
+ * only hand the work over to this loop. The queue is bounded: {@link #offer} fails instead of
+ * growing without limit, which lets the caller push back (e.g. answer a request with an error)
+ * when the loop falls behind. Events that must never be lost, like connection changes, use
+ * {@link #post}, which waits for room instead; only the transport should, since a thread that
+ * must stay responsive (the UI, a timer) would stall behind a full queue. Those use
+ * {@link #offer} or {@link #tryExecute} and count on the next call to catch up.
+ *
+ * Once {@link #quit} is called, every task is refused, and counted as rejected, instead of
+ * being silently dropped.
+ */
+public class GattEventLoop {
+
+  private static final Logger LOG = Logger.getLogger(GattEventLoop.class.getName());
+
+  public static final int DEFAULT_CAPACITY = 256;
+
+  private final ArrayBlockingQueue<Runnable> mQueue;
+  private final Thread mThread;
+  private final AtomicLong mRejectedCount = new AtomicLong();
+  private volatile boolean mQuit;
+  // Set by the loop once it stops taking tasks, before it runs the ones still queued.
+  private volatile boolean mTerminated;
+
+  public GattEventLoop(String name) {
+    this(name, DEFAULT_CAPACITY);
+  }
+
+  public GattEventLoop(String name, int capacity) {
+    mQueue = new ArrayBlockingQueue<>(capacity);
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, name);
+    mThread.start();
+  }
+
+  /**
+   * Queues a task without blocking.
+   *
+   * @return false if the queue is full or the loop has quit, and the task was not queued.
+   */
+  public boolean offer(Runnable task) {
+    if (mQuit || !mQueue.offer(task) || !checkNotTerminated(task)) {
+      mRejectedCount.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Queues a task, waiting for room if the queue is full.
+   *
+   * @return false if the loop has quit: the task will never run.
+   */
+  public boolean post(Runnable task) {
+    if (mQuit) {
+      mRejectedCount.incrementAndGet();
+      return false;
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        mQueue.put(task);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (!checkNotTerminated(task)) {
+      mRejectedCount.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Runs the task right away if called from the loop, queues it with {@link #post} otherwise.
+   *
+   * @return false if the loop has quit: the task will never run.
+   */
+  public boolean execute(Runnable task) {
+    if (isCurrentThread()) {
+      task.run();
+      return true;
+    }
+    return post(task);
+  }
+
+  /**
+   * Runs the task right away if called from the loop, queues it with {@link #offer} otherwise.
+   * Never blocks.
+   *
+   * @return false if the queue is full or the loop has quit, and the task will not run.
+   */
+  public boolean tryExecute(Runnable task) {
+    if (isCurrentThread()) {
+      task.run();
+      return true;
+    }
+    return offer(task);
+  }
+
+  public boolean isCurrentThread() {
+    return Thread.currentThread() == mThread;
+  }
+
+  /**
+   * @return Number of tasks rejected because the queue was full or the loop was quitting.
+   */
+  public long getRejectedCount() {
+    return mRejectedCount.get();
+  }
+
+  /**
+   * Stops the loop after the tasks already queued have run.
+   */
+  public void quit() {
+    if (mQuit) {
+      return;
+    }
+    mQuit = true;
+    // Wakes the loop up if it is waiting on an empty queue.
+    mQueue.offer(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+  }
+
+  /*
+   * Called after queueing the task. If the loop has already stopped, it either ran the task
+   * while draining the queue or never will: takes the task back in that case.
+   *
+   * @return false if the task was taken back.
+   */
+  private boolean checkNotTerminated(Runnable task) {
+    return !mTerminated || !mQueue.remove(task);
+  }
+
+  private void loop() {
+    while (true) {
+      Runnable task;
+      try {
+        task = mQueue.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+      runTask(task);
+      if (mQuit && mQueue.isEmpty()) {
+        break;
+      }
+    }
+    // Tasks queued by callers that saw the loop running just before it quit still run; the
+    // ones queued later are taken back by their caller.
+    mTerminated = true;
+    Runnable task;
+    while ((task = mQueue.poll()) != null) {
+      runTask(task);
+    }
+  }
+
+  private static void runTask(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      // One failing handler shouldn't stop the loop and leave the transport blocked on a full
+      // queue.
+      LOG.log(Level.WARNING, "Event loop task failed", e);
+    }
+  }
+}
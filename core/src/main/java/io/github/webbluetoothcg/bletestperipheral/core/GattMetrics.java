@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counters and latency histograms of every GATT callback, for all devices together, per device
+ * and per attribute.
+ *
+ * Events are the {@link GattTrace} event types. The latency of a request (read, write,
+ * descriptor write, prepared and executed write) runs from the moment the transport delivered it
+ * to the moment its response was sent; that of a connection or MTU change until it was handled.
+ * The latency of a notification runs from the moment it was handed to the transport until the
+ * transport reported it as sent, or for an indication as confirmed.
+ *
+ * Recording is lock-free and allocates nothing once the device and attribute of an event have
+ * been seen. All timestamps come from {@link System#nanoTime()}.
+ */
+public class GattMetrics {
+
+  // One more than the highest GattTrace event type.
+  private static final int EVENT_TYPE_COUNT = GattTrace.EVENT_REQUEST_REJECTED + 1;
+
+  /**
+   * Counters of one event type.
+   */
+  public static class Metric {
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mLastTimestampNanos = new AtomicLong();
+    private final AtomicLatencyHistogram mLatency = new AtomicLatencyHistogram();
+
+    void record(boolean error, long timestampNanos, long latencyNanos) {
+      mCount.incrementAndGet();
+      if (error) {
+        mErrors.incrementAndGet();
+      }
+      mLastTimestampNanos.set(timestampNanos);
+      mLatency.record(latencyNanos);
+    }
+
+    public long getCount() {
+      return mCount.get();
+    }
+
+    /**
+     * @return Number of events whose status wasn't {@link GattStatus#SUCCESS}.
+     */
+    public long getErrors() {
+      return mErrors.get();
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of the latest event.
+     */
+    public long getLastTimestampNanos() {
+      return mLastTimestampNanos.get();
+    }
+
+    /**
+     * @return A snapshot of the latencies in nanoseconds.
+     */
+    public LatencyHistogram getLatency() {
+      return mLatency.snapshot();
+    }
+  }
+
+  private final AtomicReferenceArray<Metric> mTotals =
+      new AtomicReferenceArray<>(EVENT_TYPE_COUNT);
+  private final ConcurrentHashMap<String, AtomicReferenceArray<Metric>> mDevices =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<UUID, AtomicReferenceArray<Metric>> mAttributes =
+      new ConcurrentHashMap<>();
+  private volatile long mStartNanos = System.nanoTime();
+
+  /**
+   * @param type One of the GattTrace.EVENT_* constants.
+   * @param device Address of the device, or null.
+   * @param uuid UUID of the attribute, or null.
+   */
+  public void record(int type, String device, UUID uuid, int status, long latencyNanos) {
+    if (type <= 0 || type >= EVENT_TYPE_COUNT) {
+      return;
+    }
+    boolean error = status != GattStatus.SUCCESS;
+    long now = System.nanoTime();
+    getMetric(mTotals, type).record(error, now, latencyNanos);
+    if (device != null) {
+      getMetric(getMetrics(mDevices, device), type).record(error, now, latencyNanos);
+    }
+    if (uuid != null) {
+      getMetric(getMetrics(mAttributes, uuid), type).record(error, now, latencyNanos);
+    }
+  }
+
+  /**
+   * @return The counters of every device and attribute together, or null if the event never
+   * happened.
+   */
+  public Metric getTotal(int type) {
+    return mTotals.get(type);
+  }
+
+  /**
+   * @return The counters of a device, or null if the event never happened for it.
+   */
+  public Metric getDeviceMetric(String device, int type) {
+    AtomicReferenceArray<Metric> metrics = mDevices.get(device);
+    return metrics == null ? null : metrics.get(type);
+  }
+
+  /**
+   * @return The counters of an attribute, or null if the event never happened for it.
+   */
+  public Metric getAttributeMetric(UUID uuid, int type) {
+    AtomicReferenceArray<Metric> metrics = mAttributes.get(uuid);
+    return metrics == null ? null : metrics.get(type);
+  }
+
+  public long getStartNanos() {
+    return mStartNanos;
+  }
+
+  /**
+   * Forgets every counter. Events recorded concurrently may or may not be kept.
+   */
+  public void reset() {
+    for (int i = 0; i < EVENT_TYPE_COUNT; i++) {
+      mTotals.set(i, null);
+    }
+    mDevices.clear();
+    mAttributes.clear();
+    mStartNanos = System.nanoTime();
+  }
+
+  /**
+   * Writes a snapshot of every counter as text: a header with the monotonic timestamp of the
+   * snapshot, then one line per event type for all devices, each device and each attribute, with
+   * the count, the errors, latency percentiles in microseconds and the age of the latest event.
+   */
+  public void dump(Writer out) throws IOException {
+    long now = System.nanoTime();
+    out.append(String.format(Locale.US, "# GATT metrics at %d ns, %.3f s since reset\n", now,
+        (now - mStartNanos) / 1e9));
+    out.append(String.format(Locale.US, "%-22s %10s %8s %10s %10s %10s %10s %10s\n", "event",
+        "count", "errors", "p50 us", "p99 us", "p99.9 us", "max us", "last s"));
+    dumpMetrics(out, "all devices", mTotals, now);
+    ArrayList<String> devices = new ArrayList<>(mDevices.keySet());
+    Collections.sort(devices);
+    for (String device : devices) {
+      dumpMetrics(out, "device " + device, mDevices.get(device), now);
+    }
+    ArrayList<UUID> uuids = new ArrayList<>(mAttributes.keySet());
+    Collections.sort(uuids);
+    for (UUID uuid : uuids) {
+      dumpMetrics(out, "attribute " + uuid, mAttributes.get(uuid), now);
+    }
+  }
+
+  private static void dumpMetrics(Writer out, String title, AtomicReferenceArray<Metric> metrics,
+      long now) throws IOException {
+    if (metrics == null) {
+      return;
+    }
+    out.append('[').append(title).append("]\n");
+    for (int type = 1; type < EVENT_TYPE_COUNT; type++) {
+      Metric metric = metrics.get(type);
+      if (metric == null) {
+        continue;
+      }
+      LatencyHistogram latency = metric.getLatency();
+      out.append(String.format(Locale.US, "%-22s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.3f\n",
+          GattTrace.getEventName(type), metric.getCount(), metric.getErrors(),
+          latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(99) / 1e3,
+          latency.getValueAtPercentile(99.9) / 1e3, latency.getMax() / 1e3,
+          (now - metric.getLastTimestampNanos()) / 1e9));
+    }
+  }
+
+  private static <K> AtomicReferenceArray<Metric> getMetrics(
+      ConcurrentHashMap<K, AtomicReferenceArray<Metric>> map, K key) {
+    AtomicReferenceArray<Metric> metrics = map.get(key);
+    if (metrics == null) {
+      metrics = new AtomicReferenceArray<>(EVENT_TYPE_COUNT);
+      AtomicReferenceArray<Metric> previous = map.putIfAbsent(key, metrics);
+      if (previous != null) {
+        metrics = previous;
+      }
+    }
+    return metrics;
+  }
+
+  private static Metric getMetric(AtomicReferenceArray<Metric> metrics, int type) {
+    while (true) {
+      Metric metric = metrics.get(type);
+      if (metric != null) {
+        return metric;
+      }
+      // Another thread may create it at the same time, or reset() clear it again.
+      metric = new Metric();
+      if (metrics.compareAndSet(type, null, metric)) {
+        return metric;
+      }
+    }
+  }
+}
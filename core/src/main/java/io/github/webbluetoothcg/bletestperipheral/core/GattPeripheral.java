@@ -0,0 +1,1043 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The peripheral engine: serves the requests of every connected central for the hosted services
+ * and sends their notifications, on top of any {@link GattTransport}.
+ *
+ * It owns the GATT event loop and the per-device state (MTUs, CCCD subscriptions, notification,
+ * prepared write and long read queues) and dispatches writes to the {@link GattServiceHandler}
+ * of each service. It has no Android dependency: the app runs it on the Bluetooth stack through
+ * its own transport, and {@link LoopbackGattTransport} runs it on a plain JVM.
+ */
+public class GattPeripheral {
+
+  private static final Logger LOG = Logger.getLogger(GattPeripheral.class.getName());
+
+  // ATT_MTU every connection starts with until the central negotiates a bigger one.
+  private static final int DEFAULT_MTU = 23;
+  // Opcode (1 byte) + attribute handle (2 bytes) of a Handle Value Notification/Indication.
+  static final int NOTIFICATION_HEADER_LENGTH = 3;
+  // Indications time out this much later than the timeout at most.
+  private static final long INDICATION_TIMEOUT_CHECK_INTERVAL_NANOS = 250000000L;
+
+  /**
+   * Receives the status of the peripheral, on the transport or event loop thread.
+   */
+  public interface Listener {
+    void onAdvertisingStarted();
+
+    /**
+     * @param errorCode One of the GattTransport.ADVERTISE_FAILED_* constants.
+     */
+    void onAdvertisingFailed(int errorCode);
+
+    void onAdvertisingStopped();
+
+    void onConnectedDevicesChanged(int connectedDevices);
+
+    void onConnectionError(String device, int status);
+  }
+
+  private final GattTransport mTransport;
+  private final Listener mListener;
+  private final GattEventLoop mEventLoop;
+  // Handlers of the hosted services, in the order their services are added to the GATT server.
+  private final ArrayList<GattServiceHandler> mHandlers = new ArrayList<>();
+  private final ArrayList<UUID> mServiceUuids = new ArrayList<>();
+  // Services still to be added to the GATT server. Only accessed on mEventLoop.
+  private final ArrayDeque<GattServiceHandler> mPendingServices = new ArrayDeque<>();
+  // Only accessed on mEventLoop.
+  private final HashSet<String> mDevices = new HashSet<>();
+  // Only accessed on mEventLoop.
+  private final ArrayList<NotificationStream> mStreams = new ArrayList<>();
+  // Only accessed on mEventLoop.
+  private final ArrayList<StreamSink> mSinks = new ArrayList<>();
+  private final NotificationQueue mNotificationQueue;
+  private final PreparedWriteQueue mPreparedWrites = new PreparedWriteQueue();
+  private final LongReadCache mLongReads = new LongReadCache();
+  private final GattTrace mTrace = new GattTrace();
+  private final GattMetrics mMetrics = new GattMetrics();
+  // When the transport delivered the event being handled. Only accessed on mEventLoop.
+  private long mEventReceivedNanos;
+  // When the notification in flight was handed to the transport, per device. Only accessed on
+  // mEventLoop.
+  private final HashMap<String, long[]> mNotificationSentNanos = new HashMap<>();
+  private final SubscriptionTable mSubscriptions = new SubscriptionTable();
+  private final AttributeTable mAttributes = new AttributeTable();
+  private final ConcurrentHashMap<String, Integer> mMtus = new ConcurrentHashMap<>();
+  private final IndicationTracker mIndications;
+  // Checks the indications for timeouts while the GATT server is open.
+  private PeriodicScheduler.Task mIndicationTimeoutCheck;
+  private volatile boolean mOpen;
+  private volatile SessionRecorder mRecorder;
+
+  public GattPeripheral(GattTransport transport, Listener listener) {
+    mTransport = transport;
+    mListener = listener;
+    mNotificationQueue = new NotificationQueue(mNotificationSender);
+    mIndications = new IndicationTracker(mIndicationTimeoutHandler);
+    mEventLoop = new GattEventLoop("GattEventLoop");
+  }
+
+  /**
+   * Opens the GATT server, adds the services of the handlers one at a time and starts
+   * advertising once all of them are in place. Does nothing if the same handlers are already
+   * hosted.
+   *
+   * @return false if the GATT server couldn't be opened.
+   */
+  public synchronized boolean start(List<? extends GattServiceHandler> handlers) {
+    if (mOpen) {
+      if (mHandlers.equals(handlers)) {
+        return true;
+      }
+      stop();
+    }
+    if (!mTransport.open(mTransportCallback)) {
+      return false;
+    }
+    mOpen = true;
+    mHandlers.clear();
+    mHandlers.addAll(handlers);
+    mServiceUuids.clear();
+    for (GattServiceHandler handler : handlers) {
+      mServiceUuids.add(handler.getGattService().getUuid());
+    }
+    mAttributes.clear();
+    mIndicationTimeoutCheck = PeriodicScheduler.getShared().schedule(mCheckIndicationTimeouts,
+        INDICATION_TIMEOUT_CHECK_INTERVAL_NANOS, INDICATION_TIMEOUT_CHECK_INTERVAL_NANOS,
+        PeriodicScheduler.POLICY_SKIP);
+    final ArrayList<GattServiceHandler> pendingServices = new ArrayList<>(handlers);
+    mEventLoop.post(new Runnable() {
+      @Override
+      public void run() {
+        mPendingServices.clear();
+        mPendingServices.addAll(pendingServices);
+        addNextService();
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Closes the GATT server and forgets every device. The engine can be started again.
+   */
+  public synchronized void stop() {
+    if (!mOpen) {
+      return;
+    }
+    mOpen = false;
+    mIndicationTimeoutCheck.cancel();
+    mIndicationTimeoutCheck = null;
+    mTransport.close();
+    mEventLoop.post(new Runnable() {
+      @Override
+      public void run() {
+        mPendingServices.clear();
+        for (NotificationStream stream : mStreams) {
+          stream.onStopped();
+        }
+        mStreams.clear();
+        mSinks.clear();
+        mDevices.clear();
+        mMtus.clear();
+        mNotificationQueue.clear();
+        mNotificationSentNanos.clear();
+        mIndications.clear();
+        mPreparedWrites.clear();
+        mLongReads.clear();
+        mSubscriptions.clear();
+        mListener.onConnectedDevicesChanged(0);
+      }
+    });
+    // If stopAdvertising() gets called before close() a null
+    // pointer exception is raised.
+    stopAdvertising();
+  }
+
+  /**
+   * Stops the engine for good and quits the event loop.
+   */
+  public void quit() {
+    stop();
+    mEventLoop.quit();
+  }
+
+  public boolean isStarted() {
+    return mOpen;
+  }
+
+  public void disconnectDevices() {
+    mEventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        LOG.fine("Disconnecting devices...");
+        for (String device : new ArrayList<>(mDevices)) {
+          mTransport.cancelConnection(device);
+        }
+      }
+    });
+  }
+
+  public GattTrace getTrace() {
+    return mTrace;
+  }
+
+  public GattMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  /**
+   * @return The confirmations of the indications sent, with their round-trip times. Its
+   * timeout may be changed at any time.
+   */
+  public IndicationTracker getIndicationTracker() {
+    return mIndications;
+  }
+
+  /**
+   * Sets the recorder every GATT event is handed to, or null. The recorder decides whether it
+   * records, so it can be started and stopped at any time.
+   */
+  public void setSessionRecorder(SessionRecorder recorder) {
+    mRecorder = recorder;
+  }
+
+  /*
+   * Adds the next pending service to the GATT server, or starts advertising if there is none
+   * left. Runs on mEventLoop.
+   */
+  private void addNextService() {
+    if (!mOpen) {
+      return;
+    }
+    while (!mPendingServices.isEmpty()) {
+      GattServiceHandler handler = mPendingServices.peek();
+      if (mTransport.addService(handler.getGattService())) {
+        // Continues in onServiceAdded.
+        return;
+      }
+      LOG.severe("Failed to add service " + handler.getGattService().getUuid());
+      mPendingServices.poll();
+    }
+    startAdvertising();
+  }
+
+  private void startAdvertising() {
+    if (mOpen && mTransport.isAdvertisingSupported()) {
+      mTransport.startAdvertising(mServiceUuids, mAdvertiseCallback);
+    }
+  }
+
+  private void stopAdvertising() {
+    if (mTransport.isAdvertisingSupported()) {
+      mTransport.stopAdvertising();
+      mListener.onAdvertisingStopped();
+    }
+  }
+
+  private final GattTransport.AdvertiseCallback mAdvertiseCallback =
+      new GattTransport.AdvertiseCallback() {
+    @Override
+    public void onStartSuccess() {
+      LOG.fine("Broadcasting");
+      mListener.onAdvertisingStarted();
+    }
+
+    @Override
+    public void onStartFailure(int errorCode) {
+      LOG.warning("Not broadcasting: " + errorCode);
+      mListener.onAdvertisingFailed(errorCode);
+    }
+  };
+
+  /*
+   * Runs on the transport thread. It only hands every event over to mEventLoop, which
+   * runs mEventHandler. Requests that don't fit in the loop's queue are answered right away
+   * with an "Insufficient Resources" error so the client can retry.
+   */
+  private final GattTransport.Callback mTransportCallback = new GattTransport.Callback() {
+    @Override
+    public void onConnectionStateChange(final String device, final int status,
+        final int newState) {
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_CONNECTION_STATE, /* flags */ 0, device,
+          /* attribute */ null, /* requestId */ 0, status, newState, /* payload */ null);
+      mEventLoop.post(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onConnectionStateChange(device, status, newState);
+        }
+      });
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(final String device, final int requestId,
+        final int offset, final GattCharacteristic characteristic) {
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_READ_CHARACTERISTIC, /* flags */ 0, device,
+          characteristic, requestId, /* status */ 0, offset, /* payload */ null);
+      boolean queued = mEventLoop.offer(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+        }
+      });
+      if (!queued) {
+        rejectRequest(device, requestId, /* responseNeeded */ true);
+      }
+    }
+
+    @Override
+    public void onServiceAdded(final int status, final GattService service) {
+      final long receivedNanos = System.nanoTime();
+      mEventLoop.post(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onServiceAdded(status, service);
+        }
+      });
+    }
+
+    @Override
+    public void onMtuChanged(final String device, final int mtu) {
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_MTU_CHANGED, /* flags */ 0, device,
+          /* attribute */ null, /* requestId */ 0, /* status */ 0, mtu, /* payload */ null);
+      mEventLoop.post(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onMtuChanged(device, mtu);
+        }
+      });
+    }
+
+    @Override
+    public void onNotificationSent(final String device, final int status) {
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_NOTIFICATION_SENT, /* flags */ 0, device,
+          /* attribute */ null, /* requestId */ 0, status, /* argument */ 0, /* payload */ null);
+      mEventLoop.post(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onNotificationSent(device, status);
+        }
+      });
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(final String device, final int requestId,
+        final GattCharacteristic characteristic, final boolean preparedWrite,
+        final boolean responseNeeded, final int offset, final byte[] value) {
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_WRITE_CHARACTERISTIC,
+          writeFlags(preparedWrite, responseNeeded), device, characteristic, requestId,
+          /* status */ 0, offset, value);
+      boolean queued = mEventLoop.offer(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onCharacteristicWriteRequest(device, requestId, characteristic,
+              preparedWrite, responseNeeded, offset, value);
+        }
+      });
+      if (!queued) {
+        rejectRequest(device, requestId, responseNeeded);
+      }
+    }
+
+    @Override
+    public void onDescriptorReadRequest(final String device, final int requestId,
+        final int offset, final GattDescriptor descriptor) {
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_READ_DESCRIPTOR, /* flags */ 0, device, descriptor,
+          requestId, /* status */ 0, offset, /* payload */ null);
+      boolean queued = mEventLoop.offer(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onDescriptorReadRequest(device, requestId, offset, descriptor);
+        }
+      });
+      if (!queued) {
+        rejectRequest(device, requestId, /* responseNeeded */ true);
+      }
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(final String device, final int requestId,
+        final GattDescriptor descriptor, final boolean preparedWrite,
+        final boolean responseNeeded, final int offset, final byte[] value) {
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_WRITE_DESCRIPTOR,
+          writeFlags(preparedWrite, responseNeeded), device, descriptor, requestId,
+          /* status */ 0, offset, value);
+      boolean queued = mEventLoop.offer(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite,
+              responseNeeded, offset, value);
+        }
+      });
+      if (!queued) {
+        rejectRequest(device, requestId, responseNeeded);
+      }
+    }
+
+    @Override
+    public void onExecuteWrite(final String device, final int requestId,
+        final boolean execute) {
+      // Never dropped: losing it would leave the device's prepared writes staged forever.
+      final long receivedNanos = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_EXECUTE_WRITE, /* flags */ 0, device,
+          /* attribute */ null, requestId, /* status */ 0, execute ? 1 : 0, /* payload */ null);
+      mEventLoop.post(new Runnable() {
+        @Override
+        public void run() {
+          mEventReceivedNanos = receivedNanos;
+          mEventHandler.onExecuteWrite(device, requestId, execute);
+        }
+      });
+    }
+
+    private void rejectRequest(String device, int requestId, boolean responseNeeded) {
+      mTrace.record(GattTrace.EVENT_REQUEST_REJECTED, device, /* uuid */ null,
+          GattStatus.INSUFFICIENT_RESOURCES, requestId, /* payload */ null);
+      mMetrics.record(GattTrace.EVENT_REQUEST_REJECTED, device, /* uuid */ null,
+          GattStatus.INSUFFICIENT_RESOURCES, /* latencyNanos */ 0);
+      if (responseNeeded && mOpen) {
+        sendResponse(device, requestId, GattStatus.INSUFFICIENT_RESOURCES,
+            /* No need to respond with an offset */ 0,
+            /* No need to respond with a value */ null);
+      }
+    }
+  };
+
+  /*
+   * Runs on mEventLoop, which owns the connected devices, the MTU table and the notification,
+   * prepared write and long read queues. Responses are sent before anything else is done with a
+   * request; handlers publish their UI updates to the UI thread on their own.
+   */
+  private final GattTransport.Callback mEventHandler = new GattTransport.Callback() {
+    @Override
+    public void onConnectionStateChange(String device, final int status, int newState) {
+      if (status == GattStatus.SUCCESS) {
+        if (newState == GattTransport.STATE_CONNECTED) {
+          mDevices.add(device);
+          //추가코드 : 컨넥션 연결되었을 떄 advertisement 멈춤.
+          stopAdvertising();
+          mListener.onConnectedDevicesChanged(mDevices.size());
+          record(GattTrace.EVENT_CONNECTED, device, /* uuid */ null, status,
+              /* argument */ 0, /* payload */ null);
+        } else if (newState == GattTransport.STATE_DISCONNECTED) {
+          forgetDevice(device);
+          mListener.onConnectedDevicesChanged(mDevices.size());
+          record(GattTrace.EVENT_DISCONNECTED, device, /* uuid */ null,
+              status, /* argument */ 0, /* payload */ null);
+          //추가코드 : 컨넥션 해제되었을 떄 advertisement 다시 시작.
+          startAdvertising();
+        }
+      } else {
+        forgetDevice(device);
+        mListener.onConnectedDevicesChanged(mDevices.size());
+        // There are too many gatt errors (some of them not even in the documentation) so we just
+        // report the error.
+        mListener.onConnectionError(device, status);
+        record(GattTrace.EVENT_CONNECTION_ERROR, device, /* uuid */ null,
+            status, newState, /* payload */ null);
+        LOG.warning("Error when connecting: " + status);
+      }
+    }
+
+    @Override
+    public void onCharacteristicReadRequest(String device, int requestId, int offset,
+        GattCharacteristic characteristic) {
+      sendReadResponse(device, requestId, offset, characteristic, characteristic.getUuid(),
+          characteristic.getValue(), GattTrace.EVENT_READ_CHARACTERISTIC);
+    }
+
+    @Override
+    public void onServiceAdded(int status, GattService service) {
+      GattServiceHandler handler = mPendingServices.peek();
+      if (handler == null || handler.getGattService() != service) {
+        // Left over from a GATT server that has been closed since.
+        return;
+      }
+      mPendingServices.poll();
+      if (status == GattStatus.SUCCESS) {
+        mAttributes.register(service, handler);
+      } else {
+        LOG.severe("Failed to add service " + service.getUuid() + ": " + status);
+      }
+      addNextService();
+    }
+
+    @Override
+    public void onMtuChanged(String device, int mtu) {
+      mMtus.put(device, mtu);
+      record(GattTrace.EVENT_MTU_CHANGED, device, /* uuid */ null,
+          GattStatus.SUCCESS, mtu, /* payload */ null);
+    }
+
+    @Override
+    public void onNotificationSent(String device, int status) {
+      mTrace.record(GattTrace.EVENT_NOTIFICATION_SENT, device, /* uuid */ null,
+          status, /* argument */ 0, /* payload */ null);
+      long[] sentNanos = mNotificationSentNanos.get(device);
+      if (sentNanos != null) {
+        mMetrics.record(GattTrace.EVENT_NOTIFICATION_SENT, device, /* uuid */ null, status,
+            System.nanoTime() - sentNanos[0]);
+      }
+      mIndications.onNotificationSent(device, status, mEventReceivedNanos);
+      mNotificationQueue.onNotificationSent(device, status);
+    }
+
+    @Override
+    public void onCharacteristicWriteRequest(String device, int requestId,
+        GattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded,
+        int offset, byte[] value) {
+      if (preparedWrite) {
+        onPrepareWriteRequest(device, requestId, characteristic, responseNeeded, offset, value);
+        return;
+      }
+      int status;
+      StreamSink sink = findSink(characteristic);
+      if (sink != null && offset == 0) {
+        sink.onPacketReceived(device, value);
+        status = GattStatus.SUCCESS;
+      } else {
+        status = writeCharacteristic(characteristic, offset, value);
+      }
+      if (responseNeeded) {
+        sendResponse(device, requestId, status,
+            /* No need to respond with an offset */ 0,
+            /* No need to respond with a value */ null);
+      }
+      record(GattTrace.EVENT_WRITE_CHARACTERISTIC, device,
+          characteristic.getUuid(), status, offset, value);
+    }
+
+    @Override
+    public void onDescriptorReadRequest(String device, int requestId,
+        int offset, GattDescriptor descriptor) {
+      byte[] currentValue = descriptor.getValue();
+      AttributeTable.Entry entry = mAttributes.get(descriptor);
+      if (entry != null && entry.kind == AttributeTable.KIND_CCCD) {
+        // Every device reads its own configuration.
+        currentValue = mSubscriptions.getDescriptorValue(device, entry.characteristic);
+      }
+      sendReadResponse(device, requestId, offset, descriptor, descriptor.getUuid(),
+          currentValue, GattTrace.EVENT_READ_DESCRIPTOR);
+    }
+
+    @Override
+    public void onDescriptorWriteRequest(String device, int requestId,
+        GattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
+        int offset,
+        byte[] value) {
+      if (preparedWrite) {
+        onPrepareWriteRequest(device, requestId, descriptor, responseNeeded, offset, value);
+        return;
+      }
+      int status = writeDescriptor(device, descriptor, value);
+      if (responseNeeded) {
+        sendResponse(device, requestId, status,
+            /* No need to respond with offset */ 0,
+            /* No need to respond with a value */ null);
+      }
+      record(GattTrace.EVENT_WRITE_DESCRIPTOR, device, descriptor.getUuid(),
+          status, offset, value);
+    }
+
+    @Override
+    public void onExecuteWrite(String device, int requestId, boolean execute) {
+      if (!execute) {
+        mPreparedWrites.cancel(device);
+        sendResponse(device, requestId, GattStatus.SUCCESS,
+            /* No need to respond with offset */ 0,
+            /* No need to respond with a value */ null);
+        record(GattTrace.EVENT_EXECUTE_WRITE, device, /* uuid */ null,
+            GattStatus.SUCCESS, /* execute */ 0, /* payload */ null);
+        return;
+      }
+      // take() hands every staged value out exactly once, even if a write below fails.
+      List<PreparedWriteQueue.PreparedValue> preparedValues = mPreparedWrites.take(device);
+      int status = GattStatus.SUCCESS;
+      for (PreparedWriteQueue.PreparedValue prepared : preparedValues) {
+        int writeStatus;
+        if (prepared.attribute instanceof GattCharacteristic) {
+          writeStatus = writeCharacteristic((GattCharacteristic) prepared.attribute,
+              /* offset */ 0, prepared.getValue());
+        } else {
+          writeStatus = writeDescriptor(device, (GattDescriptor) prepared.attribute,
+              prepared.getValue());
+        }
+        if (status == GattStatus.SUCCESS) {
+          status = writeStatus;
+        }
+      }
+      mPreparedWrites.release(preparedValues);
+      sendResponse(device, requestId, status,
+          /* No need to respond with offset */ 0,
+          /* No need to respond with a value */ null);
+      record(GattTrace.EVENT_EXECUTE_WRITE, device, /* uuid */ null, status,
+          /* execute */ 1, /* payload */ null);
+    }
+
+    private void sendReadResponse(String device, int requestId, int offset,
+        Object attribute, UUID uuid, byte[] currentValue, int traceEvent) {
+      // A Read Response carries at most ATT_MTU - 1 bytes of the value.
+      byte[] value = mLongReads.read(device, attribute, currentValue, offset,
+          getMtu(device) - 1);
+      if (value == null) {
+        sendResponse(device, requestId, GattStatus.INVALID_OFFSET, offset,
+            /* value (optional) */ null);
+        record(traceEvent, device, uuid, GattStatus.INVALID_OFFSET,
+            offset, /* payload */ null);
+        return;
+      }
+      sendResponse(device, requestId, GattStatus.SUCCESS, offset, value);
+      record(traceEvent, device, uuid, GattStatus.SUCCESS, offset,
+          value);
+    }
+
+    private void onPrepareWriteRequest(String device, int requestId, Object attribute,
+        boolean responseNeeded, int offset, byte[] value) {
+      int status = mPreparedWrites.prepare(device, attribute, offset, value);
+      if (responseNeeded) {
+        // A Prepare Write Response echoes the offset and value so the client can verify them.
+        sendResponse(device, requestId, status, offset, value);
+      }
+      record(GattTrace.EVENT_PREPARE_WRITE, device, /* uuid */ null, status,
+          offset, value);
+    }
+  };
+
+  private StreamSink findSink(GattCharacteristic characteristic) {
+    for (int i = 0; i < mSinks.size(); i++) {
+      StreamSink sink = mSinks.get(i);
+      if (sink.getCharacteristic() == characteristic) {
+        return sink;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Sends a response to the transport, recording it in the session first. Runs on mEventLoop.
+   */
+  private void sendResponse(String device, int requestId, int status, int offset,
+      byte[] value) {
+    recordSession(SessionRecorder.RECORD_RESPONSE, /* flags */ 0, device, /* attribute */ null,
+        requestId, status, offset, value);
+    mTransport.sendResponse(device, requestId, status, offset, value);
+  }
+
+  private void recordSession(int type, int flags, String device, Object attribute,
+      int requestId, int status, int argument, byte[] payload) {
+    SessionRecorder recorder = mRecorder;
+    if (recorder != null) {
+      recorder.record(type, flags, device, attribute, requestId, status, argument, payload);
+    }
+  }
+
+  private static int writeFlags(boolean preparedWrite, boolean responseNeeded) {
+    return (preparedWrite ? SessionRecorder.FLAG_PREPARED_WRITE : 0)
+        | (responseNeeded ? SessionRecorder.FLAG_RESPONSE_NEEDED : 0);
+  }
+
+  /*
+   * Records a handled event in the trace and the metrics. Runs on mEventLoop.
+   */
+  private void record(int type, String device, UUID uuid, int status, int argument,
+      byte[] payload) {
+    mTrace.record(type, device, uuid, status, argument, payload);
+    mMetrics.record(type, device, uuid, status, System.nanoTime() - mEventReceivedNanos);
+  }
+
+  private int writeCharacteristic(GattCharacteristic characteristic, int offset,
+      byte[] value) {
+    AttributeTable.Entry entry = mAttributes.get(characteristic);
+    if (entry == null) {
+      return GattStatus.ATTRIBUTE_NOT_FOUND;
+    }
+    return entry.handler.writeCharacteristic(characteristic, offset, value);
+  }
+
+  private int writeDescriptor(String device, GattDescriptor descriptor,
+      byte[] value) {
+    AttributeTable.Entry entry = mAttributes.get(descriptor);
+    if (entry == null) {
+      return GattStatus.ATTRIBUTE_NOT_FOUND;
+    }
+    int status = GattStatus.SUCCESS;
+    if (entry.kind == AttributeTable.KIND_CCCD) {
+      GattCharacteristic characteristic = entry.characteristic;
+      boolean supportsNotifications = (characteristic.getProperties() &
+          GattCharacteristic.PROPERTY_NOTIFY) != 0;
+      boolean supportsIndications = (characteristic.getProperties() &
+          GattCharacteristic.PROPERTY_INDICATE) != 0;
+
+      // The configuration is stored per device in mSubscriptions, not in the shared descriptor.
+      if (!(supportsNotifications || supportsIndications)) {
+        status = GattStatus.REQUEST_NOT_SUPPORTED;
+      } else if (value.length != 2) {
+        status = GattStatus.INVALID_ATTRIBUTE_LENGTH;
+      } else if (Arrays.equals(value, GattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+        status = GattStatus.SUCCESS;
+        mSubscriptions.setSubscription(device, characteristic,
+            SubscriptionTable.SUBSCRIPTION_NONE);
+        // Other devices may still be subscribed.
+        if (!mSubscriptions.hasSubscribers(characteristic)) {
+          entry.handler.notificationsDisabled(characteristic);
+        }
+      } else if (supportsNotifications &&
+          Arrays.equals(value, GattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
+        status = GattStatus.SUCCESS;
+        mSubscriptions.setSubscription(device, characteristic,
+            SubscriptionTable.SUBSCRIPTION_NOTIFY);
+        entry.handler.notificationsEnabled(characteristic, false /* indicate */);
+      } else if (supportsIndications &&
+          Arrays.equals(value, GattDescriptor.ENABLE_INDICATION_VALUE)) {
+        status = GattStatus.SUCCESS;
+        mSubscriptions.setSubscription(device, characteristic,
+            SubscriptionTable.SUBSCRIPTION_INDICATE);
+        entry.handler.notificationsEnabled(characteristic, true /* indicate */);
+      } else {
+        status = GattStatus.REQUEST_NOT_SUPPORTED;
+      }
+      if (status == GattStatus.SUCCESS) {
+        for (NotificationStream stream : mStreams) {
+          if (stream.getCharacteristic() == characteristic) {
+            stream.pump(device);
+          }
+        }
+      }
+    } else {
+      status = GattStatus.SUCCESS;
+      descriptor.setValue(value);
+    }
+    return status;
+  }
+
+  private void forgetDevice(String device) {
+    // The indication of a stalled device never completes: it is reported as timed out.
+    int inFlightResult = mIndications.isStalled(device)
+        ? NotificationQueue.RESULT_TIMEOUT : NotificationQueue.RESULT_DISCONNECTED;
+    mDevices.remove(device);
+    mMtus.remove(device);
+    mNotificationSentNanos.remove(device);
+    mIndications.removeDevice(device);
+    mPreparedWrites.cancel(device);
+    mLongReads.removeDevice(device);
+    for (NotificationStream stream : mStreams) {
+      stream.removeDevice(device);
+    }
+    mNotificationQueue.removeDevice(device, inFlightResult);
+    for (GattCharacteristic characteristic : mSubscriptions.removeDevice(device)) {
+      AttributeTable.Entry entry = mAttributes.get(characteristic);
+      if (entry != null) {
+        entry.handler.notificationsDisabled(characteristic);
+      }
+    }
+  }
+
+
+  public void sendNotificationToDevices(GattCharacteristic characteristic) {
+    sendNotificationToDevices(characteristic, /* listener */ null);
+  }
+
+  public void sendNotificationToDevices(final GattCharacteristic characteristic,
+      final NotificationQueue.DeliveryListener listener) {
+    // Take the snapshot now: the value may change again before the notification leaves the
+    // queue. It is encoded once and shared, read-only, by every subscriber.
+    byte[] currentValue = characteristic.getValue();
+    final byte[] value = currentValue == null ? null : currentValue.clone();
+    // Called from the UI and timers: never wait for room in the event loop.
+    boolean queued = mEventLoop.tryExecute(new Runnable() {
+      @Override
+      public void run() {
+        if (!mSubscriptions.hasSubscribers(characteristic)) {
+          return;
+        }
+        for (String device : mDevices) {
+          int subscription = mSubscriptions.getSubscription(device, characteristic);
+          if (subscription == SubscriptionTable.SUBSCRIPTION_NONE) {
+            continue;
+          }
+          // true for indication (acknowledge) and false for notification (unacknowledge).
+          boolean indicate = subscription == SubscriptionTable.SUBSCRIPTION_INDICATE;
+          if (!mNotificationQueue.enqueue(device, characteristic, value, indicate, listener)) {
+            LOG.warning("Notification queue full for device: " + device);
+          }
+        }
+      }
+    });
+    if (!queued) {
+      LOG.warning("Event loop busy, notification dropped for: " + characteristic.getUuid());
+    }
+  }
+
+  public void sendDataToDevices(final GattCharacteristic characteristic,
+      final byte[] data) {
+    boolean queued = mEventLoop.tryExecute(new Runnable() {
+      @Override
+      public void run() {
+        enqueueChunks(characteristic, data);
+      }
+    });
+    if (!queued) {
+      LOG.warning("Event loop busy, data dropped for: " + characteristic.getUuid());
+    }
+  }
+
+  private void enqueueChunks(GattCharacteristic characteristic, byte[] data) {
+    if (!mSubscriptions.hasSubscribers(characteristic)) {
+      return;
+    }
+    // Devices that negotiated the same MTU share the same chunks.
+    HashMap<Integer, List<byte[]>> chunksByPayloadSize = new HashMap<>();
+    for (String device : mDevices) {
+      int subscription = mSubscriptions.getSubscription(device, characteristic);
+      if (subscription == SubscriptionTable.SUBSCRIPTION_NONE) {
+        continue;
+      }
+      boolean indicate = subscription == SubscriptionTable.SUBSCRIPTION_INDICATE;
+      int payloadSize = getMtu(device) - NOTIFICATION_HEADER_LENGTH;
+      List<byte[]> chunks = chunksByPayloadSize.get(payloadSize);
+      if (chunks == null) {
+        chunks = splitIntoChunks(data, payloadSize);
+        chunksByPayloadSize.put(payloadSize, chunks);
+      }
+      for (byte[] chunk : chunks) {
+        if (!mNotificationQueue.enqueue(device, characteristic, chunk, indicate,
+            /* listener */ null)) {
+          LOG.warning("Notification queue full for device: " + device);
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts streaming {@link StreamPacket}s on the characteristic to every device subscribed to
+   * it, now or later, until {@link NotificationStream#stop} or {@link #stop} is called.
+   */
+  public NotificationStream startStream(GattCharacteristic characteristic) {
+    final NotificationStream stream = new NotificationStream(this, characteristic,
+        NotificationStream.DEFAULT_WINDOW);
+    mEventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!mOpen) {
+          stream.onStopped();
+          return;
+        }
+        mStreams.add(stream);
+        for (String device : new ArrayList<>(mDevices)) {
+          stream.pump(device);
+        }
+      }
+    });
+    return stream;
+  }
+
+  void stopStream(final NotificationStream stream) {
+    mEventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        mStreams.remove(stream);
+        stream.onStopped();
+      }
+    });
+  }
+
+  /**
+   * Starts checking the {@link StreamPacket}s centrals write to the characteristic, with or
+   * without response, instead of handing the writes to its service handler. Replaces the sink
+   * already running on the characteristic, if any.
+   */
+  public StreamSink startSink(final GattCharacteristic characteristic) {
+    final StreamSink sink = new StreamSink(this, characteristic);
+    mEventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!mOpen) {
+          return;
+        }
+        StreamSink previous = findSink(characteristic);
+        if (previous != null) {
+          mSinks.remove(previous);
+        }
+        mSinks.add(sink);
+      }
+    });
+    return sink;
+  }
+
+  void stopSink(final StreamSink sink) {
+    mEventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        mSinks.remove(sink);
+      }
+    });
+  }
+
+  /**
+   * Starts a stream of Heart Rate Measurements from the waveform on the characteristic. The
+   * stream sends nothing until its {@link HeartRateStream#tick} is called.
+   */
+  public HeartRateStream startHeartRateStream(GattCharacteristic characteristic,
+      HeartRateWaveform waveform) {
+    return new HeartRateStream(this, characteristic, waveform);
+  }
+
+  /**
+   * Starts a store of the measurements of the characteristic taken while no device is
+   * subscribed to it, forwarded once one subscribes. Measurements are given to
+   * {@link MeasurementStore#submit}.
+   *
+   * @param capacity Measurements kept before the oldest are dropped.
+   */
+  public MeasurementStore startMeasurementStore(GattCharacteristic characteristic,
+      int capacity) {
+    return new MeasurementStore(this, characteristic, capacity);
+  }
+
+  /*
+   * Runs the task on mEventLoop without ever blocking the caller.
+   *
+   * @return false if the event loop is full or has quit, and the task will not run.
+   */
+  boolean runOnEventLoop(Runnable task) {
+    return mEventLoop.tryExecute(task);
+  }
+
+  /*
+   * Runs on mEventLoop.
+   */
+  Set<String> getDevices() {
+    return mDevices;
+  }
+
+  /*
+   * Runs on mEventLoop.
+   */
+  int getSubscription(String device, GattCharacteristic characteristic) {
+    if (!mDevices.contains(device)) {
+      return SubscriptionTable.SUBSCRIPTION_NONE;
+    }
+    return mSubscriptions.getSubscription(device, characteristic);
+  }
+
+  /*
+   * Runs on mEventLoop.
+   */
+  boolean enqueueNotification(String device, GattCharacteristic characteristic, byte[] value,
+      boolean indicate, NotificationQueue.DeliveryListener listener) {
+    return mNotificationQueue.enqueue(device, characteristic, value, indicate, listener);
+  }
+
+  /**
+   * @return ATT_MTU negotiated with the device, or the default of 23 if it never sent an
+   * Exchange MTU Request.
+   */
+  public int getMtu(String device) {
+    Integer mtu = mMtus.get(device);
+    return mtu == null ? DEFAULT_MTU : mtu;
+  }
+
+  private static List<byte[]> splitIntoChunks(byte[] data, int chunkSize) {
+    ArrayList<byte[]> chunks = new ArrayList<>(data.length / chunkSize + 1);
+    if (data.length == 0) {
+      chunks.add(data);
+      return chunks;
+    }
+    for (int start = 0; start < data.length; start += chunkSize) {
+      chunks.add(Arrays.copyOfRange(data, start, Math.min(data.length, start + chunkSize)));
+    }
+    return chunks;
+  }
+
+  private final NotificationQueue.Sender mNotificationSender = new NotificationQueue.Sender() {
+    @Override
+    public boolean sendNotification(String device, GattCharacteristic characteristic,
+        byte[] value, boolean confirm) {
+      long[] sentNanos = mNotificationSentNanos.get(device);
+      if (sentNanos == null) {
+        sentNanos = new long[1];
+        mNotificationSentNanos.put(device, sentNanos);
+      }
+      sentNanos[0] = System.nanoTime();
+      recordSession(SessionRecorder.RECORD_NOTIFICATION,
+          confirm ? SessionRecorder.FLAG_CONFIRM : 0, device, characteristic,
+          /* requestId */ 0, /* status */ 0, /* argument */ 0, value);
+      boolean sent = mOpen && mTransport.notifyCharacteristicChanged(device, characteristic,
+          value, confirm);
+      if (sent && confirm) {
+        mIndications.onIndicationSent(device, characteristic, value, sentNanos[0]);
+      }
+      return sent;
+    }
+  };
+
+  private final IndicationTracker.Callback mIndicationTimeoutHandler =
+      new IndicationTracker.Callback() {
+    @Override
+    public void onIndicationTimedOut(String device) {
+      // The indication keeps the device's slot in the notification queue: nothing else may go
+      // out on the bearer until it is confirmed, and after an ATT timeout it never will be.
+      // Dropping the link is the only way out; the disconnection releases the queue.
+      LOG.warning("Indication not confirmed in time, disconnecting device: " + device);
+      mTransport.cancelConnection(device);
+    }
+  };
+
+  private final Runnable mCheckIndicationTimeouts = new Runnable() {
+    @Override
+    public void run() {
+      // On the scheduler thread: never wait for room in the event loop, the next check will do.
+      mEventLoop.offer(mCheckIndicationTimeoutsOnEventLoop);
+    }
+  };
+
+  private final Runnable mCheckIndicationTimeoutsOnEventLoop = new Runnable() {
+    @Override
+    public void run() {
+      mIndications.checkTimeouts(System.nanoTime());
+    }
+  };
+}
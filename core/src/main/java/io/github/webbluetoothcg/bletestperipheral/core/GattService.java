@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Service hosted by the peripheral. Mirrors {@code android.bluetooth.BluetoothGattService}
+ * without depending on Android.
+ */
+public class GattService {
+
+  public static final int SERVICE_TYPE_PRIMARY = 0;
+  public static final int SERVICE_TYPE_SECONDARY = 1;
+
+  private final UUID mUuid;
+  private final int mServiceType;
+  private final ArrayList<GattCharacteristic> mCharacteristics = new ArrayList<>();
+
+  public GattService(UUID uuid, int serviceType) {
+    mUuid = uuid;
+    mServiceType = serviceType;
+  }
+
+  public UUID getUuid() {
+    return mUuid;
+  }
+
+  public int getType() {
+    return mServiceType;
+  }
+
+  public boolean addCharacteristic(GattCharacteristic characteristic) {
+    mCharacteristics.add(characteristic);
+    characteristic.setService(this);
+    return true;
+  }
+
+  public List<GattCharacteristic> getCharacteristics() {
+    return mCharacteristics;
+  }
+
+  /**
+   * @return The first characteristic with the given UUID, or null.
+   */
+  public GattCharacteristic getCharacteristic(UUID uuid) {
+    for (GattCharacteristic characteristic : mCharacteristics) {
+      if (characteristic.getUuid().equals(uuid)) {
+        return characteristic;
+      }
+    }
+    return null;
+  }
+}
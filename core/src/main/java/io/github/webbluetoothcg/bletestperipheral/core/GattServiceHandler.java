@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+/**
+ * Implements the behavior of a hosted service: validates and applies writes and reacts to
+ * centrals subscribing to its characteristics.
+ *
+ * Called on the GATT event loop; implementations publish UI updates on their own.
+ */
+public interface GattServiceHandler {
+
+  GattService getGattService();
+
+  /**
+   * Validates and applies a value written by a central.
+   *
+   * @return {@link GattStatus#SUCCESS} if the write was applied, or the status to respond with.
+   */
+  int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value);
+
+  /**
+   * A central enabled notifications or indications on the characteristic.
+   */
+  void notificationsEnabled(GattCharacteristic characteristic, boolean indicate);
+
+  /**
+   * No central is subscribed to the characteristic anymore.
+   */
+  void notificationsDisabled(GattCharacteristic characteristic);
+}
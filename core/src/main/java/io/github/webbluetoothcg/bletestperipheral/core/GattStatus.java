@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+/**
+ * Status codes of GATT responses. The values are those of {@code android.bluetooth.BluetoothGatt}
+ * where it defines them, and ATT error codes (Core spec Vol 3, Part F, 3.4.1.1) otherwise.
+ */
+public final class GattStatus {
+
+  public static final int SUCCESS = 0;
+  public static final int READ_NOT_PERMITTED = 0x02;
+  public static final int WRITE_NOT_PERMITTED = 0x03;
+  public static final int REQUEST_NOT_SUPPORTED = 0x06;
+  public static final int INVALID_OFFSET = 0x07;
+  public static final int ATTRIBUTE_NOT_FOUND = 0x0A;
+  public static final int INVALID_ATTRIBUTE_LENGTH = 0x0D;
+  public static final int INSUFFICIENT_RESOURCES = 0x11;
+  public static final int FAILURE = 0x101;
+
+  private GattStatus() {
+  }
+}
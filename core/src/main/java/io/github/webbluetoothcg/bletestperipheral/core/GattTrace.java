@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Fixed-size ring buffer of GATT events, replacing string logging in the GATT callbacks.
+ *
+ * Every event is stored as a handful of primitives in preallocated arrays: event type, device
+ * index, UUID index, status, an extra argument (offset, MTU, ...), a monotonic timestamp and the
+ * first {@link #MAX_PAYLOAD_LENGTH} bytes of the payload. Recording an event allocates nothing
+ * once its device and UUID have been seen; turning the events into text only happens on demand
+ * in {@link #dump}. When the buffer is full the oldest events are overwritten.
+ */
+public class GattTrace {
+
+  public static final int DEFAULT_CAPACITY = 4096;
+  public static final int MAX_PAYLOAD_LENGTH = 32;
+
+  public static final int EVENT_CONNECTED = 1;
+  public static final int EVENT_DISCONNECTED = 2;
+  public static final int EVENT_CONNECTION_ERROR = 3;
+  public static final int EVENT_MTU_CHANGED = 4;
+  public static final int EVENT_READ_CHARACTERISTIC = 5;
+  public static final int EVENT_READ_DESCRIPTOR = 6;
+  public static final int EVENT_WRITE_CHARACTERISTIC = 7;
+  public static final int EVENT_WRITE_DESCRIPTOR = 8;
+  public static final int EVENT_PREPARE_WRITE = 9;
+  public static final int EVENT_EXECUTE_WRITE = 10;
+  public static final int EVENT_NOTIFICATION_SENT = 11;
+  public static final int EVENT_REQUEST_REJECTED = 12;
+
+  private static final String[] EVENT_NAMES = {
+      "?", "CONNECTED", "DISCONNECTED", "CONNECTION_ERROR", "MTU_CHANGED",
+      "READ_CHARACTERISTIC", "READ_DESCRIPTOR", "WRITE_CHARACTERISTIC", "WRITE_DESCRIPTOR",
+      "PREPARE_WRITE", "EXECUTE_WRITE", "NOTIFICATION_SENT", "REQUEST_REJECTED"};
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  private final int mCapacity;
+  private final long[] mTimestamps;
+  private final int[] mTypes;
+  private final int[] mDevices;
+  private final int[] mUuids;
+  private final int[] mStatuses;
+  private final int[] mArguments;
+  private final int[] mPayloadLengths;
+  private final byte[] mPayloads;
+  // Total number of events ever recorded; the next event goes to mCount % mCapacity.
+  private long mCount;
+
+  private final HashMap<String, Integer> mDeviceIndexes = new HashMap<>();
+  private final ArrayList<String> mDeviceAddresses = new ArrayList<>();
+  private final HashMap<UUID, Integer> mUuidIndexes = new HashMap<>();
+  private final ArrayList<UUID> mUuidList = new ArrayList<>();
+
+  public GattTrace() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public GattTrace(int capacity) {
+    mCapacity = capacity;
+    mTimestamps = new long[capacity];
+    mTypes = new int[capacity];
+    mDevices = new int[capacity];
+    mUuids = new int[capacity];
+    mStatuses = new int[capacity];
+    mArguments = new int[capacity];
+    mPayloadLengths = new int[capacity];
+    mPayloads = new byte[capacity * MAX_PAYLOAD_LENGTH];
+  }
+
+  /**
+   * Records an event.
+   *
+   * @param deviceAddress Address of the device, or null.
+   * @param uuid UUID of the attribute, or null.
+   * @param argument Event specific value: offset for reads and writes, MTU for MTU changes,
+   * request id for rejected requests.
+   * @param payload Value read, written or sent, or null. Only the first
+   * {@link #MAX_PAYLOAD_LENGTH} bytes are kept, along with the full length.
+   */
+  public synchronized void record(int type, String deviceAddress, UUID uuid, int status,
+      int argument, byte[] payload) {
+    int slot = (int) (mCount % mCapacity);
+    mCount++;
+    mTimestamps[slot] = System.nanoTime();
+    mTypes[slot] = type;
+    mDevices[slot] = deviceAddress == null ? -1 : indexOf(deviceAddress, mDeviceIndexes,
+        mDeviceAddresses);
+    mUuids[slot] = uuid == null ? -1 : indexOf(uuid, mUuidIndexes, mUuidList);
+    mStatuses[slot] = status;
+    mArguments[slot] = argument;
+    if (payload == null) {
+      mPayloadLengths[slot] = -1;
+    } else {
+      mPayloadLengths[slot] = payload.length;
+      System.arraycopy(payload, 0, mPayloads, slot * MAX_PAYLOAD_LENGTH,
+          Math.min(payload.length, MAX_PAYLOAD_LENGTH));
+    }
+  }
+
+  /**
+   * @return Number of events currently held, at most the capacity.
+   */
+  public synchronized int size() {
+    return (int) Math.min(mCount, mCapacity);
+  }
+
+  public synchronized void clear() {
+    mCount = 0;
+  }
+
+  /**
+   * Decodes the events currently held, oldest first, one line per event with the payload in hex
+   * and ASCII. Timestamps are relative to the oldest event.
+   */
+  public synchronized void dump(Writer out) throws IOException {
+    int size = size();
+    long first = mCount - size;
+    long startNanos = size == 0 ? 0 : mTimestamps[(int) (first % mCapacity)];
+    StringBuilder line = new StringBuilder(160);
+    for (long i = first; i < mCount; i++) {
+      int slot = (int) (i % mCapacity);
+      line.setLength(0);
+      line.append(String.format("%12.3f ms ", (mTimestamps[slot] - startNanos) / 1e6));
+      int type = mTypes[slot];
+      line.append(getEventName(type));
+      if (mDevices[slot] >= 0) {
+        line.append(" device=").append(mDeviceAddresses.get(mDevices[slot]));
+      }
+      if (mUuids[slot] >= 0) {
+        line.append(" uuid=").append(mUuidList.get(mUuids[slot]));
+      }
+      line.append(" status=").append(mStatuses[slot]);
+      line.append(" arg=").append(mArguments[slot]);
+      int length = mPayloadLengths[slot];
+      if (length >= 0) {
+        line.append(" len=").append(length).append(" |");
+        appendPayload(line, mPayloads, slot * MAX_PAYLOAD_LENGTH,
+            Math.min(length, MAX_PAYLOAD_LENGTH), length > MAX_PAYLOAD_LENGTH);
+      }
+      line.append('\n');
+      out.append(line);
+    }
+  }
+
+  /**
+   * @return Name of one of the EVENT_* constants, as it appears in {@link #dump}.
+   */
+  public static String getEventName(int type) {
+    return type > 0 && type < EVENT_NAMES.length ? EVENT_NAMES[type] : EVENT_NAMES[0];
+  }
+
+  /**
+   * Appends a value as space separated hex bytes followed by its printable ASCII form.
+   */
+  public static void appendPayload(StringBuilder out, byte[] value, int offset, int length,
+      boolean truncated) {
+    for (int i = offset; i < offset + length; i++) {
+      int b = value[i] & 0xFF;
+      out.append(' ').append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0F]);
+    }
+    if (truncated) {
+      out.append(" ...");
+    }
+    out.append(" | ");
+    for (int i = offset; i < offset + length; i++) {
+      char c = (char) (value[i] & 0xFF);
+      out.append(c >= ' ' && c <= '~' ? c : '.');
+    }
+  }
+
+  private static <T> int indexOf(T key, HashMap<T, Integer> indexes, ArrayList<T> keys) {
+    Integer index = indexes.get(key);
+    if (index == null) {
+      index = keys.size();
+      keys.add(key);
+      indexes.put(key, index);
+    }
+    return index;
+  }
+}
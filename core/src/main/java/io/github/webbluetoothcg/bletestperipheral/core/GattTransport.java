@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The part of a Bluetooth stack a GATT peripheral talks to: a GATT server, its callbacks and
+ * an advertiser.
+ *
+ * Devices are identified by their address. Attributes are the {@link GattService},
+ * {@link GattCharacteristic} and {@link GattDescriptor} instances that were added with
+ * {@link #addService}, and the same instances are handed back in the callbacks. Nothing here
+ * depends on Android, so the peripheral logic runs on any JVM, e.g. on top of
+ * {@link LoopbackGattTransport}.
+ */
+public interface GattTransport {
+
+  int STATE_DISCONNECTED = 0;
+  int STATE_CONNECTED = 2;
+
+  int ADVERTISE_FAILED_DATA_TOO_LARGE = 1;
+  int ADVERTISE_FAILED_TOO_MANY_ADVERTISERS = 2;
+  int ADVERTISE_FAILED_ALREADY_STARTED = 3;
+  int ADVERTISE_FAILED_INTERNAL_ERROR = 4;
+  int ADVERTISE_FAILED_FEATURE_UNSUPPORTED = 5;
+
+  /**
+   * Events of the GATT server. Called on a transport thread, the equivalent of the Bluetooth
+   * binder thread; implementations must not block it for long.
+   */
+  interface Callback {
+    void onConnectionStateChange(String device, int status, int newState);
+
+    void onServiceAdded(int status, GattService service);
+
+    void onCharacteristicReadRequest(String device, int requestId, int offset,
+        GattCharacteristic characteristic);
+
+    void onCharacteristicWriteRequest(String device, int requestId,
+        GattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded,
+        int offset, byte[] value);
+
+    void onDescriptorReadRequest(String device, int requestId, int offset,
+        GattDescriptor descriptor);
+
+    void onDescriptorWriteRequest(String device, int requestId, GattDescriptor descriptor,
+        boolean preparedWrite, boolean responseNeeded, int offset, byte[] value);
+
+    void onExecuteWrite(String device, int requestId, boolean execute);
+
+    void onNotificationSent(String device, int status);
+
+    void onMtuChanged(String device, int mtu);
+  }
+
+  /**
+   * Outcome of {@link #startAdvertising}.
+   */
+  interface AdvertiseCallback {
+    void onStartSuccess();
+
+    /**
+     * @param errorCode One of the ADVERTISE_FAILED_* constants.
+     */
+    void onStartFailure(int errorCode);
+  }
+
+  /**
+   * Opens the GATT server. Events are delivered to the callback until {@link #close}.
+   *
+   * @return false if the server couldn't be opened, e.g. because Bluetooth is disabled.
+   */
+  boolean open(Callback callback);
+
+  void close();
+
+  /**
+   * Adds a service. The server accepts one service at a time: wait for
+   * {@link Callback#onServiceAdded} before adding the next one.
+   *
+   * @return false if the service couldn't be added.
+   */
+  boolean addService(GattService service);
+
+  boolean sendResponse(String device, int requestId, int status, int offset, byte[] value);
+
+  /**
+   * Sends a notification, or an indication if confirm is true, carrying the given value.
+   * {@link Callback#onNotificationSent} follows if this returns true. The value of the
+   * characteristic itself, which reads return, must be left untouched.
+   */
+  boolean notifyCharacteristicChanged(String device, GattCharacteristic characteristic,
+      byte[] value, boolean confirm);
+
+  void cancelConnection(String device);
+
+  boolean isAdvertisingSupported();
+
+  void startAdvertising(List<UUID> serviceUuids, AdvertiseCallback callback);
+
+  void stopAdvertising();
+}
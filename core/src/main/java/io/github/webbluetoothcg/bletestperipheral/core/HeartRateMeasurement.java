@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+/**
+ * Encodes the value of the org.bluetooth.characteristic.heart_rate_measurement characteristic.
+ */
+public final class HeartRateMeasurement {
+
+  /*
+   * Flags = 1 << 3:
+   *   Heart Rate Format (0) -> UINT8
+   *   Sensor Contact Status (00) -> Not Supported
+   *   Energy Expended (1) -> Field Present
+   *   RR-Interval (0) -> Field not pressent
+   *   Unused (000)
+   */
+  public static final int FLAGS_ENERGY_EXPENDED_PRESENT = 0b00001000;
+  public static final int FLAGS_HEART_RATE_UINT16 = 0b00000001;
+  public static final int FLAGS_RR_INTERVAL_PRESENT = 0b00010000;
+
+  public static final int HEART_RATE_OFFSET = 1;
+  public static final int ENERGY_EXPENDED_OFFSET = 2;
+  // Flags (8bit) + Heart Rate Measurement Value (uint8) + Energy Expended (uint16) = 4 bytes
+  public static final int LENGTH = 4;
+  // RR-Intervals are uint16 in units of 1/1024 second.
+  public static final int RR_INTERVAL_LENGTH = 2;
+  public static final int RR_INTERVAL_UNITS_PER_SECOND = 1024;
+  private static final int MAX_UINT8 = 0xFF;
+
+  private HeartRateMeasurement() {
+  }
+
+  /**
+   * @param heartRate Heart rate in beats per minute, as a uint8.
+   * @param energyExpended Energy expended in kilojoules, as a uint16.
+   * @return [flags, heart rate value, energy expended (LSB), energy expended (MSB)]
+   */
+  public static byte[] encode(int heartRate, int energyExpended) {
+    byte[] value = new byte[LENGTH];
+    value[0] = (byte) FLAGS_ENERGY_EXPENDED_PRESENT;
+    value[HEART_RATE_OFFSET] = (byte) heartRate;
+    value[ENERGY_EXPENDED_OFFSET] = (byte) energyExpended;
+    value[ENERGY_EXPENDED_OFFSET + 1] = (byte) (energyExpended >> 8);
+    return value;
+  }
+
+  /**
+   * @param heartRate Heart rate in beats per minute. Sent as a uint16 if it doesn't fit a uint8.
+   * @param energyExpended Energy expended in kilojoules, as a uint16, or -1 to leave it out.
+   * @param rrIntervals RR-Intervals in 1/1024 second, oldest first, as uint16s.
+   * @param offset Index of the first RR-Interval to send.
+   * @param count Number of RR-Intervals to send, none if 0.
+   * @return [flags, heart rate value, energy expended?, RR-Intervals...]
+   */
+  public static byte[] encode(int heartRate, int energyExpended, int[] rrIntervals, int offset,
+      int count) {
+    boolean uint16 = heartRate > MAX_UINT8;
+    boolean energyExpendedPresent = energyExpended >= 0;
+    byte[] value = new byte[getLength(uint16, energyExpendedPresent, count)];
+    int flags = 0;
+    // The flags go first once all the fields are known.
+    int index = 1;
+    value[index++] = (byte) heartRate;
+    if (uint16) {
+      flags |= FLAGS_HEART_RATE_UINT16;
+      value[index++] = (byte) (heartRate >> 8);
+    }
+    if (energyExpendedPresent) {
+      flags |= FLAGS_ENERGY_EXPENDED_PRESENT;
+      value[index++] = (byte) energyExpended;
+      value[index++] = (byte) (energyExpended >> 8);
+    }
+    if (count > 0) {
+      flags |= FLAGS_RR_INTERVAL_PRESENT;
+    }
+    for (int i = offset; i < offset + count; i++) {
+      value[index++] = (byte) rrIntervals[i];
+      value[index++] = (byte) (rrIntervals[i] >> 8);
+    }
+    value[0] = (byte) flags;
+    return value;
+  }
+
+  /**
+   * @param payloadSize Bytes available in a notification, i.e. ATT_MTU - 3.
+   * @return How many RR-Intervals fit next to the other fields of a measurement.
+   */
+  public static int getMaxRrIntervals(int payloadSize, int heartRate,
+      boolean energyExpendedPresent) {
+    int available = payloadSize - getLength(heartRate > MAX_UINT8, energyExpendedPresent, 0);
+    return Math.max(0, available / RR_INTERVAL_LENGTH);
+  }
+
+  private static int getLength(boolean uint16, boolean energyExpendedPresent, int rrIntervals) {
+    return 2 + (uint16 ? 1 : 0) + (energyExpendedPresent ? 2 : 0)
+        + rrIntervals * RR_INTERVAL_LENGTH;
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Notifies Heart Rate Measurements generated by a {@link HeartRateWaveform} to every device
+ * subscribed to a characteristic, for as long as something calls {@link #tick}.
+ *
+ * Every tick generates the beats that happened since the previous one and sends each device
+ * one measurement with as many of the RR-Intervals it hasn't received yet as fit its ATT_MTU;
+ * the rest wait for the next tick, as the Heart Rate Service allows. A device that falls too
+ * far behind loses its oldest intervals. Energy expended, if set, goes in every tenth
+ * measurement of a device, as the service recommends, to leave room for RR-Intervals.
+ *
+ * Created with {@link GattPeripheral#startHeartRateStream}. The counters may be read from any
+ * thread.
+ */
+public class HeartRateStream {
+
+  // RR-Intervals kept for devices that couldn't take them yet: over a minute at 60 bpm.
+  private static final int BACKLOG_CAPACITY = 64;
+  private static final int ENERGY_EXPENDED_PERIOD = 10;
+
+  private static class DeviceState {
+    // Index, in the whole series, of the next RR-Interval to send.
+    long nextBeat;
+    int measurements;
+  }
+
+  private final GattPeripheral mPeripheral;
+  private final GattCharacteristic mCharacteristic;
+  private final HeartRateWaveform mWaveform;
+  private final long mStartTimeNanos = System.nanoTime();
+  private volatile int mEnergyExpended = -1;
+  private volatile boolean mStopped;
+  private final AtomicLong mMeasurementsSent = new AtomicLong();
+  private final AtomicLong mRrIntervalsSent = new AtomicLong();
+  private final AtomicLong mRrIntervalsDropped = new AtomicLong();
+  private volatile int mHeartRate;
+
+  // Only accessed on the event loop.
+  private final HashMap<String, DeviceState> mDevices = new HashMap<>();
+  private final int[] mBacklog = new int[BACKLOG_CAPACITY];
+  private final int[] mScratch = new int[BACKLOG_CAPACITY];
+  private long mBeats;
+  // Index of the first beat generated by the current tick.
+  private long mTickFirstBeat;
+
+  /*
+   * Accounts for a measurement that never left the queue. Runs on the event loop.
+   */
+  private class MeasurementListener implements NotificationQueue.DeliveryListener {
+    private final int mRrIntervals;
+
+    MeasurementListener(int rrIntervals) {
+      mRrIntervals = rrIntervals;
+    }
+
+    @Override
+    public void onDeliveryResult(String device, GattCharacteristic characteristic,
+        int status) {
+      if (status == NotificationQueue.RESULT_DROPPED
+          || status == NotificationQueue.RESULT_SEND_FAILED) {
+        mMeasurementsSent.decrementAndGet();
+        mRrIntervalsSent.addAndGet(-mRrIntervals);
+        mRrIntervalsDropped.addAndGet(mRrIntervals);
+      }
+    }
+  }
+
+  private final Runnable mTick = new Runnable() {
+    @Override
+    public void run() {
+      if (!mStopped) {
+        generateBeats();
+        notifyDevices();
+      }
+    }
+  };
+
+  HeartRateStream(GattPeripheral peripheral, GattCharacteristic characteristic,
+      HeartRateWaveform waveform) {
+    mPeripheral = peripheral;
+    mCharacteristic = characteristic;
+    mWaveform = waveform;
+  }
+
+  public GattCharacteristic getCharacteristic() {
+    return mCharacteristic;
+  }
+
+  public HeartRateWaveform getWaveform() {
+    return mWaveform;
+  }
+
+  /**
+   * Sends the beats since the last tick. Meant to be called periodically, from any thread; the
+   * period is the notification cadence.
+   */
+  public void tick() {
+    if (!mStopped) {
+      mPeripheral.runOnEventLoop(mTick);
+    }
+  }
+
+  /**
+   * @param energyExpended Energy expended in kilojoules, or -1 to leave it out.
+   */
+  public void setEnergyExpended(int energyExpended) {
+    mEnergyExpended = energyExpended;
+  }
+
+  /**
+   * Stops sending measurements. Measurements already queued are still delivered.
+   */
+  public void stop() {
+    mStopped = true;
+  }
+
+  /**
+   * @return The heart rate of the last beat generated, in beats per minute, or 0 before the
+   * first one.
+   */
+  public int getHeartRate() {
+    return mHeartRate;
+  }
+
+  public long getMeasurementsSent() {
+    return mMeasurementsSent.get();
+  }
+
+  public long getRrIntervalsSent() {
+    return mRrIntervalsSent.get();
+  }
+
+  /**
+   * @return RR-Intervals a device never received because it fell behind, its queue was full
+   * or the stack refused the measurement.
+   */
+  public long getRrIntervalsDropped() {
+    return mRrIntervalsDropped.get();
+  }
+
+  public long getStartTimeNanos() {
+    return mStartTimeNanos;
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  private void generateBeats() {
+    long elapsedMs = (System.nanoTime() - mStartTimeNanos) / 1000000;
+    mTickFirstBeat = mBeats;
+    while (mWaveform.getElapsedMillis() <= elapsedMs) {
+      mBacklog[(int) (mBeats % BACKLOG_CAPACITY)] = mWaveform.nextRrInterval();
+      mBeats++;
+    }
+    mHeartRate = mWaveform.getHeartRate();
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  private void notifyDevices() {
+    int heartRate = mHeartRate;
+    int energyExpended = mEnergyExpended;
+    for (String device : mPeripheral.getDevices()) {
+      int subscription = mPeripheral.getSubscription(device, mCharacteristic);
+      if (subscription == SubscriptionTable.SUBSCRIPTION_NONE) {
+        continue;
+      }
+      DeviceState state = mDevices.get(device);
+      if (state == null) {
+        // Starts with the beats of this tick rather than the whole backlog.
+        state = new DeviceState();
+        state.nextBeat = mTickFirstBeat;
+        mDevices.put(device, state);
+      }
+      long oldestBeat = Math.max(0, mBeats - BACKLOG_CAPACITY);
+      if (state.nextBeat < oldestBeat) {
+        mRrIntervalsDropped.addAndGet(oldestBeat - state.nextBeat);
+        state.nextBeat = oldestBeat;
+      }
+      int deviceEnergyExpended =
+          state.measurements % ENERGY_EXPENDED_PERIOD == 0 ? energyExpended : -1;
+      int maxCount = HeartRateMeasurement.getMaxRrIntervals(
+          mPeripheral.getMtu(device) - GattPeripheral.NOTIFICATION_HEADER_LENGTH, heartRate,
+          deviceEnergyExpended >= 0);
+      int count = (int) Math.min(maxCount, mBeats - state.nextBeat);
+      for (int i = 0; i < count; i++) {
+        mScratch[i] = mBacklog[(int) ((state.nextBeat + i) % BACKLOG_CAPACITY)];
+      }
+      byte[] value = HeartRateMeasurement.encode(heartRate, deviceEnergyExpended, mScratch,
+          /* offset */ 0, count);
+      boolean indicate = subscription == SubscriptionTable.SUBSCRIPTION_INDICATE;
+      // Counted as sent up front; the listener takes a measurement the queue dropped or the
+      // stack refused back, whether now or later, and counts its RR-Intervals as dropped.
+      state.nextBeat += count;
+      state.measurements++;
+      mMeasurementsSent.incrementAndGet();
+      mRrIntervalsSent.addAndGet(count);
+      mPeripheral.enqueueNotification(device, mCharacteristic, value, indicate,
+          new MeasurementListener(count));
+    }
+    // Forgets the devices that unsubscribed or disconnected.
+    Iterator<Map.Entry<String, DeviceState>> iterator = mDevices.entrySet().iterator();
+    while (iterator.hasNext()) {
+      String device = iterator.next().getKey();
+      if (mPeripheral.getSubscription(device, mCharacteristic)
+          == SubscriptionTable.SUBSCRIPTION_NONE) {
+        iterator.remove();
+      }
+    }
+  }
+}
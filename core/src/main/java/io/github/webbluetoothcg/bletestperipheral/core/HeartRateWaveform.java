@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.Random;
+
+/**
+ * Generates a plausible series of RR-Intervals, beat after beat, for sustained heart rate
+ * variability load.
+ *
+ * Each interval is the mean interval of the current heart rate, modulated by respiratory sinus
+ * arrhythmia (about 0.25 Hz), Mayer waves (about 0.1 Hz) and noise, scaled by the variability.
+ * The variability shrinks as the heart rate rises above the resting rate, as it does during
+ * exercise. An optional exercise profile ramps the rate from rest to a peak and back,
+ * repeatedly. The sine and noise come from tables computed once, so a beat costs a few
+ * multiplications and the series is the same for the same seed.
+ *
+ * The parameters may be changed from any thread; they apply from the next beat.
+ */
+public class HeartRateWaveform {
+
+  public static final int DEFAULT_RESTING_RATE = 60;
+  // Standard deviation of the RR-Intervals at the resting rate, in milliseconds.
+  public static final int DEFAULT_VARIABILITY_MS = 50;
+
+  private static final int SINE_TABLE_SIZE = 1024;
+  private static final int NOISE_TABLE_SIZE = 4096;
+  private static final float[] SINE_TABLE = new float[SINE_TABLE_SIZE];
+  private static final double RESPIRATION_HZ = 0.25;
+  private static final double MAYER_WAVE_HZ = 0.1;
+  // Weights of the components; their combined standard deviation is about 1.
+  private static final double RESPIRATION_WEIGHT = 1.0;
+  private static final double MAYER_WAVE_WEIGHT = 0.6;
+  private static final double NOISE_WEIGHT = 0.6;
+  private static final int MIN_RR_MS = 250;
+  private static final int MAX_RR_MS = 2500;
+
+  static {
+    for (int i = 0; i < SINE_TABLE_SIZE; i++) {
+      SINE_TABLE[i] = (float) Math.sin(2 * Math.PI * i / SINE_TABLE_SIZE);
+    }
+  }
+
+  private final float[] mNoiseTable = new float[NOISE_TABLE_SIZE];
+  private int mNoiseIndex;
+  // Time of the next beat since the start of the series.
+  private double mElapsedMs;
+  private int mLastRrMs;
+
+  private int mRestingRate = DEFAULT_RESTING_RATE;
+  private int mVariabilityMs = DEFAULT_VARIABILITY_MS;
+  private int mPeakRate;
+  private double mRestMs;
+  private double mRampMs;
+  private double mHoldMs;
+
+  public HeartRateWaveform(long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < NOISE_TABLE_SIZE; i++) {
+      mNoiseTable[i] = (float) random.nextGaussian();
+    }
+  }
+
+  /**
+   * @param restingRate Mean heart rate in beats per minute outside of exercise.
+   */
+  public synchronized void setRestingRate(int restingRate) {
+    mRestingRate = Math.max(1, restingRate);
+  }
+
+  /**
+   * @param variabilityMs Standard deviation of the RR-Intervals at the resting rate.
+   */
+  public synchronized void setVariability(int variabilityMs) {
+    mVariabilityMs = Math.max(0, variabilityMs);
+  }
+
+  /**
+   * Repeats a cycle of rest, ramp up to the peak rate, hold, and ramp down. A peak rate that
+   * isn't above the resting rate turns exercise off.
+   */
+  public synchronized void setExercise(int peakRate, int restSeconds, int rampSeconds,
+      int holdSeconds) {
+    mPeakRate = peakRate;
+    mRestMs = Math.max(0, restSeconds) * 1000.0;
+    mRampMs = Math.max(0, rampSeconds) * 1000.0;
+    mHoldMs = Math.max(0, holdSeconds) * 1000.0;
+  }
+
+  /**
+   * @return The next RR-Interval in 1/1024 second.
+   */
+  public synchronized int nextRrInterval() {
+    double rate = getMeanRate(mElapsedMs);
+    double meanRrMs = 60000.0 / rate;
+    double relativeRate = mRestingRate / rate;
+    double deviationMs = mVariabilityMs * relativeRate * relativeRate;
+    double modulation = RESPIRATION_WEIGHT * sine(RESPIRATION_HZ, mElapsedMs)
+        + MAYER_WAVE_WEIGHT * sine(MAYER_WAVE_HZ, mElapsedMs)
+        + NOISE_WEIGHT * mNoiseTable[mNoiseIndex];
+    mNoiseIndex = (mNoiseIndex + 1) % NOISE_TABLE_SIZE;
+    int rrMs = (int) Math.round(meanRrMs + deviationMs * modulation);
+    rrMs = Math.min(MAX_RR_MS, Math.max(MIN_RR_MS, rrMs));
+    mElapsedMs += rrMs;
+    mLastRrMs = rrMs;
+    return rrMs * HeartRateMeasurement.RR_INTERVAL_UNITS_PER_SECOND / 1000;
+  }
+
+  /**
+   * @return Time from the start of the series to the end of the last interval returned.
+   */
+  public synchronized long getElapsedMillis() {
+    return (long) mElapsedMs;
+  }
+
+  /**
+   * @return The instantaneous heart rate of the last interval returned, in beats per minute.
+   */
+  public synchronized int getHeartRate() {
+    return mLastRrMs == 0 ? mRestingRate : Math.round(60000f / mLastRrMs);
+  }
+
+  private double getMeanRate(double elapsedMs) {
+    double cycleMs = mRestMs + 2 * mRampMs + mHoldMs;
+    if (mPeakRate <= mRestingRate || cycleMs <= 0) {
+      return mRestingRate;
+    }
+    double t = elapsedMs % cycleMs;
+    double effort;
+    if (t < mRestMs) {
+      effort = 0;
+    } else if (t < mRestMs + mRampMs) {
+      effort = ease((t - mRestMs) / mRampMs);
+    } else if (t < mRestMs + mRampMs + mHoldMs) {
+      effort = 1;
+    } else {
+      effort = 1 - ease((t - mRestMs - mRampMs - mHoldMs) / mRampMs);
+    }
+    return mRestingRate + (mPeakRate - mRestingRate) * effort;
+  }
+
+  // Smooth 0 to 1 transition over [0, 1]: (1 - cos(pi x)) / 2.
+  private static double ease(double x) {
+    return (1 - cosine(x / 2)) / 2;
+  }
+
+  private static double sine(double frequencyHz, double elapsedMs) {
+    double cycles = frequencyHz * elapsedMs / 1000;
+    return SINE_TABLE[(int) ((cycles - Math.floor(cycles)) * SINE_TABLE_SIZE)];
+  }
+
+  // cos(2 pi x) for x in [0, 1).
+  private static double cosine(double x) {
+    return SINE_TABLE[((int) (x * SINE_TABLE_SIZE) + SINE_TABLE_SIZE / 4) % SINE_TABLE_SIZE];
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.math.BigDecimal;
+
+/**
+ * Converts numbers to and from the decimal floating point types of ISO/IEEE 11073-20601 that
+ * medical characteristics use: FLOAT (24-bit mantissa, 8-bit exponent) and SFLOAT (12-bit
+ * mantissa, 4-bit exponent), both two's complement, meaning mantissa * 10^exponent.
+ *
+ * Encoded values are held in ints, FLOAT in all 32 bits and SFLOAT in the low 16, and written
+ * little-endian into buffers owned by the caller, so nothing is allocated, except to decode the
+ * rare FLOATs whose exponent is beyond +/-22. Rounding is decimal:
+ * the mantissa is the value scaled by a power of ten with a single correctly rounded operation,
+ * then rounded half away from zero, so 36.6 is encoded as 366 * 10^-1 rather than as the
+ * nearest binary fraction. NaN and infinities map to the reserved special values, and a value
+ * too large for the requested exponent to NRes (not at this resolution).
+ */
+public final class Ieee11073Float {
+
+  public static final int FLOAT_LENGTH = 4;
+  public static final int SFLOAT_LENGTH = 2;
+
+  public static final int FLOAT_NAN = 0x007FFFFF;
+  public static final int FLOAT_NRES = 0x00800000;
+  public static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+  public static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+  // Reserved for future use.
+  public static final int FLOAT_RESERVED = 0x00800001;
+
+  public static final int SFLOAT_NAN = 0x07FF;
+  public static final int SFLOAT_NRES = 0x0800;
+  public static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+  public static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+  public static final int SFLOAT_RESERVED = 0x0801;
+
+  // The largest mantissas left by the special values, which take both ends of the range.
+  public static final int FLOAT_MAX_MANTISSA = 0x7FFFFD;
+  public static final int SFLOAT_MAX_MANTISSA = 0x07FD;
+  public static final int FLOAT_MIN_EXPONENT = -128;
+  public static final int FLOAT_MAX_EXPONENT = 127;
+  public static final int SFLOAT_MIN_EXPONENT = -8;
+  public static final int SFLOAT_MAX_EXPONENT = 7;
+
+  // Decimal digits of the largest mantissas.
+  private static final int FLOAT_DIGITS = 7;
+  private static final int SFLOAT_DIGITS = 4;
+  // Powers of ten up to the largest one a double holds exactly.
+  private static final double[] POWERS_OF_TEN = new double[23];
+
+  private static final class Format {
+    final int mantissaBits;
+    final int exponentBits;
+    final int maxMantissa;
+    final int digits;
+    final int minExponent;
+    final int maxExponent;
+    final int nan;
+    final int nres;
+    final int positiveInfinity;
+    final int negativeInfinity;
+
+    Format(int mantissaBits, int exponentBits, int maxMantissa, int digits, int nan, int nres,
+        int positiveInfinity, int negativeInfinity) {
+      this.mantissaBits = mantissaBits;
+      this.exponentBits = exponentBits;
+      this.maxMantissa = maxMantissa;
+      this.digits = digits;
+      this.minExponent = -(1 << (exponentBits - 1));
+      this.maxExponent = (1 << (exponentBits - 1)) - 1;
+      this.nan = nan;
+      this.nres = nres;
+      this.positiveInfinity = positiveInfinity;
+      this.negativeInfinity = negativeInfinity;
+    }
+  }
+
+  private static final Format FLOAT = new Format(24, 8, FLOAT_MAX_MANTISSA, FLOAT_DIGITS,
+      FLOAT_NAN, FLOAT_NRES, FLOAT_POSITIVE_INFINITY, FLOAT_NEGATIVE_INFINITY);
+  private static final Format SFLOAT = new Format(12, 4, SFLOAT_MAX_MANTISSA, SFLOAT_DIGITS,
+      SFLOAT_NAN, SFLOAT_NRES, SFLOAT_POSITIVE_INFINITY, SFLOAT_NEGATIVE_INFINITY);
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private Ieee11073Float() {
+  }
+
+  /**
+   * @return The FLOAT closest to the value with as many significant digits as fit, and no
+   * trailing zeros in the mantissa.
+   */
+  public static int toFloat(double value) {
+    return encode(value, FLOAT);
+  }
+
+  /**
+   * @param exponent The resolution of the value, e.g. -2 for hundredths.
+   * @return The FLOAT with the given exponent closest to the value, or {@link #FLOAT_NRES} if
+   * the value is too large for that resolution.
+   */
+  public static int toFloat(double value, int exponent) {
+    return encode(value, exponent, FLOAT);
+  }
+
+  /**
+   * @return The SFLOAT closest to the value with as many significant digits as fit, and no
+   * trailing zeros in the mantissa.
+   */
+  public static int toSfloat(double value) {
+    return encode(value, SFLOAT);
+  }
+
+  /**
+   * @param exponent The resolution of the value, e.g. -1 for tenths.
+   * @return The SFLOAT with the given exponent closest to the value, or {@link #SFLOAT_NRES}
+   * if the value is too large for that resolution.
+   */
+  public static int toSfloat(double value, int exponent) {
+    return encode(value, exponent, SFLOAT);
+  }
+
+  /**
+   * @return The value of the FLOAT: the double closest to its decimal value, an infinity, or
+   * NaN for NaN, NRes and the reserved value.
+   */
+  public static double floatToDouble(int bits) {
+    switch (bits) {
+      case FLOAT_POSITIVE_INFINITY:
+        return Double.POSITIVE_INFINITY;
+      case FLOAT_NEGATIVE_INFINITY:
+        return Double.NEGATIVE_INFINITY;
+      case FLOAT_NAN:
+      case FLOAT_NRES:
+      case FLOAT_RESERVED:
+        return Double.NaN;
+      default:
+        return decode(bits, FLOAT);
+    }
+  }
+
+  /**
+   * @return The value of the SFLOAT: the double closest to its decimal value, an infinity, or
+   * NaN for NaN, NRes and the reserved value.
+   */
+  public static double sfloatToDouble(int bits) {
+    bits &= 0xFFFF;
+    switch (bits) {
+      case SFLOAT_POSITIVE_INFINITY:
+        return Double.POSITIVE_INFINITY;
+      case SFLOAT_NEGATIVE_INFINITY:
+        return Double.NEGATIVE_INFINITY;
+      case SFLOAT_NAN:
+      case SFLOAT_NRES:
+      case SFLOAT_RESERVED:
+        return Double.NaN;
+      default:
+        return decode(bits, SFLOAT);
+    }
+  }
+
+  /**
+   * @return The mantissa of a FLOAT, sign extended. Meaningless for the special values.
+   */
+  public static int getFloatMantissa(int bits) {
+    return getMantissa(bits, FLOAT);
+  }
+
+  public static int getFloatExponent(int bits) {
+    return getExponent(bits, FLOAT);
+  }
+
+  /**
+   * @return The mantissa of an SFLOAT, sign extended. Meaningless for the special values.
+   */
+  public static int getSfloatMantissa(int bits) {
+    return getMantissa(bits, SFLOAT);
+  }
+
+  public static int getSfloatExponent(int bits) {
+    return getExponent(bits, SFLOAT);
+  }
+
+  /**
+   * Writes a FLOAT little-endian.
+   *
+   * @return The offset following the value.
+   */
+  public static int writeFloat(int bits, byte[] buffer, int offset) {
+    buffer[offset] = (byte) bits;
+    buffer[offset + 1] = (byte) (bits >> 8);
+    buffer[offset + 2] = (byte) (bits >> 16);
+    buffer[offset + 3] = (byte) (bits >> 24);
+    return offset + FLOAT_LENGTH;
+  }
+
+  /**
+   * Writes an SFLOAT little-endian.
+   *
+   * @return The offset following the value.
+   */
+  public static int writeSfloat(int bits, byte[] buffer, int offset) {
+    buffer[offset] = (byte) bits;
+    buffer[offset + 1] = (byte) (bits >> 8);
+    return offset + SFLOAT_LENGTH;
+  }
+
+  public static int readFloat(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8
+        | (buffer[offset + 2] & 0xFF) << 16 | (buffer[offset + 3] & 0xFF) << 24;
+  }
+
+  public static int readSfloat(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int encode(double value, Format format) {
+    if (Double.isNaN(value)) {
+      return format.nan;
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? format.positiveInfinity : format.negativeInfinity;
+    }
+    double magnitude = Math.abs(value);
+    if (magnitude == 0) {
+      return 0;
+    }
+    // The exponent that leaves as many digits as the mantissa holds; one more if rounding or
+    // the estimate from log10 overflows it.
+    int exponent = Math.max(format.minExponent,
+        (int) Math.floor(Math.log10(magnitude)) + 1 - format.digits);
+    long mantissa = round(scale(magnitude, -exponent));
+    while (mantissa > format.maxMantissa) {
+      exponent++;
+      mantissa = round(scale(magnitude, -exponent));
+    }
+    if (exponent > format.maxExponent) {
+      return value > 0 ? format.positiveInfinity : format.negativeInfinity;
+    }
+    if (mantissa == 0) {
+      // Below the smallest magnitude the type holds.
+      return 0;
+    }
+    while (mantissa % 10 == 0 && exponent < format.maxExponent) {
+      mantissa /= 10;
+      exponent++;
+    }
+    return pack(value < 0 ? -mantissa : mantissa, exponent, format);
+  }
+
+  private static int encode(double value, int exponent, Format format) {
+    if (exponent < format.minExponent || exponent > format.maxExponent) {
+      throw new IllegalArgumentException("Exponent out of range: " + exponent);
+    }
+    if (Double.isNaN(value)) {
+      return format.nan;
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? format.positiveInfinity : format.negativeInfinity;
+    }
+    long mantissa = round(scale(Math.abs(value), -exponent));
+    if (mantissa > format.maxMantissa) {
+      return format.nres;
+    }
+    return pack(value < 0 ? -mantissa : mantissa, exponent, format);
+  }
+
+  private static int pack(long mantissa, int exponent, Format format) {
+    int packed = exponent << format.mantissaBits
+        | ((int) mantissa & ((1 << format.mantissaBits) - 1));
+    return (int) (packed & ((1L << (format.mantissaBits + format.exponentBits)) - 1));
+  }
+
+  private static int getMantissa(int bits, Format format) {
+    return bits << (32 - format.mantissaBits) >> (32 - format.mantissaBits);
+  }
+
+  private static int getExponent(int bits, Format format) {
+    int shift = 32 - format.mantissaBits - format.exponentBits;
+    return bits << shift >> (shift + format.mantissaBits);
+  }
+
+  private static double decode(int bits, Format format) {
+    int mantissa = getMantissa(bits, format);
+    int exponent = getExponent(bits, format);
+    if (Math.abs(exponent) < POWERS_OF_TEN.length) {
+      return scale(mantissa, exponent);
+    }
+    // Past the exact powers of ten, scale() rounds more than once and may miss the closest
+    // double, e.g. 10 * 10^-128 would differ from 1 * 10^-127.
+    return new BigDecimal(mantissa).scaleByPowerOfTen(exponent).doubleValue();
+  }
+
+  /*
+   * @return value * 10^exponent, correctly rounded when |exponent| is at most 22, since the
+   * power of ten is then exact and a single multiplication or division rounds once.
+   */
+  private static double scale(double value, int exponent) {
+    while (exponent > POWERS_OF_TEN.length - 1) {
+      value *= POWERS_OF_TEN[POWERS_OF_TEN.length - 1];
+      exponent -= POWERS_OF_TEN.length - 1;
+    }
+    while (exponent < -(POWERS_OF_TEN.length - 1)) {
+      value /= POWERS_OF_TEN[POWERS_OF_TEN.length - 1];
+      exponent += POWERS_OF_TEN.length - 1;
+    }
+    return exponent >= 0 ? value * POWERS_OF_TEN[exponent] : value / POWERS_OF_TEN[-exponent];
+  }
+
+  // Half away from zero, for magnitudes.
+  private static long round(double magnitude) {
+    return (long) Math.floor(magnitude + 0.5);
+  }
+}
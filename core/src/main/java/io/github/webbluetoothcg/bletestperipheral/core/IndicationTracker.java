@@ -0,0 +1,306 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the indication outstanding on every device, from the moment the transport accepted it
+ * until the central confirmed it, and keeps the round-trip times of the confirmations, i.e. the
+ * latency of the link as seen from the peripheral.
+ *
+ * An indication that isn't confirmed within the timeout marks its device as stalled and is
+ * reported once to the callback, which is expected to drop the link. ATT allows a single
+ * outstanding indication per bearer and nothing more on it once a transaction timed out, so the
+ * indication is neither sent again nor given up: it stays outstanding, and keeps the slot of
+ * the device in the notification queue, until its confirmation or the disconnection arrives.
+ * A late confirmation therefore always matches the indication it confirms, and is counted along
+ * with its round-trip time.
+ *
+ * Everything but the getters, {@link #setTimeoutNanos} and {@link #reset} runs on the event
+ * loop of the {@link GattPeripheral}.
+ */
+public class IndicationTracker {
+
+  // ATT transaction timeout, see the Bluetooth Core Specification, Vol 3, Part F, 3.3.3.
+  public static final long DEFAULT_TIMEOUT_NANOS = 30000000000L;
+
+  /**
+   * Acts on indications that timed out. Implemented by the owner of the GATT server.
+   */
+  public interface Callback {
+    /**
+     * The indication outstanding on the device timed out, once per indication. The link is
+     * stalled: the device should be disconnected.
+     */
+    void onIndicationTimedOut(String device);
+  }
+
+  /**
+   * Counters of the indications of all devices together, or of one device.
+   */
+  public static class Stats {
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mConfirmed = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mTimedOut = new AtomicLong();
+    private final AtomicLatencyHistogram mRoundTrip = new AtomicLatencyHistogram();
+
+    public long getSent() {
+      return mSent.get();
+    }
+
+    public long getConfirmed() {
+      return mConfirmed.get();
+    }
+
+    /**
+     * @return Indications the stack reported with a status other than
+     * {@link GattStatus#SUCCESS}.
+     */
+    public long getFailed() {
+      return mFailed.get();
+    }
+
+    /**
+     * @return Indications not confirmed within the timeout, confirmed later or not.
+     */
+    public long getTimedOut() {
+      return mTimedOut.get();
+    }
+
+    /**
+     * @return A snapshot of the confirmation round-trip times in nanoseconds.
+     */
+    public LatencyHistogram getRoundTrip() {
+      return mRoundTrip.snapshot();
+    }
+  }
+
+  private static class Outstanding {
+    GattCharacteristic characteristic;
+    byte[] value;
+    long sentNanos;
+    // Timed out, waiting for the confirmation or the disconnection.
+    boolean stalled;
+  }
+
+  private final Callback mCallback;
+  private final Stats mTotal = new Stats();
+  private final ConcurrentHashMap<String, Stats> mDevices = new ConcurrentHashMap<>();
+  // Only accessed on the event loop, as are the Outstanding entries.
+  private final HashMap<String, Outstanding> mOutstanding = new HashMap<>();
+  private final ArrayList<String> mExpired = new ArrayList<>();
+  private final AtomicInteger mOutstandingCount = new AtomicInteger();
+  private volatile long mTimeoutNanos = DEFAULT_TIMEOUT_NANOS;
+
+  public IndicationTracker(Callback callback) {
+    mCallback = callback;
+  }
+
+  public void setTimeoutNanos(long timeoutNanos) {
+    if (timeoutNanos <= 0) {
+      throw new IllegalArgumentException("Timeout must be positive: " + timeoutNanos);
+    }
+    mTimeoutNanos = timeoutNanos;
+  }
+
+  public long getTimeoutNanos() {
+    return mTimeoutNanos;
+  }
+
+  /**
+   * Must be called once the transport accepted an indication.
+   */
+  public void onIndicationSent(String device, GattCharacteristic characteristic, byte[] value,
+      long sentNanos) {
+    Outstanding outstanding = mOutstanding.get(device);
+    if (outstanding == null) {
+      outstanding = new Outstanding();
+      mOutstanding.put(device, outstanding);
+    }
+    if (outstanding.characteristic == null) {
+      mOutstandingCount.incrementAndGet();
+    }
+    outstanding.characteristic = characteristic;
+    outstanding.value = value;
+    outstanding.sentNanos = sentNanos;
+    outstanding.stalled = false;
+    mTotal.mSent.incrementAndGet();
+    getStats(device).mSent.incrementAndGet();
+  }
+
+  /**
+   * Must be called from {@link GattTransport.Callback#onNotificationSent}. Does nothing unless
+   * an indication is outstanding on the device.
+   *
+   * @param receivedNanos When the transport reported the confirmation.
+   */
+  public void onNotificationSent(String device, int status, long receivedNanos) {
+    Outstanding outstanding = mOutstanding.get(device);
+    if (outstanding == null || outstanding.characteristic == null) {
+      return;
+    }
+    Stats stats = getStats(device);
+    if (status == GattStatus.SUCCESS) {
+      mTotal.mConfirmed.incrementAndGet();
+      stats.mConfirmed.incrementAndGet();
+      long roundTripNanos = receivedNanos - outstanding.sentNanos;
+      mTotal.mRoundTrip.record(roundTripNanos);
+      stats.mRoundTrip.record(roundTripNanos);
+    } else {
+      mTotal.mFailed.incrementAndGet();
+      stats.mFailed.incrementAndGet();
+    }
+    clear(outstanding);
+  }
+
+  /**
+   * Marks the devices whose indication is outstanding for longer than the timeout as stalled
+   * and reports them to the callback.
+   */
+  public void checkTimeouts(long nowNanos) {
+    long timeoutNanos = mTimeoutNanos;
+    for (HashMap.Entry<String, Outstanding> entry : mOutstanding.entrySet()) {
+      Outstanding outstanding = entry.getValue();
+      if (outstanding.characteristic != null && !outstanding.stalled
+          && nowNanos - outstanding.sentNanos >= timeoutNanos) {
+        outstanding.stalled = true;
+        mExpired.add(entry.getKey());
+      }
+    }
+    // The callback may disconnect the device, so not while iterating.
+    for (int i = 0; i < mExpired.size(); i++) {
+      String device = mExpired.get(i);
+      mTotal.mTimedOut.incrementAndGet();
+      getStats(device).mTimedOut.incrementAndGet();
+      mCallback.onIndicationTimedOut(device);
+    }
+    mExpired.clear();
+  }
+
+  /**
+   * @return true if the indication outstanding on the device timed out.
+   */
+  public boolean isStalled(String device) {
+    Outstanding outstanding = mOutstanding.get(device);
+    return outstanding != null && outstanding.characteristic != null && outstanding.stalled;
+  }
+
+  /**
+   * Forgets the indication outstanding on a device that disconnected.
+   */
+  public void removeDevice(String device) {
+    Outstanding outstanding = mOutstanding.remove(device);
+    if (outstanding != null && outstanding.characteristic != null) {
+      mOutstandingCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Forgets every outstanding indication, e.g. when the GATT server is closed.
+   */
+  public void clear() {
+    mOutstanding.clear();
+    mOutstandingCount.set(0);
+  }
+
+  /**
+   * @return Indications waiting for a confirmation, on every device together.
+   */
+  public int getOutstandingCount() {
+    return mOutstandingCount.get();
+  }
+
+  public Stats getTotal() {
+    return mTotal;
+  }
+
+  /**
+   * @return The counters of a device, or null if no indication was ever sent to it.
+   */
+  public Stats getDeviceStats(String device) {
+    return mDevices.get(device);
+  }
+
+  /**
+   * Forgets every counter, but not the outstanding indications.
+   */
+  public void reset() {
+    mDevices.clear();
+    resetStats(mTotal);
+  }
+
+  /**
+   * Writes the counters and round-trip percentiles in milliseconds, for all devices and each
+   * device, as text.
+   */
+  public void dump(Writer out) throws IOException {
+    out.append(String.format(Locale.US, "# Indications: %d outstanding, timeout %.1f s\n",
+        getOutstandingCount(), mTimeoutNanos / 1e9));
+    out.append(String.format(Locale.US, "%-24s %8s %9s %6s %7s %9s %9s %9s\n", "device",
+        "sent", "confirmed", "failed", "timeout", "p50 ms", "p99 ms", "max ms"));
+    dumpStats(out, "all devices", mTotal);
+    ArrayList<String> devices = new ArrayList<>(mDevices.keySet());
+    Collections.sort(devices);
+    for (String device : devices) {
+      dumpStats(out, device, mDevices.get(device));
+    }
+  }
+
+  private static void dumpStats(Writer out, String title, Stats stats) throws IOException {
+    LatencyHistogram roundTrip = stats.getRoundTrip();
+    out.append(String.format(Locale.US, "%-24s %8d %9d %6d %7d %9.2f %9.2f %9.2f\n", title,
+        stats.getSent(), stats.getConfirmed(), stats.getFailed(), stats.getTimedOut(),
+        roundTrip.getValueAtPercentile(50) / 1e6,
+        roundTrip.getValueAtPercentile(99) / 1e6, roundTrip.getMax() / 1e6));
+  }
+
+  private void clear(Outstanding outstanding) {
+    outstanding.characteristic = null;
+    outstanding.value = null;
+    mOutstandingCount.decrementAndGet();
+  }
+
+  private Stats getStats(String device) {
+    Stats stats = mDevices.get(device);
+    if (stats == null) {
+      stats = new Stats();
+      Stats previous = mDevices.putIfAbsent(device, stats);
+      if (previous != null) {
+        stats = previous;
+      }
+    }
+    return stats;
+  }
+
+  private static void resetStats(Stats stats) {
+    stats.mSent.set(0);
+    stats.mConfirmed.set(0);
+    stats.mFailed.set(0);
+    stats.mTimedOut.set(0);
+    stats.mRoundTrip.reset();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations in nanoseconds with a bounded relative error, for latency percentiles.
+ *
+ * Values below 64 get a bucket each; above that every power of two is split into 32 buckets, so
+ * a percentile is never off by more than 1/32 (about 3%) of its value. The whole range of
+ * positive longs fits in a fixed array of counters and recording never allocates.
+ *
+ * Not thread-safe: give every recording thread its own histogram and merge them with
+ * {@link #add}.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  // Values below this get a bucket of their own.
+  private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+  private static final int LINEAR_MAGNITUDE = Long.numberOfTrailingZeros(LINEAR_LIMIT);
+  static final int BUCKET_COUNT =
+      LINEAR_LIMIT + (63 - LINEAR_MAGNITUDE) * SUB_BUCKET_COUNT;
+
+  private final long[] mCounts = new long[BUCKET_COUNT];
+  private long mTotalCount;
+  private long mSum;
+  private long mMin = Long.MAX_VALUE;
+  private long mMax;
+
+  /**
+   * @param value Duration in nanoseconds. Negative values are recorded as 0.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    mCounts[bucketIndex(value)]++;
+    mTotalCount++;
+    mSum += value;
+    if (value < mMin) {
+      mMin = value;
+    }
+    if (value > mMax) {
+      mMax = value;
+    }
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mCounts[i] += other.mCounts[i];
+    }
+    mTotalCount += other.mTotalCount;
+    mSum += other.mSum;
+    mMin = Math.min(mMin, other.mMin);
+    mMax = Math.max(mMax, other.mMax);
+  }
+
+  public void reset() {
+    Arrays.fill(mCounts, 0);
+    mTotalCount = 0;
+    mSum = 0;
+    mMin = Long.MAX_VALUE;
+    mMax = 0;
+  }
+
+  public long getCount() {
+    return mTotalCount;
+  }
+
+  public long getMin() {
+    return mTotalCount == 0 ? 0 : mMin;
+  }
+
+  public long getMax() {
+    return mMax;
+  }
+
+  public double getMean() {
+    return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount;
+  }
+
+  /**
+   * @param percentile Between 0 and 100, e.g. 99.9.
+   * @return The highest value equivalent to the recorded value at the percentile, capped at the
+   * maximum recorded value, or 0 if the histogram is empty.
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (mTotalCount == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(Math.min(percentile, 100) / 100 * mTotalCount);
+    rank = Math.max(rank, 1);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += mCounts[i];
+      if (seen >= rank) {
+        return Math.min(highestEquivalentValue(i), mMax);
+      }
+    }
+    return mMax;
+  }
+
+  /*
+   * Replaces the content of the histogram, e.g. with a snapshot of an
+   * AtomicLatencyHistogram.
+   */
+  void set(long[] counts, long sum, long min, long max) {
+    mTotalCount = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mCounts[i] = counts[i];
+      mTotalCount += counts[i];
+    }
+    mSum = sum;
+    mMin = min;
+    mMax = max;
+  }
+
+  static int bucketIndex(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    return LINEAR_LIMIT + (magnitude - LINEAR_MAGNITUDE) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  private static long highestEquivalentValue(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int magnitude = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + LINEAR_MAGNITUDE;
+    int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+    int shift = magnitude - SUB_BUCKET_BITS;
+    return ((long) subBucket << shift) + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Serves Read and Read Blob Requests for values longer than one ATT response.
+ *
+ * A client reads a long value with a Read Request (offset 0) followed by Read Blob Requests at
+ * increasing offsets. If the value changed in between, the client would stitch together parts of
+ * two different values, so the value is snapshotted once per device and attribute at offset 0 and
+ * every following part is sliced out of that snapshot. Values that fit in a single response are
+ * never copied.
+ */
+public class LongReadCache {
+
+  private static final byte[] EMPTY_VALUE = new byte[0];
+
+  private final HashMap<String, IdentityHashMap<Object, byte[]>> mSnapshots =
+      new HashMap<>();
+
+  /**
+   * @param attribute Characteristic or descriptor being read.
+   * @param currentValue Current value of the attribute, may be null.
+   * @param offset Offset of the request.
+   * @param maxLength Maximum number of bytes in the response, i.e. ATT_MTU - 1.
+   * @return The part of the value to send, or null if the offset is past the end of the value.
+   */
+  public synchronized byte[] read(String device, Object attribute, byte[] currentValue,
+      int offset, int maxLength) {
+    if (currentValue == null) {
+      currentValue = EMPTY_VALUE;
+    }
+    IdentityHashMap<Object, byte[]> snapshots = mSnapshots.get(device);
+    if (offset == 0) {
+      if (currentValue.length <= maxLength) {
+        if (snapshots != null) {
+          snapshots.remove(attribute);
+        }
+        return currentValue;
+      }
+      if (snapshots == null) {
+        snapshots = new IdentityHashMap<>();
+        mSnapshots.put(device, snapshots);
+      }
+      // Setters like GattCharacteristic.setValue(int, int, int) modify the value in
+      // place, so the snapshot has to be a copy.
+      byte[] snapshot = currentValue.clone();
+      snapshots.put(attribute, snapshot);
+      return Arrays.copyOf(snapshot, maxLength);
+    }
+    byte[] snapshot = snapshots == null ? null : snapshots.get(attribute);
+    if (snapshot == null) {
+      // Read Blob without a preceding Read: serve the current value.
+      snapshot = currentValue;
+    }
+    if (offset < 0 || offset > snapshot.length) {
+      return null;
+    }
+    return Arrays.copyOfRange(snapshot, offset, Math.min(snapshot.length, offset + maxLength));
+  }
+
+  public synchronized void removeDevice(String device) {
+    mSnapshots.remove(device);
+  }
+
+  public synchronized void clear() {
+    mSnapshots.clear();
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process {@link GattTransport} with virtual centrals, so the peripheral runs, and can be
+ * measured, on a plain JVM without a phone or a radio.
+ *
+ * A {@link Central} issues requests on its caller's thread, which plays the part of the Bluetooth
+ * binder thread. Everything travelling back to the centrals (responses, notifications) and the
+ * onServiceAdded and onNotificationSent callbacks are delivered in order on a single link
+ * thread. Indications are considered confirmed as soon as they are delivered.
+ */
+public class LoopbackGattTransport implements GattTransport {
+
+  // Enough for one outstanding request per central and one notification in flight per device.
+  private static final int LINK_CAPACITY = 4096;
+
+  /**
+   * Receives the response to a request, on the link thread.
+   */
+  public interface ResponseListener {
+    /**
+     * @param value Value of the response; shared with the peripheral, must not be modified.
+     */
+    void onResponse(int status, int offset, byte[] value);
+  }
+
+  /**
+   * Receives the notifications and indications sent to a central, on the link thread.
+   */
+  public interface NotificationListener {
+    void onNotification(GattCharacteristic characteristic, byte[] value, boolean indication);
+  }
+
+  private static class PendingRequest {
+    final String device;
+    final ResponseListener listener;
+
+    PendingRequest(String device, ResponseListener listener) {
+      this.device = device;
+      this.listener = listener;
+    }
+  }
+
+  private final GattEventLoop mLink = new GattEventLoop("LoopbackLink", LINK_CAPACITY);
+  private final CopyOnWriteArrayList<GattService> mServices = new CopyOnWriteArrayList<>();
+  private final ConcurrentHashMap<String, Central> mCentrals = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, PendingRequest> mPendingRequests =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger mNextRequestId = new AtomicInteger();
+  private volatile Callback mCallback;
+  private volatile boolean mAdvertising;
+  private volatile List<UUID> mAdvertisedUuids = new ArrayList<>();
+
+  /**
+   * A virtual central. Requests may be issued from any thread once connected; every method that
+   * sends a request returns its request id.
+   */
+  public class Central {
+    private final String mAddress;
+    private volatile boolean mConnected;
+    private volatile NotificationListener mNotificationListener;
+
+    private Central(String address) {
+      mAddress = address;
+    }
+
+    public String getAddress() {
+      return mAddress;
+    }
+
+    public boolean isConnected() {
+      return mConnected;
+    }
+
+    public void setNotificationListener(NotificationListener listener) {
+      mNotificationListener = listener;
+    }
+
+    public void connect() {
+      Callback callback = getCallback();
+      mConnected = true;
+      callback.onConnectionStateChange(mAddress, GattStatus.SUCCESS, STATE_CONNECTED);
+    }
+
+    public void disconnect() {
+      Callback callback = getCallback();
+      mConnected = false;
+      callback.onConnectionStateChange(mAddress, GattStatus.SUCCESS, STATE_DISCONNECTED);
+    }
+
+    public void requestMtu(int mtu) {
+      checkConnected().onMtuChanged(mAddress, mtu);
+    }
+
+    public int read(GattCharacteristic characteristic, int offset, ResponseListener listener) {
+      Callback callback = checkConnected();
+      int requestId = register(mAddress, listener);
+      callback.onCharacteristicReadRequest(mAddress, requestId, offset, characteristic);
+      return requestId;
+    }
+
+    /**
+     * @param responseNeeded false for a Write Command, in which case the listener is not called.
+     */
+    public int write(GattCharacteristic characteristic, byte[] value, boolean responseNeeded,
+        ResponseListener listener) {
+      Callback callback = checkConnected();
+      int requestId = responseNeeded ? register(mAddress, listener) : nextRequestId();
+      callback.onCharacteristicWriteRequest(mAddress, requestId, characteristic,
+          /* preparedWrite */ false, responseNeeded, /* offset */ 0, value);
+      return requestId;
+    }
+
+    public int prepareWrite(GattCharacteristic characteristic, int offset, byte[] value,
+        ResponseListener listener) {
+      Callback callback = checkConnected();
+      int requestId = register(mAddress, listener);
+      callback.onCharacteristicWriteRequest(mAddress, requestId, characteristic,
+          /* preparedWrite */ true, /* responseNeeded */ true, offset, value);
+      return requestId;
+    }
+
+    public int executeWrite(boolean execute, ResponseListener listener) {
+      Callback callback = checkConnected();
+      int requestId = register(mAddress, listener);
+      callback.onExecuteWrite(mAddress, requestId, execute);
+      return requestId;
+    }
+
+    public int readDescriptor(GattDescriptor descriptor, int offset, ResponseListener listener) {
+      Callback callback = checkConnected();
+      int requestId = register(mAddress, listener);
+      callback.onDescriptorReadRequest(mAddress, requestId, offset, descriptor);
+      return requestId;
+    }
+
+    public int writeDescriptor(GattDescriptor descriptor, byte[] value,
+        ResponseListener listener) {
+      Callback callback = checkConnected();
+      int requestId = register(mAddress, listener);
+      callback.onDescriptorWriteRequest(mAddress, requestId, descriptor,
+          /* preparedWrite */ false, /* responseNeeded */ true, /* offset */ 0, value);
+      return requestId;
+    }
+
+    private Callback checkConnected() {
+      Callback callback = getCallback();
+      if (!mConnected) {
+        throw new IllegalStateException(mAddress + " is not connected");
+      }
+      return callback;
+    }
+  }
+
+  /**
+   * Creates a disconnected central with the given address, or returns the existing one.
+   */
+  public Central getCentral(String address) {
+    Central central = mCentrals.get(address);
+    if (central == null) {
+      central = new Central(address);
+      Central existing = mCentrals.putIfAbsent(address, central);
+      if (existing != null) {
+        central = existing;
+      }
+    }
+    return central;
+  }
+
+  /**
+   * @return The services added to the server, for centrals to look up their attributes.
+   */
+  public List<GattService> getServices() {
+    return mServices;
+  }
+
+  public GattService getService(UUID uuid) {
+    for (GattService service : mServices) {
+      if (service.getUuid().equals(uuid)) {
+        return service;
+      }
+    }
+    return null;
+  }
+
+  public boolean isAdvertising() {
+    return mAdvertising;
+  }
+
+  public List<UUID> getAdvertisedUuids() {
+    return mAdvertisedUuids;
+  }
+
+  /**
+   * Stops the link thread. The transport can't be used afterwards.
+   */
+  public void quit() {
+    close();
+    mLink.quit();
+  }
+
+  @Override
+  public boolean open(Callback callback) {
+    mCallback = callback;
+    return true;
+  }
+
+  @Override
+  public void close() {
+    mCallback = null;
+    mAdvertising = false;
+    mServices.clear();
+    mPendingRequests.clear();
+    for (Central central : mCentrals.values()) {
+      central.mConnected = false;
+    }
+  }
+
+  @Override
+  public boolean addService(final GattService service) {
+    final Callback callback = mCallback;
+    if (callback == null) {
+      return false;
+    }
+    mServices.add(service);
+    mLink.post(new Runnable() {
+      @Override
+      public void run() {
+        callback.onServiceAdded(GattStatus.SUCCESS, service);
+      }
+    });
+    return true;
+  }
+
+  @Override
+  public boolean sendResponse(String device, final int requestId, final int status,
+      final int offset, final byte[] value) {
+    final PendingRequest request = mPendingRequests.remove(requestId);
+    if (request == null || !request.device.equals(device)) {
+      return false;
+    }
+    if (request.listener != null) {
+      mLink.post(new Runnable() {
+        @Override
+        public void run() {
+          request.listener.onResponse(status, offset, value);
+        }
+      });
+    }
+    return true;
+  }
+
+  @Override
+  public boolean notifyCharacteristicChanged(final String device,
+      final GattCharacteristic characteristic, final byte[] value, final boolean confirm) {
+    final Callback callback = mCallback;
+    final Central central = mCentrals.get(device);
+    if (callback == null || central == null || !central.mConnected) {
+      return false;
+    }
+    mLink.post(new Runnable() {
+      @Override
+      public void run() {
+        NotificationListener listener = central.mNotificationListener;
+        if (listener != null) {
+          listener.onNotification(characteristic, value, confirm);
+        }
+        callback.onNotificationSent(device, GattStatus.SUCCESS);
+      }
+    });
+    return true;
+  }
+
+  @Override
+  public void cancelConnection(final String device) {
+    final Callback callback = mCallback;
+    final Central central = mCentrals.get(device);
+    if (callback == null || central == null || !central.mConnected) {
+      return;
+    }
+    central.mConnected = false;
+    mLink.post(new Runnable() {
+      @Override
+      public void run() {
+        callback.onConnectionStateChange(device, GattStatus.SUCCESS, STATE_DISCONNECTED);
+      }
+    });
+  }
+
+  @Override
+  public boolean isAdvertisingSupported() {
+    return true;
+  }
+
+  @Override
+  public void startAdvertising(List<UUID> serviceUuids, final AdvertiseCallback callback) {
+    mAdvertisedUuids = new ArrayList<>(serviceUuids);
+    final boolean alreadyStarted = mAdvertising;
+    mAdvertising = true;
+    mLink.post(new Runnable() {
+      @Override
+      public void run() {
+        if (alreadyStarted) {
+          callback.onStartFailure(ADVERTISE_FAILED_ALREADY_STARTED);
+        } else {
+          callback.onStartSuccess();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void stopAdvertising() {
+    mAdvertising = false;
+  }
+
+  private Callback getCallback() {
+    Callback callback = mCallback;
+    if (callback == null) {
+      throw new IllegalStateException("GATT server is not open");
+    }
+    return callback;
+  }
+
+  private int register(String device, ResponseListener listener) {
+    int requestId = nextRequestId();
+    mPendingRequests.put(requestId, new PendingRequest(device, listener));
+    return requestId;
+  }
+
+  private int nextRequestId() {
+    return mNextRequestId.incrementAndGet();
+  }
+}
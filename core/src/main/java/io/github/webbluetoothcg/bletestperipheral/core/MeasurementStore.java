@@ -0,0 +1,293 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the measurements of a characteristic while no device is subscribed to it and forwards
+ * them, oldest first, as soon as one subscribes, as sensors that keep measuring between
+ * connections do.
+ *
+ * Each measurement comes in two encodings: the live one, sent right away to the subscribed
+ * devices that are caught up, and the stored one, which should carry a time stamp since it may
+ * be delivered much later. The store is a bounded ring: when it is full, the oldest measurement
+ * is dropped. Every subscribed device has its own cursor in the ring, as in
+ * {@link HeartRateStream}: the backlog is flushed to each of them, one measurement at a time,
+ * each sent once the stack confirmed the previous one, i.e. paced by the indication
+ * confirmations of that central. A measurement leaves the store once every subscribed device
+ * confirmed it; a device that goes away mid-flush is forgotten, and the next subscriber starts
+ * from the oldest measurement still stored. Measurements taken while a device is behind are
+ * stored for it, so the order is kept for every device.
+ *
+ * Created with {@link GattPeripheral#startMeasurementStore}. The counters may be read from any
+ * thread.
+ */
+public class MeasurementStore {
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static class DeviceState {
+    // Sequence number of the next measurement to send, i.e. the oldest not yet confirmed.
+    long nextSeq;
+    boolean inFlight;
+    long inFlightSeq;
+  }
+
+  private final GattPeripheral mPeripheral;
+  private final GattCharacteristic mCharacteristic;
+  // Ring of stored measurements. Only accessed on the event loop.
+  private final byte[][] mRecords;
+  private int mHead;
+  // Sequence number of the measurement at mHead.
+  private long mHeadSeq;
+  private final AtomicInteger mSize = new AtomicInteger();
+  // Cursors of the devices subscribed, or with a measurement in flight. Only accessed on the
+  // event loop.
+  private final HashMap<String, DeviceState> mDevices = new HashMap<>();
+  private final AtomicLong mForwarded = new AtomicLong();
+  private final AtomicLong mDropped = new AtomicLong();
+
+  private final NotificationQueue.DeliveryListener mFlushListener =
+      new NotificationQueue.DeliveryListener() {
+    @Override
+    public void onDeliveryResult(String device, GattCharacteristic characteristic,
+        int status) {
+      DeviceState state = mDevices.get(device);
+      if (state == null || !state.inFlight) {
+        return;
+      }
+      state.inFlight = false;
+      if (status != GattStatus.SUCCESS) {
+        // Kept for the next attempt: a later measurement or a new subscription triggers it.
+        // Retrying right away could spin on a refusing stack.
+        return;
+      }
+      // The measurement may have been dropped from a full store in the meantime.
+      state.nextSeq = Math.max(state.nextSeq, state.inFlightSeq + 1);
+      mForwarded.incrementAndGet();
+      removeConfirmed();
+      forwardNext(device, state);
+    }
+  };
+
+  private final Runnable mFlush = new Runnable() {
+    @Override
+    public void run() {
+      updateDevices();
+      removeConfirmed();
+      forwardAll();
+    }
+  };
+
+  MeasurementStore(GattPeripheral peripheral, GattCharacteristic characteristic, int capacity) {
+    mPeripheral = peripheral;
+    mCharacteristic = characteristic;
+    mRecords = new byte[capacity][];
+  }
+
+  public GattCharacteristic getCharacteristic() {
+    return mCharacteristic;
+  }
+
+  /**
+   * Sends a measurement to the subscribed devices that are caught up, and stores it for the
+   * others, or for the next subscriber if there are none. May be called from any thread. The
+   * arrays must not be modified afterwards.
+   *
+   * @param value The measurement as sent live.
+   * @param storedValue The measurement as forwarded later, e.g. with a time stamp.
+   */
+  public void submit(final byte[] value, final byte[] storedValue) {
+    boolean queued = mPeripheral.runOnEventLoop(new Runnable() {
+      @Override
+      public void run() {
+        updateDevices();
+        long seq = mHeadSeq + mSize.get();
+        boolean storeNeeded = mDevices.isEmpty();
+        for (Map.Entry<String, DeviceState> entry : mDevices.entrySet()) {
+          DeviceState state = entry.getValue();
+          if (state.inFlight || state.nextSeq != seq || !sendLive(entry.getKey(), value)) {
+            // Behind, or its queue refused the measurement: it gets the stored one, in order.
+            storeNeeded = true;
+          } else {
+            state.nextSeq = seq + 1;
+          }
+        }
+        if (storeNeeded) {
+          store(storedValue);
+          removeConfirmed();
+          forwardAll();
+        } else {
+          // Every device took it live, so it confirmed everything stored before it: the store
+          // is emptied and the measurement's sequence number skipped.
+          removeConfirmed();
+          mHeadSeq = seq + 1;
+        }
+      }
+    });
+    if (!queued) {
+      mDropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Starts forwarding the stored measurements to the subscribed devices, e.g. when one just
+   * subscribed. May be called from any thread.
+   */
+  public void flush() {
+    mPeripheral.runOnEventLoop(mFlush);
+  }
+
+  /**
+   * @return Measurements waiting for a subscriber.
+   */
+  public int getStoredCount() {
+    return mSize.get();
+  }
+
+  /**
+   * @return Stored measurements delivered since the store was created, counted once per device.
+   */
+  public long getForwardedCount() {
+    return mForwarded.get();
+  }
+
+  /**
+   * @return Measurements lost because the store or the event loop was full.
+   */
+  public long getDroppedCount() {
+    return mDropped.get();
+  }
+
+  /*
+   * Starts tracking the devices that subscribed, from the oldest stored measurement, and
+   * forgets those that unsubscribed or disconnected once nothing is in flight to them. Runs on
+   * the event loop.
+   */
+  private void updateDevices() {
+    for (String device : mPeripheral.getDevices()) {
+      if (!mDevices.containsKey(device) && mPeripheral.getSubscription(device, mCharacteristic)
+          != SubscriptionTable.SUBSCRIPTION_NONE) {
+        DeviceState state = new DeviceState();
+        state.nextSeq = mHeadSeq;
+        mDevices.put(device, state);
+      }
+    }
+    Iterator<Map.Entry<String, DeviceState>> iterator = mDevices.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, DeviceState> entry = iterator.next();
+      if (!entry.getValue().inFlight && mPeripheral.getSubscription(entry.getKey(),
+          mCharacteristic) == SubscriptionTable.SUBSCRIPTION_NONE) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  private void forwardAll() {
+    for (Map.Entry<String, DeviceState> entry : mDevices.entrySet()) {
+      forwardNext(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /*
+   * Sends the device the next stored measurement it hasn't confirmed, if nothing is in flight
+   * to it. Runs on the event loop.
+   */
+  private void forwardNext(String device, DeviceState state) {
+    if (state.inFlight || state.nextSeq >= mHeadSeq + mSize.get()) {
+      return;
+    }
+    int subscription = mPeripheral.getSubscription(device, mCharacteristic);
+    if (subscription == SubscriptionTable.SUBSCRIPTION_NONE) {
+      return;
+    }
+    // Set first: the listener may run before enqueueNotification() returns.
+    state.inFlight = true;
+    state.inFlightSeq = state.nextSeq;
+    byte[] value = mRecords[(int) ((mHead + state.nextSeq - mHeadSeq) % mRecords.length)];
+    if (!mPeripheral.enqueueNotification(device, mCharacteristic, value,
+        subscription == SubscriptionTable.SUBSCRIPTION_INDICATE, mFlushListener)) {
+      // The listener already ran with the failure.
+      state.inFlight = false;
+    }
+  }
+
+  /*
+   * Runs on the event loop.
+   *
+   * @return false if the device's queue refused the measurement.
+   */
+  private boolean sendLive(String device, byte[] value) {
+    int subscription = mPeripheral.getSubscription(device, mCharacteristic);
+    return subscription != SubscriptionTable.SUBSCRIPTION_NONE
+        && mPeripheral.enqueueNotification(device, mCharacteristic, value,
+            subscription == SubscriptionTable.SUBSCRIPTION_INDICATE, /* listener */ null);
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  private void store(byte[] value) {
+    int size = mSize.get();
+    if (size == mRecords.length) {
+      removeOldest();
+      mDropped.incrementAndGet();
+      size--;
+      // Devices that hadn't confirmed it skip it.
+      for (DeviceState state : mDevices.values()) {
+        state.nextSeq = Math.max(state.nextSeq, mHeadSeq);
+      }
+    }
+    mRecords[(mHead + size) % mRecords.length] = value;
+    mSize.incrementAndGet();
+  }
+
+  /*
+   * Removes the measurements every tracked device confirmed. Kept as long as no device is
+   * tracked, for the next subscriber. Runs on the event loop.
+   */
+  private void removeConfirmed() {
+    if (mDevices.isEmpty()) {
+      return;
+    }
+    long confirmedSeq = Long.MAX_VALUE;
+    for (DeviceState state : mDevices.values()) {
+      confirmedSeq = Math.min(confirmedSeq, state.nextSeq);
+    }
+    while (mSize.get() > 0 && mHeadSeq < confirmedSeq) {
+      removeOldest();
+    }
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  private void removeOldest() {
+    mRecords[mHead] = null;
+    mHead = (mHead + 1) % mRecords.length;
+    mHeadSeq++;
+    mSize.decrementAndGet();
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Per-device queue of outbound notifications and indications.
+ *
+ * The Bluetooth stack only accepts one outstanding notification per device; anything sent before
+ * {@link GattTransport.Callback#onNotificationSent} fires for the previous
+ * one is silently dropped. This queue keeps at most one notification in flight per device and
+ * releases the next one only when the stack reports the previous one as sent.
+ *
+ * Each device queue is bounded. When it is full the {@link OverflowPolicy} decides whether the
+ * oldest pending notification or the new one is dropped. Every notification handed to
+ * {@link #enqueue} gets exactly one {@link DeliveryListener#onDeliveryResult} call.
+ */
+public class NotificationQueue {
+
+  public static final int DEFAULT_CAPACITY = 64;
+
+  /** The notification was dropped because the device queue was full. */
+  public static final int RESULT_DROPPED = -1;
+  /** The stack refused to send the notification. */
+  public static final int RESULT_SEND_FAILED = -2;
+  /** The device disconnected before the notification was sent. */
+  public static final int RESULT_DISCONNECTED = -3;
+  /**
+   * The indication wasn't confirmed in time and the device was disconnected, see
+   * {@link IndicationTracker}.
+   */
+  public static final int RESULT_TIMEOUT = -4;
+
+  public enum OverflowPolicy {
+    /** Drop the oldest pending notification to make room for the new one. */
+    DROP_OLDEST,
+    /** Keep the pending notifications and drop the new one. */
+    DROP_NEWEST
+  }
+
+  /**
+   * Sends a single notification to the stack. Implemented by the owner of the GATT server.
+   */
+  public interface Sender {
+    /**
+     * @return true if the stack accepted the notification, in which case a call to
+     * {@link #onNotificationSent} will follow.
+     */
+    boolean sendNotification(String device, GattCharacteristic characteristic,
+        byte[] value, boolean confirm);
+  }
+
+  /**
+   * Receives the outcome of a queued notification.
+   */
+  public interface DeliveryListener {
+    /**
+     * @param status GATT status reported by the stack, or one of {@link #RESULT_DROPPED},
+     * {@link #RESULT_SEND_FAILED}, {@link #RESULT_DISCONNECTED} and {@link #RESULT_TIMEOUT}.
+     */
+    void onDeliveryResult(String device, GattCharacteristic characteristic,
+        int status);
+  }
+
+  private static class PendingNotification {
+    final GattCharacteristic characteristic;
+    final byte[] value;
+    final boolean confirm;
+    final DeliveryListener listener;
+
+    PendingNotification(GattCharacteristic characteristic, byte[] value,
+        boolean confirm, DeliveryListener listener) {
+      this.characteristic = characteristic;
+      this.value = value;
+      this.confirm = confirm;
+      this.listener = listener;
+    }
+  }
+
+  private static class DeviceQueue {
+    final ArrayDeque<PendingNotification> pending = new ArrayDeque<>();
+    PendingNotification inFlight;
+  }
+
+  private static class Result {
+    final String device;
+    final PendingNotification notification;
+    final int status;
+
+    Result(String device, PendingNotification notification, int status) {
+      this.device = device;
+      this.notification = notification;
+      this.status = status;
+    }
+  }
+
+  private final Sender mSender;
+  private final int mCapacity;
+  private final OverflowPolicy mOverflowPolicy;
+  private final HashMap<String, DeviceQueue> mQueues = new HashMap<>();
+
+  public NotificationQueue(Sender sender) {
+    this(sender, DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+  }
+
+  public NotificationQueue(Sender sender, int capacity, OverflowPolicy overflowPolicy) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+    }
+    mSender = sender;
+    mCapacity = capacity;
+    mOverflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Queues a notification for a device and sends it right away if nothing is in flight.
+   *
+   * @param value Snapshot of the characteristic value to send. It is not copied, so callers
+   * must not modify it afterwards.
+   * @param listener Optional listener for the delivery result, may be null.
+   * @return false if the new notification was dropped because the queue was full.
+   */
+  public boolean enqueue(String device, GattCharacteristic characteristic,
+      byte[] value, boolean confirm, DeliveryListener listener) {
+    PendingNotification notification =
+        new PendingNotification(characteristic, value, confirm, listener);
+    List<Result> results = new ArrayList<>(2);
+    boolean accepted = true;
+    synchronized (this) {
+      DeviceQueue queue = mQueues.get(device);
+      if (queue == null) {
+        queue = new DeviceQueue();
+        mQueues.put(device, queue);
+      }
+      if (queue.pending.size() >= mCapacity) {
+        if (mOverflowPolicy == OverflowPolicy.DROP_OLDEST) {
+          results.add(new Result(device, queue.pending.pollFirst(), RESULT_DROPPED));
+        } else {
+          results.add(new Result(device, notification, RESULT_DROPPED));
+          accepted = false;
+        }
+      }
+      if (accepted) {
+        queue.pending.addLast(notification);
+        sendNextLocked(device, queue, results);
+      }
+    }
+    deliver(results);
+    return accepted;
+  }
+
+  /**
+   * Must be called from {@link GattTransport.Callback#onNotificationSent}.
+   * Completes the notification in flight and sends the next one.
+   */
+  public void onNotificationSent(String device, int status) {
+    List<Result> results = new ArrayList<>(2);
+    synchronized (this) {
+      DeviceQueue queue = mQueues.get(device);
+      if (queue == null || queue.inFlight == null) {
+        return;
+      }
+      results.add(new Result(device, queue.inFlight, status));
+      queue.inFlight = null;
+      sendNextLocked(device, queue, results);
+    }
+    deliver(results);
+  }
+
+  /**
+   * Drops everything queued for a device that disconnected.
+   */
+  public void removeDevice(String device) {
+    removeDevice(device, RESULT_DISCONNECTED);
+  }
+
+  /**
+   * Drops everything queued for a device that disconnected.
+   *
+   * @param inFlightResult Result reported for the notification in flight, if any.
+   */
+  public void removeDevice(String device, int inFlightResult) {
+    List<Result> results = new ArrayList<>();
+    synchronized (this) {
+      DeviceQueue queue = mQueues.remove(device);
+      if (queue == null) {
+        return;
+      }
+      if (queue.inFlight != null) {
+        results.add(new Result(device, queue.inFlight, inFlightResult));
+      }
+      for (PendingNotification notification : queue.pending) {
+        results.add(new Result(device, notification, RESULT_DISCONNECTED));
+      }
+    }
+    deliver(results);
+  }
+
+  /**
+   * Drops everything queued for every device, e.g. when the GATT server is closed.
+   */
+  public void clear() {
+    List<String> devices;
+    synchronized (this) {
+      devices = new ArrayList<>(mQueues.keySet());
+    }
+    for (String device : devices) {
+      removeDevice(device);
+    }
+  }
+
+  /**
+   * @return Number of notifications waiting for a device, including the one in flight.
+   */
+  public synchronized int getPendingCount(String device) {
+    DeviceQueue queue = mQueues.get(device);
+    if (queue == null) {
+      return 0;
+    }
+    return queue.pending.size() + (queue.inFlight == null ? 0 : 1);
+  }
+
+  private void sendNextLocked(String device, DeviceQueue queue, List<Result> results) {
+    while (queue.inFlight == null && !queue.pending.isEmpty()) {
+      PendingNotification next = queue.pending.pollFirst();
+      if (mSender.sendNotification(device, next.characteristic, next.value, next.confirm)) {
+        queue.inFlight = next;
+      } else {
+        results.add(new Result(device, next, RESULT_SEND_FAILED));
+      }
+    }
+  }
+
+  private static void deliver(List<Result> results) {
+    for (Result result : results) {
+      if (result.notification.listener != null) {
+        result.notification.listener.onDeliveryResult(result.device,
+            result.notification.characteristic, result.status);
+      }
+    }
+  }
+}
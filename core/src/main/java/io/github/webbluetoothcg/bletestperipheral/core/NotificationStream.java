@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pumps {@link StreamPacket}s to every device subscribed to a characteristic as fast as the link
+ * takes them, for throughput measurements.
+ *
+ * Each packet fills a notification at the ATT_MTU of its device and carries a per-device
+ * sequence number. A few packets per device are kept in the {@link NotificationQueue} so the
+ * next one is ready as soon as the stack reports the previous one as sent; every delivery
+ * result refills the queue. Devices that subscribe while the stream runs join it.
+ *
+ * Created with {@link GattPeripheral#startStream}. The counters may be read from any thread.
+ */
+public class NotificationStream {
+
+  // Notifications kept queued per device, including the one in flight.
+  public static final int DEFAULT_WINDOW = 4;
+
+  private static class DeviceState {
+    int nextSequence;
+    int queued;
+    int packetLength;
+  }
+
+  private final GattPeripheral mPeripheral;
+  private final GattCharacteristic mCharacteristic;
+  private final int mWindow;
+  // Only accessed on the event loop.
+  private final HashMap<String, DeviceState> mDevices = new HashMap<>();
+  private boolean mStopped;
+  private final long mStartTimeNanos = System.nanoTime();
+  private final AtomicLong mPacketsSent = new AtomicLong();
+  private final AtomicLong mBytesSent = new AtomicLong();
+  private final AtomicLong mPacketsDropped = new AtomicLong();
+
+  private final NotificationQueue.DeliveryListener mDeliveryListener =
+      new NotificationQueue.DeliveryListener() {
+    @Override
+    public void onDeliveryResult(String device, GattCharacteristic characteristic,
+        int status) {
+      DeviceState state = mDevices.get(device);
+      if (state == null) {
+        // Left over from before the device unsubscribed or the stream stopped.
+        countResult(status,
+            mPeripheral.getMtu(device) - GattPeripheral.NOTIFICATION_HEADER_LENGTH);
+        return;
+      }
+      if (state.queued > 0) {
+        state.queued--;
+      }
+      if (!countResult(status, state.packetLength)) {
+        // Not refilled right away: a link that refuses everything would spin otherwise. The
+        // device resumes with the next successful delivery or when it subscribes again.
+        return;
+      }
+      pump(device);
+    }
+  };
+
+  NotificationStream(GattPeripheral peripheral, GattCharacteristic characteristic, int window) {
+    mPeripheral = peripheral;
+    mCharacteristic = characteristic;
+    mWindow = window;
+  }
+
+  private boolean countResult(int status, int packetLength) {
+    if (status != GattStatus.SUCCESS) {
+      mPacketsDropped.incrementAndGet();
+      return false;
+    }
+    mPacketsSent.incrementAndGet();
+    mBytesSent.addAndGet(packetLength);
+    return true;
+  }
+
+  public GattCharacteristic getCharacteristic() {
+    return mCharacteristic;
+  }
+
+  /**
+   * Stops sending new packets. Packets already queued are still delivered and counted.
+   */
+  public void stop() {
+    mPeripheral.stopStream(this);
+  }
+
+  public long getPacketsSent() {
+    return mPacketsSent.get();
+  }
+
+  /**
+   * @return Bytes of notification payload the stack reported as sent.
+   */
+  public long getBytesSent() {
+    return mBytesSent.get();
+  }
+
+  /**
+   * @return Packets that were dropped from a full queue, refused by the stack or discarded
+   * because their device disconnected.
+   */
+  public long getPacketsDropped() {
+    return mPacketsDropped.get();
+  }
+
+  public long getStartTimeNanos() {
+    return mStartTimeNanos;
+  }
+
+  /*
+   * Tops up the queue of a device, or forgets it if it is no longer subscribed. Runs on the
+   * event loop.
+   */
+  void pump(String device) {
+    if (mStopped) {
+      return;
+    }
+    int subscription = mPeripheral.getSubscription(device, mCharacteristic);
+    if (subscription == SubscriptionTable.SUBSCRIPTION_NONE) {
+      mDevices.remove(device);
+      return;
+    }
+    DeviceState state = mDevices.get(device);
+    if (state == null) {
+      state = new DeviceState();
+      mDevices.put(device, state);
+    }
+    boolean indicate = subscription == SubscriptionTable.SUBSCRIPTION_INDICATE;
+    state.packetLength = Math.max(StreamPacket.MIN_LENGTH,
+        mPeripheral.getMtu(device) - GattPeripheral.NOTIFICATION_HEADER_LENGTH);
+    // Bounded rather than "while (queued < window)": a stack that refuses notifications fails
+    // them synchronously, which would otherwise free the window again right away.
+    int missing = mWindow - state.queued;
+    for (int i = 0; i < missing; i++) {
+      state.queued++;
+      byte[] packet = StreamPacket.create(state.nextSequence++, state.packetLength);
+      if (!mPeripheral.enqueueNotification(device, mCharacteristic, packet, indicate,
+          mDeliveryListener)) {
+        break;
+      }
+    }
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  void removeDevice(String device) {
+    mDevices.remove(device);
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  void onStopped() {
+    mStopped = true;
+    mDevices.clear();
+  }
+}
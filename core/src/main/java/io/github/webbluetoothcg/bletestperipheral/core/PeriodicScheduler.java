@@ -0,0 +1,264 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single thread that runs periodic producers, like measurement notifications, at precise rates.
+ *
+ * Ticks are due at fixed multiples of the period from the first one, so the rate doesn't drift
+ * when a tick runs late, and periods can be as short as the thread can keep up with. A tick that
+ * is still running when the next one is due is an overrun; the policy of the task decides
+ * whether the missed ticks run back to back ({@link #POLICY_CATCH_UP}) or are dropped
+ * ({@link #POLICY_SKIP}). Tasks share the thread, so they must be short: they should hand the
+ * real work over, e.g. to the {@link GattEventLoop} through
+ * {@link GattPeripheral#sendNotificationToDevices}.
+ */
+public class PeriodicScheduler {
+
+  /**
+   * Runs every tick, late ticks back to back until the task is on schedule again. For
+   * producers whose consumers count ticks, e.g. a sample series.
+   */
+  public static final int POLICY_CATCH_UP = 0;
+  /**
+   * Drops the ticks that are already late and resumes with the next tick still in the future.
+   * For producers that only report the latest state, e.g. a measurement.
+   */
+  public static final int POLICY_SKIP = 1;
+
+  private static final Logger LOG = Logger.getLogger(PeriodicScheduler.class.getName());
+  private static PeriodicScheduler sShared;
+
+  /**
+   * A scheduled task. Its counters may be read from any thread.
+   */
+  public final class Task {
+    private final Runnable mRunnable;
+    private final long mPeriodNanos;
+    private final int mPolicy;
+    // Guarded by mLock.
+    private long mDeadlineNanos;
+    private boolean mCancelled;
+    private final AtomicLong mRuns = new AtomicLong();
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+    private final AtomicLong mMaxLatenessNanos = new AtomicLong();
+
+    private Task(Runnable runnable, long deadlineNanos, long periodNanos, int policy) {
+      mRunnable = runnable;
+      mDeadlineNanos = deadlineNanos;
+      mPeriodNanos = periodNanos;
+      mPolicy = policy;
+    }
+
+    /**
+     * Stops the ticks. A tick already running completes. Safe to call more than once and from
+     * the task itself.
+     */
+    public void cancel() {
+      mLock.lock();
+      try {
+        mCancelled = true;
+        mTasks.remove(this);
+      } finally {
+        mLock.unlock();
+      }
+    }
+
+    public long getPeriodNanos() {
+      return mPeriodNanos;
+    }
+
+    public long getRunCount() {
+      return mRuns.get();
+    }
+
+    /**
+     * @return Times the next tick was already due when a tick completed.
+     */
+    public long getOverrunCount() {
+      return mOverruns.get();
+    }
+
+    /**
+     * @return Ticks dropped by {@link #POLICY_SKIP}.
+     */
+    public long getSkippedCount() {
+      return mSkipped.get();
+    }
+
+    /**
+     * @return Longest delay between the time a tick was due and the time it started.
+     */
+    public long getMaxLatenessNanos() {
+      return mMaxLatenessNanos.get();
+    }
+
+    private void run(long latenessNanos) {
+      mRuns.incrementAndGet();
+      if (latenessNanos > mMaxLatenessNanos.get()) {
+        mMaxLatenessNanos.set(latenessNanos);
+      }
+      try {
+        mRunnable.run();
+      } catch (RuntimeException e) {
+        // One failing tick shouldn't take the other producers down with the thread.
+        LOG.log(Level.WARNING, "Periodic task failed", e);
+      }
+    }
+
+    /*
+     * Moves the deadline to the next tick to run. Runs with mLock held.
+     */
+    private void advance(long nowNanos) {
+      mDeadlineNanos += mPeriodNanos;
+      if (mDeadlineNanos - nowNanos > 0) {
+        return;
+      }
+      mOverruns.incrementAndGet();
+      if (mPolicy == POLICY_SKIP) {
+        long missed = (nowNanos - mDeadlineNanos) / mPeriodNanos + 1;
+        mDeadlineNanos += missed * mPeriodNanos;
+        mSkipped.addAndGet(missed);
+      }
+    }
+  }
+
+  private final ReentrantLock mLock = new ReentrantLock();
+  // Signaled when a task is added or the scheduler quits.
+  private final Condition mChanged = mLock.newCondition();
+  // Ordered by deadline. Guarded by mLock.
+  private final PriorityQueue<Task> mTasks = new PriorityQueue<>(11, new Comparator<Task>() {
+    @Override
+    public int compare(Task task1, Task task2) {
+      // Compares the difference: nanoTime() may wrap around.
+      return Long.signum(task1.mDeadlineNanos - task2.mDeadlineNanos);
+    }
+  });
+  private final Thread mThread;
+  private boolean mQuit;
+
+  public PeriodicScheduler(String name) {
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, name);
+    // Ticks are never worth keeping a process alive for.
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  /**
+   * @return The scheduler shared by the producers of the process, started on first use.
+   */
+  public static synchronized PeriodicScheduler getShared() {
+    if (sShared == null) {
+      sShared = new PeriodicScheduler("PeriodicScheduler");
+    }
+    return sShared;
+  }
+
+  /**
+   * Runs the task every period, the first time after the initial delay.
+   *
+   * @param policy {@link #POLICY_CATCH_UP} or {@link #POLICY_SKIP}.
+   * @return The handle to cancel the task with.
+   */
+  public Task schedule(Runnable runnable, long initialDelayNanos, long periodNanos, int policy) {
+    if (periodNanos <= 0) {
+      throw new IllegalArgumentException("Period must be positive: " + periodNanos);
+    }
+    if (policy != POLICY_CATCH_UP && policy != POLICY_SKIP) {
+      throw new IllegalArgumentException("Unknown policy: " + policy);
+    }
+    Task task = new Task(runnable, System.nanoTime() + Math.max(0, initialDelayNanos),
+        periodNanos, policy);
+    mLock.lock();
+    try {
+      if (mQuit) {
+        task.mCancelled = true;
+        return task;
+      }
+      mTasks.add(task);
+      mChanged.signal();
+    } finally {
+      mLock.unlock();
+    }
+    return task;
+  }
+
+  /**
+   * Cancels every task and stops the thread.
+   */
+  public void quit() {
+    mLock.lock();
+    try {
+      mQuit = true;
+      for (Task task : mTasks) {
+        task.mCancelled = true;
+      }
+      mTasks.clear();
+      mChanged.signal();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  private void loop() {
+    mLock.lock();
+    try {
+      while (!mQuit) {
+        Task task = mTasks.peek();
+        if (task == null) {
+          mChanged.await();
+          continue;
+        }
+        long delayNanos = task.mDeadlineNanos - System.nanoTime();
+        if (delayNanos > 0) {
+          // Woken up early when a task with an earlier deadline is added.
+          mChanged.awaitNanos(delayNanos);
+          continue;
+        }
+        mTasks.poll();
+        mLock.unlock();
+        try {
+          task.run(-delayNanos);
+        } finally {
+          mLock.lock();
+        }
+        if (!task.mCancelled) {
+          task.advance(System.nanoTime());
+          mTasks.add(task);
+        }
+      }
+    } catch (InterruptedException e) {
+      // Quits.
+    } finally {
+      mLock.unlock();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Staging area for Prepare Write Requests (long and reliable writes).
+ *
+ * Every device gets its own set of staging buffers, one per attribute being written. Parts are
+ * reassembled by offset and handed out once, in the order the attributes were first prepared,
+ * when the device sends an Execute Write Request. Buffers are drawn from a small pool so a long
+ * write doesn't allocate 512 bytes every time.
+ */
+public class PreparedWriteQueue {
+
+  /** Maximum length of an attribute value (Core spec Vol 3, Part F, 3.2.9). */
+  public static final int MAX_ATTRIBUTE_LENGTH = 512;
+  private static final int MAX_POOLED_BUFFERS = 8;
+
+  /**
+   * Value of an attribute reassembled from one or more Prepare Write Requests.
+   */
+  public static class PreparedValue {
+    /** {@link GattCharacteristic} or
+     * {@link GattDescriptor} being written. */
+    public final Object attribute;
+    private byte[] mBuffer;
+    private int mLength;
+
+    private PreparedValue(Object attribute, byte[] buffer) {
+      this.attribute = attribute;
+      mBuffer = buffer;
+    }
+
+    /**
+     * @return A copy of the reassembled value, safe to keep after the buffer is released.
+     */
+    public byte[] getValue() {
+      return Arrays.copyOf(mBuffer, mLength);
+    }
+  }
+
+  private final ArrayDeque<byte[]> mPool = new ArrayDeque<>(MAX_POOLED_BUFFERS);
+  private final HashMap<String, LinkedHashMap<Object, PreparedValue>> mStaged =
+      new HashMap<>();
+
+  /**
+   * Stages part of a long write.
+   *
+   * @return {@link GattStatus#SUCCESS} if the part was staged,
+   * {@link GattStatus#INVALID_OFFSET} if it would leave a gap in the value or
+   * {@link GattStatus#INVALID_ATTRIBUTE_LENGTH} if the value would exceed 512 bytes.
+   */
+  public synchronized int prepare(String device, Object attribute, int offset,
+      byte[] value) {
+    LinkedHashMap<Object, PreparedValue> staged = mStaged.get(device);
+    if (staged == null) {
+      staged = new LinkedHashMap<>();
+      mStaged.put(device, staged);
+    }
+    PreparedValue prepared = staged.get(attribute);
+    int currentLength = prepared == null ? 0 : prepared.mLength;
+    if (offset < 0 || offset > currentLength) {
+      return GattStatus.INVALID_OFFSET;
+    }
+    if (offset + value.length > MAX_ATTRIBUTE_LENGTH) {
+      return GattStatus.INVALID_ATTRIBUTE_LENGTH;
+    }
+    if (prepared == null) {
+      prepared = new PreparedValue(attribute, obtainBuffer());
+      staged.put(attribute, prepared);
+    }
+    System.arraycopy(value, 0, prepared.mBuffer, offset, value.length);
+    prepared.mLength = Math.max(prepared.mLength, offset + value.length);
+    return GattStatus.SUCCESS;
+  }
+
+  /**
+   * Removes and returns everything staged for a device. Each value is returned at most once;
+   * callers must hand the list back to {@link #release} once they are done with it.
+   */
+  public synchronized List<PreparedValue> take(String device) {
+    LinkedHashMap<Object, PreparedValue> staged = mStaged.remove(device);
+    if (staged == null) {
+      return new ArrayList<>(0);
+    }
+    return new ArrayList<>(staged.values());
+  }
+
+  /**
+   * Returns the buffers of values obtained from {@link #take} to the pool.
+   */
+  public synchronized void release(List<PreparedValue> values) {
+    for (PreparedValue value : values) {
+      recycleBuffer(value);
+    }
+  }
+
+  /**
+   * Discards everything staged for a device, e.g. on a cancelling Execute Write Request or when
+   * the device disconnects.
+   */
+  public synchronized void cancel(String device) {
+    LinkedHashMap<Object, PreparedValue> staged = mStaged.remove(device);
+    if (staged != null) {
+      for (PreparedValue value : staged.values()) {
+        recycleBuffer(value);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    for (LinkedHashMap<Object, PreparedValue> staged : mStaged.values()) {
+      for (PreparedValue value : staged.values()) {
+        recycleBuffer(value);
+      }
+    }
+    mStaged.clear();
+  }
+
+  private byte[] obtainBuffer() {
+    byte[] buffer = mPool.pollFirst();
+    return buffer == null ? new byte[MAX_ATTRIBUTE_LENGTH] : buffer;
+  }
+
+  private void recycleBuffer(PreparedValue value) {
+    if (value.mBuffer != null && mPool.size() < MAX_POOLED_BUFFERS) {
+      mPool.addFirst(value.mBuffer);
+    }
+    value.mBuffer = null;
+    value.mLength = 0;
+  }
+}
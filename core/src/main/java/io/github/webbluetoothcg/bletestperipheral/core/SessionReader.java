@@ -0,0 +1,293 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Reads back the events written by a {@link SessionRecorder}, oldest first, across all the
+ * segments of its directory.
+ *
+ * The reader is a cursor: {@link #next} moves to the next event and the getters describe it.
+ * Device and attribute definitions are resolved on the way and never returned as events.
+ */
+public class SessionReader {
+
+  private static class Segment {
+    final File file;
+    final int number;
+
+    Segment(File file, int number) {
+      this.file = file;
+      this.number = number;
+    }
+  }
+
+  private final ArrayList<Segment> mSegments = new ArrayList<>();
+  private int mNextSegment;
+  private ByteBuffer mBuffer;
+  private final HashMap<Integer, String> mDevices = new HashMap<>();
+  private final HashMap<Integer, UUID[]> mAttributes = new HashMap<>();
+
+  // The current event.
+  private int mType;
+  private int mFlags;
+  private long mTimestampNanos;
+  private String mDevice;
+  private UUID[] mAttribute;
+  private int mRequestId;
+  private int mStatus;
+  private int mArgument;
+  private byte[] mPayload;
+
+  /**
+   * @param directory Directory of a {@link SessionRecorder}.
+   */
+  public SessionReader(File directory) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Can't list " + directory);
+    }
+    for (File file : files) {
+      if (!SessionRecorder.isSegmentFile(file)) {
+        continue;
+      }
+      ByteBuffer header = read(file, SessionRecorder.SEGMENT_HEADER_LENGTH);
+      if (header.remaining() < SessionRecorder.SEGMENT_HEADER_LENGTH
+          || header.getLong() != SessionRecorder.MAGIC
+          || header.getInt() != SessionRecorder.VERSION) {
+        continue;
+      }
+      mSegments.add(new Segment(file, header.getInt()));
+    }
+    Collections.sort(mSegments, new Comparator<Segment>() {
+      @Override
+      public int compare(Segment a, Segment b) {
+        return Integer.compare(a.number, b.number);
+      }
+    });
+  }
+
+  /**
+   * Moves to the next event.
+   *
+   * @return false once there are no more events.
+   */
+  public boolean next() throws IOException {
+    while (true) {
+      if (mBuffer == null || mBuffer.remaining() < SessionRecorder.RECORD_HEADER_LENGTH) {
+        if (mNextSegment == mSegments.size()) {
+          return false;
+        }
+        mBuffer = read(mSegments.get(mNextSegment++).file, Integer.MAX_VALUE);
+        mBuffer.position(SessionRecorder.SEGMENT_HEADER_LENGTH);
+        mDevices.clear();
+        mAttributes.clear();
+        continue;
+      }
+      int length = mBuffer.getShort() & 0xFFFF;
+      if (length < SessionRecorder.RECORD_HEADER_LENGTH
+          || length - 2 > mBuffer.remaining()) {
+        // End of the segment.
+        mBuffer = null;
+        continue;
+      }
+      int type = mBuffer.get() & 0xFF;
+      int flags = mBuffer.get() & 0xFF;
+      long timestampNanos = mBuffer.getLong();
+      int deviceIndex = mBuffer.getShort() & 0xFFFF;
+      int attributeIndex = mBuffer.getShort() & 0xFFFF;
+      int requestId = mBuffer.getInt();
+      int status = mBuffer.getInt();
+      int argument = mBuffer.getInt();
+      byte[] payload = new byte[mBuffer.getShort() & 0xFFFF];
+      mBuffer.get(payload);
+      if (type == SessionRecorder.RECORD_DEVICE) {
+        mDevices.put(deviceIndex, new String(payload, "US-ASCII"));
+        continue;
+      }
+      if (type == SessionRecorder.RECORD_ATTRIBUTE) {
+        ByteBuffer uuids = ByteBuffer.wrap(payload);
+        UUID[] attribute = new UUID[3];
+        for (int i = 0; uuids.remaining() >= 16; i++) {
+          attribute[i] = new UUID(uuids.getLong(), uuids.getLong());
+        }
+        mAttributes.put(attributeIndex, attribute);
+        continue;
+      }
+      mType = type;
+      mFlags = flags;
+      mTimestampNanos = timestampNanos;
+      mDevice = mDevices.get(deviceIndex);
+      mAttribute = mAttributes.get(attributeIndex);
+      mRequestId = requestId;
+      mStatus = status;
+      mArgument = argument;
+      mPayload = payload;
+      return true;
+    }
+  }
+
+  /**
+   * @return One of the SessionRecorder.RECORD_* event types.
+   */
+  public int getType() {
+    return mType;
+  }
+
+  /**
+   * @return SessionRecorder.FLAG_* bits.
+   */
+  public int getFlags() {
+    return mFlags;
+  }
+
+  public boolean hasFlag(int flag) {
+    return (mFlags & flag) != 0;
+  }
+
+  /**
+   * @return {@link System#nanoTime()} of the event on the recording device.
+   */
+  public long getTimestampNanos() {
+    return mTimestampNanos;
+  }
+
+  /**
+   * @return Address of the device, or null.
+   */
+  public String getDevice() {
+    return mDevice;
+  }
+
+  public UUID getServiceUuid() {
+    return mAttribute == null ? null : mAttribute[0];
+  }
+
+  public UUID getCharacteristicUuid() {
+    return mAttribute == null ? null : mAttribute[1];
+  }
+
+  /**
+   * @return UUID of the descriptor, or null if the event isn't about a descriptor.
+   */
+  public UUID getDescriptorUuid() {
+    return mAttribute == null ? null : mAttribute[2];
+  }
+
+  public int getRequestId() {
+    return mRequestId;
+  }
+
+  public int getStatus() {
+    return mStatus;
+  }
+
+  public int getArgument() {
+    return mArgument;
+  }
+
+  /**
+   * @return Payload of the event, empty if there is none. Owned by the caller.
+   */
+  public byte[] getPayload() {
+    return mPayload;
+  }
+
+  /**
+   * Decodes every remaining event, one line per event with the payload in hex and ASCII.
+   * Timestamps are relative to the first event.
+   */
+  public void dump(Writer out) throws IOException {
+    long startNanos = 0;
+    boolean first = true;
+    StringBuilder line = new StringBuilder(160);
+    while (next()) {
+      if (first) {
+        startNanos = mTimestampNanos;
+        first = false;
+      }
+      line.setLength(0);
+      line.append(String.format("%12.3f ms %s", (mTimestampNanos - startNanos) / 1e6,
+          getTypeName(mType)));
+      if (mDevice != null) {
+        line.append(" device=").append(mDevice);
+      }
+      if (mAttribute != null) {
+        line.append(" characteristic=").append(mAttribute[1]);
+        if (mAttribute[2] != null) {
+          line.append(" descriptor=").append(mAttribute[2]);
+        }
+      }
+      line.append(" request=").append(mRequestId);
+      line.append(" status=").append(mStatus);
+      line.append(" arg=").append(mArgument);
+      line.append(" flags=").append(mFlags);
+      if (mPayload.length > 0) {
+        line.append(" len=").append(mPayload.length).append(" |");
+        GattTrace.appendPayload(line, mPayload, 0, mPayload.length, hasFlag(
+            SessionRecorder.FLAG_TRUNCATED));
+      }
+      line.append('\n');
+      out.append(line);
+    }
+  }
+
+  public static String getTypeName(int type) {
+    switch (type) {
+      case SessionRecorder.RECORD_CONNECTION_STATE:
+        return "CONNECTION_STATE";
+      case SessionRecorder.RECORD_MTU_CHANGED:
+        return "MTU_CHANGED";
+      case SessionRecorder.RECORD_READ_CHARACTERISTIC:
+        return "READ_CHARACTERISTIC";
+      case SessionRecorder.RECORD_WRITE_CHARACTERISTIC:
+        return "WRITE_CHARACTERISTIC";
+      case SessionRecorder.RECORD_READ_DESCRIPTOR:
+        return "READ_DESCRIPTOR";
+      case SessionRecorder.RECORD_WRITE_DESCRIPTOR:
+        return "WRITE_DESCRIPTOR";
+      case SessionRecorder.RECORD_EXECUTE_WRITE:
+        return "EXECUTE_WRITE";
+      case SessionRecorder.RECORD_NOTIFICATION_SENT:
+        return "NOTIFICATION_SENT";
+      case SessionRecorder.RECORD_RESPONSE:
+        return "RESPONSE";
+      case SessionRecorder.RECORD_NOTIFICATION:
+        return "NOTIFICATION";
+      default:
+        return "?";
+    }
+  }
+
+  private static ByteBuffer read(File file, int maxLength) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      byte[] bytes = new byte[(int) Math.min(randomAccessFile.length(), maxLength)];
+      randomAccessFile.readFully(bytes);
+      return ByteBuffer.wrap(bytes);
+    }
+  }
+}
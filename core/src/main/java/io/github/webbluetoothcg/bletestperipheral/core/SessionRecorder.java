@@ -0,0 +1,427 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records every GATT event of a session to compact binary files, for post-mortem analysis with
+ * {@link SessionReader} and replay.
+ *
+ * The records are appended to memory-mapped segment files of a fixed size in a directory. When
+ * a segment is full the recorder switches to the next one; once there are as many segments as
+ * allowed, the oldest one is overwritten, so the disk usage never exceeds segment size x segment
+ * count. Recording runs on the GATT threads, so the slow file work is left to an I/O executor:
+ * the next segment is created and mapped ahead of time, while the current one fills, and a full
+ * segment is flushed to disk after the switch. The segment being prepared holds no records yet,
+ * so the oldest one is recycled a segment early. Should the next segment not be ready in time,
+ * events are dropped and counted rather than waited for.
+ *
+ * Every segment starts with a header (magic, version, segment number, monotonic and wall clock
+ * start time) followed by records, all big-endian:
+ * <pre>
+ *   uint16 record length, header included
+ *   uint8  type (RECORD_*)
+ *   uint8  flags (FLAG_*)
+ *   int64  System.nanoTime() of the event
+ *   uint16 device index, or 0xFFFF
+ *   uint16 attribute index, or 0xFFFF
+ *   int32  request id
+ *   int32  status
+ *   int32  argument: offset, MTU, new connection state or execute flag
+ *   uint16 payload length, followed by the payload (at most {@link #MAX_PAYLOAD_LENGTH} bytes)
+ * </pre>
+ * A record length of 0 marks the end of a segment. Device addresses and attributes are written
+ * once per segment as {@link #RECORD_DEVICE} and {@link #RECORD_ATTRIBUTE} records, so every
+ * segment can be decoded on its own and recording an event allocates nothing once its device
+ * and attribute have been seen.
+ *
+ * Thread-safe; events are recorded from both the transport thread and the event loop.
+ */
+public class SessionRecorder {
+
+  private static final Logger LOG = Logger.getLogger(SessionRecorder.class.getName());
+
+  public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+  public static final int DEFAULT_SEGMENT_COUNT = 4;
+  // Longest attribute value.
+  public static final int MAX_PAYLOAD_LENGTH = 512;
+
+  /** A connection state change: status, argument = new state. */
+  public static final int RECORD_CONNECTION_STATE = 1;
+  /** An MTU exchange: argument = MTU. */
+  public static final int RECORD_MTU_CHANGED = 2;
+  /** A characteristic read request: argument = offset. */
+  public static final int RECORD_READ_CHARACTERISTIC = 3;
+  /** A characteristic write request: argument = offset, payload = value. */
+  public static final int RECORD_WRITE_CHARACTERISTIC = 4;
+  /** A descriptor read request: argument = offset. */
+  public static final int RECORD_READ_DESCRIPTOR = 5;
+  /** A descriptor write request: argument = offset, payload = value. */
+  public static final int RECORD_WRITE_DESCRIPTOR = 6;
+  /** An execute write request: argument = 1 to execute, 0 to cancel. */
+  public static final int RECORD_EXECUTE_WRITE = 7;
+  /** The transport reporting a notification as sent: status. */
+  public static final int RECORD_NOTIFICATION_SENT = 8;
+  /** A response sent to a request: request id, status, argument = offset, payload = value. */
+  public static final int RECORD_RESPONSE = 9;
+  /** A notification or indication handed to the transport: payload = value. */
+  public static final int RECORD_NOTIFICATION = 10;
+  /** Defines a device index: payload = address in ASCII. */
+  public static final int RECORD_DEVICE = 0x40;
+  /**
+   * Defines an attribute index: payload = service, characteristic and, for descriptors,
+   * descriptor UUIDs as pairs of int64.
+   */
+  public static final int RECORD_ATTRIBUTE = 0x41;
+
+  public static final int FLAG_RESPONSE_NEEDED = 1;
+  public static final int FLAG_PREPARED_WRITE = 2;
+  public static final int FLAG_CONFIRM = 4;
+  // The payload was cut to MAX_PAYLOAD_LENGTH bytes.
+  public static final int FLAG_TRUNCATED = 8;
+
+  static final long MAGIC = 0x4741545453455331L; // "GATTSES1"
+  static final int VERSION = 1;
+  static final int SEGMENT_HEADER_LENGTH = 32;
+  static final int RECORD_HEADER_LENGTH = 30;
+  static final int NO_INDEX = 0xFFFF;
+  static final String SEGMENT_PREFIX = "session_";
+  static final String SEGMENT_SUFFIX = ".bin";
+
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+
+  private final File mDirectory;
+  private final int mSegmentSize;
+  private final int mSegmentCount;
+  private final Executor mIoExecutor;
+  // Serializes the file operations of start() and of the I/O executor.
+  private final Object mFileLock = new Object();
+  private volatile boolean mRecording;
+  private final AtomicLong mDroppedCount = new AtomicLong();
+  // Guarded by this. Also written under mFileLock, so the I/O executor can tell whether its
+  // work still belongs to the current session.
+  private int mSession;
+  // Guarded by this.
+  private MappedByteBuffer mSegment;
+  private int mSegmentNumber;
+  // The segment after mSegment once mapped, or null.
+  private MappedByteBuffer mNextSegment;
+  private final HashMap<String, Integer> mDeviceIndexes = new HashMap<>();
+  private final IdentityHashMap<Object, Integer> mAttributeIndexes = new IdentityHashMap<>();
+
+  /**
+   * Creates a recorder that does its file work on the calling thread, e.g. for tools that
+   * record off the GATT threads.
+   */
+  public SessionRecorder(File directory) {
+    this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_COUNT, DIRECT_EXECUTOR);
+  }
+
+  /**
+   * @param ioExecutor Runs the segment preparation and flushes. It must run its tasks one at a
+   * time, in order, like a single I/O thread.
+   */
+  public SessionRecorder(File directory, Executor ioExecutor) {
+    this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_COUNT, ioExecutor);
+  }
+
+  public SessionRecorder(File directory, int segmentSize, int segmentCount,
+      Executor ioExecutor) {
+    if (segmentSize < SEGMENT_HEADER_LENGTH + 2 * (RECORD_HEADER_LENGTH + MAX_PAYLOAD_LENGTH)) {
+      throw new IllegalArgumentException("Segments are too small: " + segmentSize);
+    }
+    // The next segment is prepared while the current one is in use, so they can't be the same.
+    if (segmentCount < 2) {
+      throw new IllegalArgumentException("segmentCount must be at least 2: " + segmentCount);
+    }
+    mDirectory = directory;
+    mSegmentSize = segmentSize;
+    mSegmentCount = segmentCount;
+    mIoExecutor = ioExecutor;
+  }
+
+  public File getDirectory() {
+    return mDirectory;
+  }
+
+  /**
+   * Starts a new session, deleting the segments of the previous one in the directory.
+   */
+  public synchronized void start() throws IOException {
+    if (mRecording) {
+      return;
+    }
+    synchronized (mFileLock) {
+      mSession++;
+      if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+        throw new IOException("Can't create " + mDirectory);
+      }
+      File[] segments = mDirectory.listFiles();
+      if (segments != null) {
+        for (File segment : segments) {
+          if (isSegmentFile(segment)) {
+            segment.delete();
+          }
+        }
+      }
+      mSegmentNumber = 0;
+      mSegment = mapSegment(mSegmentNumber);
+    }
+    mNextSegment = null;
+    startSegment();
+    mRecording = true;
+    prepareSegment(mSession, mSegmentNumber + 1);
+  }
+
+  /**
+   * Stops recording and flushes the current segment to disk.
+   */
+  public synchronized void stop() {
+    if (!mRecording) {
+      return;
+    }
+    mRecording = false;
+    synchronized (mFileLock) {
+      mSession++;
+    }
+    mSegment.force();
+    mSegment = null;
+    mNextSegment = null;
+  }
+
+  public boolean isRecording() {
+    return mRecording;
+  }
+
+  /**
+   * @return Events lost because the next segment wasn't ready when the current one was full.
+   */
+  public long getDroppedCount() {
+    return mDroppedCount.get();
+  }
+
+  /**
+   * Appends an event. Does nothing if the recorder isn't started.
+   *
+   * @param device Address of the device, or null.
+   * @param attribute The {@link GattCharacteristic} or {@link GattDescriptor} of the event, or
+   * null.
+   * @param payload Value of the event, or null. Only the first {@link #MAX_PAYLOAD_LENGTH} bytes
+   * are kept.
+   */
+  public void record(int type, int flags, String device, Object attribute, int requestId,
+      int status, int argument, byte[] payload) {
+    if (!mRecording) {
+      return;
+    }
+    long timestampNanos = System.nanoTime();
+    synchronized (this) {
+      if (!mRecording) {
+        return;
+      }
+      int payloadLength = payload == null ? 0 : Math.min(payload.length, MAX_PAYLOAD_LENGTH);
+      if (payload != null && payload.length > MAX_PAYLOAD_LENGTH) {
+        flags |= FLAG_TRUNCATED;
+      }
+      // Room for the definitions and the event itself, so none of them is split from the
+      // others by a rotation.
+      if (mSegment.remaining() < 3 * (RECORD_HEADER_LENGTH + MAX_PAYLOAD_LENGTH)
+          && !rotateSegment()) {
+        mDroppedCount.incrementAndGet();
+        return;
+      }
+      int deviceIndex = device == null ? NO_INDEX : deviceIndex(device, timestampNanos);
+      int attributeIndex = attribute == null ? NO_INDEX
+          : attributeIndex(attribute, timestampNanos);
+      writeHeader(RECORD_HEADER_LENGTH + payloadLength, type, flags, timestampNanos,
+          deviceIndex, attributeIndex, requestId, status, argument, payloadLength);
+      if (payloadLength > 0) {
+        mSegment.put(payload, 0, payloadLength);
+      }
+    }
+  }
+
+  static boolean isSegmentFile(File file) {
+    String name = file.getName();
+    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+  }
+
+  /*
+   * Switches to the segment prepared by the I/O executor and has the full one flushed.
+   * Called with this held.
+   *
+   * @return false if the next segment isn't ready yet.
+   */
+  private boolean rotateSegment() {
+    if (mNextSegment == null) {
+      return false;
+    }
+    final MappedByteBuffer fullSegment = mSegment;
+    mSegment = mNextSegment;
+    mNextSegment = null;
+    mSegmentNumber++;
+    startSegment();
+    mIoExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        fullSegment.force();
+      }
+    });
+    prepareSegment(mSession, mSegmentNumber + 1);
+    return true;
+  }
+
+  /*
+   * Has the I/O executor map the given segment and hand it over as mNextSegment, unless the
+   * session ended in the meantime.
+   */
+  private void prepareSegment(final int session, final int segmentNumber) {
+    mIoExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        MappedByteBuffer segment;
+        try {
+          synchronized (mFileLock) {
+            if (session != mSession) {
+              return;
+            }
+            segment = mapSegment(segmentNumber);
+          }
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Failed to prepare the next session segment, stopping", e);
+          stop();
+          return;
+        }
+        synchronized (SessionRecorder.this) {
+          if (session == mSession && segmentNumber == mSegmentNumber + 1) {
+            mNextSegment = segment;
+          }
+        }
+      }
+    });
+  }
+
+  /*
+   * Creates, or recycles, the file of the segment and maps it. Slow: runs on the I/O executor,
+   * except for the first segment of a session.
+   */
+  private MappedByteBuffer mapSegment(int segmentNumber) throws IOException {
+    File file = new File(mDirectory, SEGMENT_PREFIX + (segmentNumber % mSegmentCount)
+        + SEGMENT_SUFFIX);
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      // A recycled segment must not show the records of its previous round past the new ones.
+      randomAccessFile.setLength(0);
+      randomAccessFile.setLength(mSegmentSize);
+      // The mapping stays valid once the channel is closed.
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+          mSegmentSize);
+    }
+  }
+
+  /*
+   * Writes the header of the segment just switched to. Called with this held.
+   */
+  private void startSegment() {
+    mSegment.putLong(MAGIC);
+    mSegment.putInt(VERSION);
+    mSegment.putInt(mSegmentNumber);
+    mSegment.putLong(System.nanoTime());
+    mSegment.putLong(System.currentTimeMillis());
+    mDeviceIndexes.clear();
+    mAttributeIndexes.clear();
+  }
+
+  private int deviceIndex(String device, long timestampNanos) {
+    Integer index = mDeviceIndexes.get(device);
+    if (index != null) {
+      return index;
+    }
+    index = mDeviceIndexes.size();
+    mDeviceIndexes.put(device, index);
+    int length = Math.min(device.length(), MAX_PAYLOAD_LENGTH);
+    writeHeader(RECORD_HEADER_LENGTH + length, RECORD_DEVICE, /* flags */ 0, timestampNanos,
+        index, NO_INDEX, /* requestId */ 0, /* status */ 0, /* argument */ 0, length);
+    for (int i = 0; i < length; i++) {
+      mSegment.put((byte) device.charAt(i));
+    }
+    return index;
+  }
+
+  private int attributeIndex(Object attribute, long timestampNanos) {
+    Integer index = mAttributeIndexes.get(attribute);
+    if (index != null) {
+      return index;
+    }
+    index = mAttributeIndexes.size();
+    mAttributeIndexes.put(attribute, index);
+    GattDescriptor descriptor = null;
+    GattCharacteristic characteristic;
+    if (attribute instanceof GattDescriptor) {
+      descriptor = (GattDescriptor) attribute;
+      characteristic = descriptor.getCharacteristic();
+    } else {
+      characteristic = (GattCharacteristic) attribute;
+    }
+    GattService service = characteristic == null ? null : characteristic.getService();
+    int length = descriptor == null ? 32 : 48;
+    writeHeader(RECORD_HEADER_LENGTH + length, RECORD_ATTRIBUTE, /* flags */ 0, timestampNanos,
+        NO_INDEX, index, /* requestId */ 0, /* status */ 0, /* argument */ 0, length);
+    putUuid(service == null ? null : service.getUuid());
+    putUuid(characteristic == null ? null : characteristic.getUuid());
+    if (descriptor != null) {
+      putUuid(descriptor.getUuid());
+    }
+    return index;
+  }
+
+  private void putUuid(UUID uuid) {
+    mSegment.putLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+    mSegment.putLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+  }
+
+  private void writeHeader(int length, int type, int flags, long timestampNanos,
+      int deviceIndex, int attributeIndex, int requestId, int status, int argument,
+      int payloadLength) {
+    mSegment.putShort((short) length);
+    mSegment.put((byte) type);
+    mSegment.put((byte) flags);
+    mSegment.putLong(timestampNanos);
+    mSegment.putShort((short) deviceIndex);
+    mSegment.putShort((short) attributeIndex);
+    mSegment.putInt(requestId);
+    mSegment.putInt(status);
+    mSegment.putInt(argument);
+    mSegment.putShort((short) payloadLength);
+  }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-drives a session recorded by a {@link SessionRecorder} into a peripheral through a
+ * {@link LoopbackGattTransport}, and compares the responses and latencies with the original
+ * ones.
+ *
+ * The connections, MTU exchanges, reads, writes, CCCD changes and executed writes of every
+ * recorded device are issued by a loopback central of the same address, one request at a time
+ * in the recorded order: a request is only issued once the response to the previous one
+ * arrived. With the original timing every request also waits for its recorded time relative to
+ * the first one; otherwise they follow each other as fast as the peripheral answers.
+ *
+ * Original latencies run from the moment the transport delivered a request to the moment the
+ * response was sent; replayed latencies run from the moment the central issued the request to
+ * the moment it received the response, so they include the two hops of the loopback link.
+ */
+public class SessionReplay {
+
+  private static final long RESPONSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+  // Mismatches described one by one in the report; the others are only counted.
+  private static final int MAX_MISMATCH_DETAILS = 20;
+  // One more than the highest SessionRecorder.RECORD_* type of a request.
+  private static final int TYPE_COUNT = SessionRecorder.RECORD_EXECUTE_WRITE + 1;
+
+  /**
+   * A recorded request or connection event, with the response it originally got.
+   */
+  public static class Request {
+    public final int type;
+    public final int flags;
+    public final long timestampNanos;
+    public final String device;
+    public final UUID serviceUuid;
+    public final UUID characteristicUuid;
+    public final UUID descriptorUuid;
+    public final int requestId;
+    public final int status;
+    public final int argument;
+    public final byte[] payload;
+
+    boolean answered;
+    int responseStatus;
+    byte[] responseValue;
+    boolean responseTruncated;
+    long responseTimestampNanos;
+
+    Request(SessionReader reader) {
+      type = reader.getType();
+      flags = reader.getFlags();
+      timestampNanos = reader.getTimestampNanos();
+      device = reader.getDevice();
+      serviceUuid = reader.getServiceUuid();
+      characteristicUuid = reader.getCharacteristicUuid();
+      descriptorUuid = reader.getDescriptorUuid();
+      requestId = reader.getRequestId();
+      status = reader.getStatus();
+      argument = reader.getArgument();
+      payload = reader.getPayload();
+    }
+
+    /**
+     * @return true if the recording holds the response to the request.
+     */
+    public boolean isAnswered() {
+      return answered;
+    }
+
+    public int getResponseStatus() {
+      return responseStatus;
+    }
+
+    public byte[] getResponseValue() {
+      return responseValue;
+    }
+
+    boolean expectsResponse() {
+      if (type == SessionRecorder.RECORD_WRITE_CHARACTERISTIC
+          || type == SessionRecorder.RECORD_WRITE_DESCRIPTOR) {
+        return (flags & SessionRecorder.FLAG_RESPONSE_NEEDED) != 0;
+      }
+      return type == SessionRecorder.RECORD_READ_CHARACTERISTIC
+          || type == SessionRecorder.RECORD_READ_DESCRIPTOR
+          || type == SessionRecorder.RECORD_EXECUTE_WRITE;
+    }
+  }
+
+  /**
+   * Outcome of a replay, per request type.
+   */
+  public static class Report {
+    private final long[] mReplayed = new long[TYPE_COUNT];
+    private final long[] mSkipped = new long[TYPE_COUNT];
+    private final long[] mTimeouts = new long[TYPE_COUNT];
+    private final long[] mStatusMismatches = new long[TYPE_COUNT];
+    private final long[] mValueMismatches = new long[TYPE_COUNT];
+    private final LatencyHistogram[] mOriginalLatencies = new LatencyHistogram[TYPE_COUNT];
+    private final LatencyHistogram[] mReplayedLatencies = new LatencyHistogram[TYPE_COUNT];
+    private final ArrayList<String> mMismatches = new ArrayList<>();
+    private long mDurationNanos;
+    private long mOriginalDurationNanos;
+
+    Report() {
+      for (int i = 0; i < TYPE_COUNT; i++) {
+        mOriginalLatencies[i] = new LatencyHistogram();
+        mReplayedLatencies[i] = new LatencyHistogram();
+      }
+    }
+
+    public long getReplayed(int type) {
+      return mReplayed[type];
+    }
+
+    /**
+     * @return Requests that couldn't be issued: unknown attribute, disconnected device or a
+     * request the loopback central can't send.
+     */
+    public long getSkipped(int type) {
+      return mSkipped[type];
+    }
+
+    public long getTimeouts(int type) {
+      return mTimeouts[type];
+    }
+
+    public long getStatusMismatches(int type) {
+      return mStatusMismatches[type];
+    }
+
+    public long getValueMismatches(int type) {
+      return mValueMismatches[type];
+    }
+
+    public LatencyHistogram getOriginalLatency(int type) {
+      return mOriginalLatencies[type];
+    }
+
+    public LatencyHistogram getReplayedLatency(int type) {
+      return mReplayedLatencies[type];
+    }
+
+    /**
+     * @return true if every replayed response matched the original one.
+     */
+    public boolean isMatching() {
+      for (int i = 0; i < TYPE_COUNT; i++) {
+        if (mTimeouts[i] > 0 || mStatusMismatches[i] > 0 || mValueMismatches[i] > 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public void dump(Writer out) throws IOException {
+      out.append(String.format(Locale.US,
+          "# replay took %.3f s, the original session %.3f s\n",
+          mDurationNanos / 1e9, mOriginalDurationNanos / 1e9));
+      out.append(String.format(Locale.US,
+          "%-22s %8s %8s %8s %8s %8s %11s %11s %11s %11s\n", "request", "replayed", "skipped",
+          "timeouts", "status", "value", "orig p50 us", "p50 us", "orig p99 us", "p99 us"));
+      for (int type = 1; type < TYPE_COUNT; type++) {
+        if (mReplayed[type] == 0 && mSkipped[type] == 0) {
+          continue;
+        }
+        LatencyHistogram original = mOriginalLatencies[type];
+        LatencyHistogram replayed = mReplayedLatencies[type];
+        out.append(String.format(Locale.US,
+            "%-22s %8d %8d %8d %8d %8d %11.1f %11.1f %11.1f %11.1f\n",
+            SessionReader.getTypeName(type), mReplayed[type], mSkipped[type], mTimeouts[type],
+            mStatusMismatches[type], mValueMismatches[type],
+            original.getValueAtPercentile(50) / 1e3, replayed.getValueAtPercentile(50) / 1e3,
+            original.getValueAtPercentile(99) / 1e3, replayed.getValueAtPercentile(99) / 1e3));
+      }
+      for (String mismatch : mMismatches) {
+        out.append(mismatch).append('\n');
+      }
+    }
+
+    private void addMismatch(Request request, String description) {
+      if (mMismatches.size() < MAX_MISMATCH_DETAILS) {
+        mMismatches.add(String.format(Locale.US, "%s device=%s characteristic=%s request=%d: %s",
+            SessionReader.getTypeName(request.type), request.device,
+            request.characteristicUuid, request.requestId, description));
+      }
+    }
+  }
+
+  /*
+   * Waits for the response to the request in flight; the response arrives on the link thread.
+   */
+  private static class ResponseWaiter implements LoopbackGattTransport.ResponseListener {
+    private boolean mAnswered;
+    private int mStatus;
+    private byte[] mValue;
+    private long mAnsweredNanos;
+
+    synchronized void reset() {
+      mAnswered = false;
+      mValue = null;
+    }
+
+    @Override
+    public synchronized void onResponse(int status, int offset, byte[] value) {
+      mAnsweredNanos = System.nanoTime();
+      mAnswered = true;
+      mStatus = status;
+      mValue = value;
+      notifyAll();
+    }
+
+    synchronized boolean await(long timeoutNanos) throws InterruptedException {
+      long deadline = System.nanoTime() + timeoutNanos;
+      while (!mAnswered) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return true;
+    }
+  }
+
+  private final LoopbackGattTransport mTransport;
+  private final ResponseWaiter mWaiter = new ResponseWaiter();
+
+  /**
+   * @param transport Transport of the peripheral to replay the session into. The peripheral
+   * must be started.
+   */
+  public SessionReplay(LoopbackGattTransport transport) {
+    mTransport = transport;
+  }
+
+  /**
+   * Reads every request of a recording and pairs it with its original response.
+   */
+  public static List<Request> load(SessionReader reader) throws IOException {
+    ArrayList<Request> requests = new ArrayList<>();
+    HashMap<String, HashMap<Integer, Request>> pending = new HashMap<>();
+    while (reader.next()) {
+      int type = reader.getType();
+      if (type == SessionRecorder.RECORD_RESPONSE) {
+        HashMap<Integer, Request> devicePending = pending.get(reader.getDevice());
+        Request request = devicePending == null ? null
+            : devicePending.remove(reader.getRequestId());
+        if (request != null) {
+          request.answered = true;
+          request.responseStatus = reader.getStatus();
+          request.responseValue = reader.getPayload();
+          request.responseTruncated = reader.hasFlag(SessionRecorder.FLAG_TRUNCATED);
+          request.responseTimestampNanos = reader.getTimestampNanos();
+        }
+        continue;
+      }
+      if (type <= 0 || type >= TYPE_COUNT || reader.getDevice() == null) {
+        // Notifications and their completions are the peripheral's own output.
+        continue;
+      }
+      Request request = new Request(reader);
+      requests.add(request);
+      if (request.expectsResponse()) {
+        HashMap<Integer, Request> devicePending = pending.get(request.device);
+        if (devicePending == null) {
+          devicePending = new HashMap<>();
+          pending.put(request.device, devicePending);
+        }
+        devicePending.put(request.requestId, request);
+      }
+    }
+    return requests;
+  }
+
+  /**
+   * Builds stand-ins for the services of a recording from the attributes its requests mention,
+   * so it can be replayed without the services that were recorded, and without touching their
+   * state: every characteristic accepts reads, writes and subscriptions, stores what is written
+   * to it, and starts with the value of its first recorded read. The engine's own answers
+   * (CCCDs, long reads, prepared writes, errors) match the original; values the services
+   * computed may not.
+   */
+  public static List<GattServiceHandler> createStubServices(List<Request> requests) {
+    LinkedHashMap<UUID, StubService> services = new LinkedHashMap<>();
+    for (Request request : requests) {
+      if (request.serviceUuid == null || request.characteristicUuid == null) {
+        continue;
+      }
+      StubService service = services.get(request.serviceUuid);
+      if (service == null) {
+        service = new StubService(request.serviceUuid);
+        services.put(request.serviceUuid, service);
+      }
+      GattCharacteristic characteristic = service.getCharacteristic(request.characteristicUuid);
+      byte[] readValue = request.type == SessionRecorder.RECORD_READ_CHARACTERISTIC
+          || request.type == SessionRecorder.RECORD_READ_DESCRIPTOR ? firstReadValue(request)
+          : null;
+      if (request.descriptorUuid == null) {
+        if (readValue != null && characteristic.getValue() == null) {
+          characteristic.setValue(readValue);
+        }
+        continue;
+      }
+      GattDescriptor descriptor = characteristic.getDescriptor(request.descriptorUuid);
+      if (descriptor == null) {
+        descriptor = new GattDescriptor(request.descriptorUuid,
+            GattDescriptor.PERMISSION_READ | GattDescriptor.PERMISSION_WRITE);
+        characteristic.addDescriptor(descriptor);
+      }
+      if (readValue != null && descriptor.getValue() == null) {
+        descriptor.setValue(readValue);
+      }
+    }
+    return new ArrayList<GattServiceHandler>(services.values());
+  }
+
+  private static byte[] firstReadValue(Request request) {
+    if (!request.isAnswered() || request.argument != 0
+        || request.getResponseStatus() != GattStatus.SUCCESS) {
+      return null;
+    }
+    return request.getResponseValue();
+  }
+
+  /*
+   * Stands in for a recorded service: accepts everything and stores the written values.
+   */
+  private static class StubService implements GattServiceHandler {
+    private final GattService mService;
+
+    StubService(UUID uuid) {
+      mService = new GattService(uuid, GattService.SERVICE_TYPE_PRIMARY);
+    }
+
+    GattCharacteristic getCharacteristic(UUID uuid) {
+      GattCharacteristic characteristic = mService.getCharacteristic(uuid);
+      if (characteristic == null) {
+        characteristic = new GattCharacteristic(uuid,
+            GattCharacteristic.PROPERTY_READ | GattCharacteristic.PROPERTY_WRITE
+                | GattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+                | GattCharacteristic.PROPERTY_NOTIFY | GattCharacteristic.PROPERTY_INDICATE,
+            GattCharacteristic.PERMISSION_READ | GattCharacteristic.PERMISSION_WRITE);
+        mService.addCharacteristic(characteristic);
+      }
+      return characteristic;
+    }
+
+    @Override
+    public GattService getGattService() {
+      return mService;
+    }
+
+    @Override
+    public int writeCharacteristic(GattCharacteristic characteristic, int offset, byte[] value) {
+      if (offset != 0) {
+        return GattStatus.INVALID_OFFSET;
+      }
+      characteristic.setValue(value);
+      return GattStatus.SUCCESS;
+    }
+
+    @Override
+    public void notificationsEnabled(GattCharacteristic characteristic, boolean indicate) {
+    }
+
+    @Override
+    public void notificationsDisabled(GattCharacteristic characteristic) {
+    }
+  }
+
+  /**
+   * Replays the requests and compares every response with the original one.
+   *
+   * @param originalTiming true to issue every request at its recorded time relative to the
+   * first one, false to issue them as fast as the peripheral answers.
+   */
+  public Report replay(List<Request> requests, boolean originalTiming)
+      throws InterruptedException {
+    Report report = new Report();
+    if (requests.isEmpty()) {
+      return report;
+    }
+    long firstNanos = requests.get(0).timestampNanos;
+    report.mOriginalDurationNanos = requests.get(requests.size() - 1).timestampNanos - firstNanos;
+    long startNanos = System.nanoTime();
+    for (Request request : requests) {
+      if (originalTiming) {
+        long due = startNanos + (request.timestampNanos - firstNanos);
+        long delay;
+        while ((delay = due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(delay);
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+        }
+      }
+      replayRequest(request, report);
+    }
+    report.mDurationNanos = System.nanoTime() - startNanos;
+    return report;
+  }
+
+  private void replayRequest(Request request, Report report) throws InterruptedException {
+    LoopbackGattTransport.Central central = mTransport.getCentral(request.device);
+    if (request.type == SessionRecorder.RECORD_CONNECTION_STATE) {
+      if (request.status != GattStatus.SUCCESS) {
+        // The stack's error; nothing a central can reproduce.
+        report.mSkipped[request.type]++;
+      } else if (request.argument == GattTransport.STATE_CONNECTED && !central.isConnected()) {
+        central.connect();
+        report.mReplayed[request.type]++;
+      } else if (request.argument == GattTransport.STATE_DISCONNECTED
+          && central.isConnected()) {
+        central.disconnect();
+        report.mReplayed[request.type]++;
+      } else {
+        report.mSkipped[request.type]++;
+      }
+      return;
+    }
+    if (!central.isConnected()) {
+      // The connection predates the recording, or its record was overwritten in the ring.
+      central.connect();
+    }
+    mWaiter.reset();
+    long issuedNanos = System.nanoTime();
+    if (!issue(central, request)) {
+      report.mSkipped[request.type]++;
+      return;
+    }
+    report.mReplayed[request.type]++;
+    if (!request.expectsResponse()) {
+      return;
+    }
+    if (!mWaiter.await(RESPONSE_TIMEOUT_NANOS)) {
+      report.mTimeouts[request.type]++;
+      report.addMismatch(request, "no response");
+      return;
+    }
+    report.mReplayedLatencies[request.type].record(mWaiter.mAnsweredNanos - issuedNanos);
+    if (!request.answered) {
+      return;
+    }
+    report.mOriginalLatencies[request.type].record(
+        request.responseTimestampNanos - request.timestampNanos);
+    if (mWaiter.mStatus != request.responseStatus) {
+      report.mStatusMismatches[request.type]++;
+      report.addMismatch(request, "status " + mWaiter.mStatus + " instead of "
+          + request.responseStatus);
+    } else if (!sameValue(mWaiter.mValue, request.responseValue, request.responseTruncated)) {
+      report.mValueMismatches[request.type]++;
+      report.addMismatch(request, "value " + Arrays.toString(mWaiter.mValue) + " instead of "
+          + Arrays.toString(request.responseValue));
+    }
+  }
+
+  /*
+   * @return false if the request can't be sent by a loopback central.
+   */
+  private boolean issue(LoopbackGattTransport.Central central, Request request) {
+    boolean prepared = (request.flags & SessionRecorder.FLAG_PREPARED_WRITE) != 0;
+    switch (request.type) {
+      case SessionRecorder.RECORD_MTU_CHANGED:
+        central.requestMtu(request.argument);
+        return true;
+      case SessionRecorder.RECORD_EXECUTE_WRITE:
+        central.executeWrite(request.argument != 0, mWaiter);
+        return true;
+      case SessionRecorder.RECORD_READ_CHARACTERISTIC:
+      case SessionRecorder.RECORD_WRITE_CHARACTERISTIC: {
+        GattCharacteristic characteristic = findCharacteristic(request);
+        if (characteristic == null) {
+          return false;
+        }
+        if (request.type == SessionRecorder.RECORD_READ_CHARACTERISTIC) {
+          central.read(characteristic, request.argument, mWaiter);
+        } else if (prepared) {
+          central.prepareWrite(characteristic, request.argument, request.payload, mWaiter);
+        } else {
+          central.write(characteristic, request.payload,
+              (request.flags & SessionRecorder.FLAG_RESPONSE_NEEDED) != 0, mWaiter);
+        }
+        return true;
+      }
+      case SessionRecorder.RECORD_READ_DESCRIPTOR:
+      case SessionRecorder.RECORD_WRITE_DESCRIPTOR: {
+        GattCharacteristic characteristic = findCharacteristic(request);
+        GattDescriptor descriptor = characteristic == null || request.descriptorUuid == null
+            ? null : characteristic.getDescriptor(request.descriptorUuid);
+        if (descriptor == null) {
+          return false;
+        }
+        if (request.type == SessionRecorder.RECORD_READ_DESCRIPTOR) {
+          central.readDescriptor(descriptor, request.argument, mWaiter);
+          return true;
+        }
+        if (prepared || (request.flags & SessionRecorder.FLAG_RESPONSE_NEEDED) == 0) {
+          // Loopback centrals only send plain Write Requests to descriptors.
+          return false;
+        }
+        central.writeDescriptor(descriptor, request.payload, mWaiter);
+        return true;
+      }
+      default:
+        return false;
+    }
+  }
+
+  private GattCharacteristic findCharacteristic(Request request) {
+    if (request.serviceUuid == null || request.characteristicUuid == null) {
+      return null;
+    }
+    GattService service = mTransport.getService(request.serviceUuid);
+    return service == null ? null : service.getCharacteristic(request.characteristicUuid);
+  }
+
+  private static boolean sameValue(byte[] value, byte[] original, boolean originalTruncated) {
+    if (value == null) {
+      value = new byte[0];
+    }
+    if (!originalTruncated) {
+      return Arrays.equals(value, original);
+    }
+    return value.length >= original.length
+        && Arrays.equals(Arrays.copyOf(value, original.length), original);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.zip.CRC32;
+
+/**
+ * Format of the packets of a throughput stream, so the receiving side can detect lost,
+ * reordered and corrupted packets.
+ *
+ * <pre>
+ *   sequence number (uint32, little-endian)
+ *   filler bytes ((sequence number + index) &amp; 0xFF)
+ *   CRC-32 of all the previous bytes (uint32, little-endian, same as zlib's crc32())
+ * </pre>
+ *
+ * Packets can be of any length from {@link #MIN_LENGTH}, e.g. ATT_MTU - 3 to fill a
+ * notification.
+ */
+public final class StreamPacket {
+
+  public static final int SEQUENCE_LENGTH = 4;
+  public static final int CHECKSUM_LENGTH = 4;
+  public static final int MIN_LENGTH = SEQUENCE_LENGTH + CHECKSUM_LENGTH;
+
+  private StreamPacket() {
+  }
+
+  /**
+   * @param length Length of the packet, at least {@link #MIN_LENGTH}.
+   */
+  public static byte[] create(int sequence, int length) {
+    if (length < MIN_LENGTH) {
+      throw new IllegalArgumentException("Packets are at least " + MIN_LENGTH + " bytes: "
+          + length);
+    }
+    byte[] packet = new byte[length];
+    writeUint32(packet, 0, sequence);
+    int checksumOffset = length - CHECKSUM_LENGTH;
+    for (int i = SEQUENCE_LENGTH; i < checksumOffset; i++) {
+      packet[i] = (byte) (sequence + i);
+    }
+    writeUint32(packet, checksumOffset, checksum(packet, checksumOffset));
+    return packet;
+  }
+
+  /**
+   * @return true if the packet is long enough and its checksum matches.
+   */
+  public static boolean isValid(byte[] packet) {
+    if (packet == null || packet.length < MIN_LENGTH) {
+      return false;
+    }
+    int checksumOffset = packet.length - CHECKSUM_LENGTH;
+    return readUint32(packet, checksumOffset) == checksum(packet, checksumOffset);
+  }
+
+  /**
+   * @return The sequence number of a packet at least {@link #SEQUENCE_LENGTH} bytes long.
+   */
+  public static int getSequence(byte[] packet) {
+    return readUint32(packet, 0);
+  }
+
+  private static int checksum(byte[] packet, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(packet, 0, length);
+    return (int) crc.getValue();
+  }
+
+  private static void writeUint32(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >> 8);
+    bytes[offset + 2] = (byte) (value >> 16);
+    bytes[offset + 3] = (byte) (value >> 24);
+  }
+
+  private static int readUint32(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+        | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+  }
+}
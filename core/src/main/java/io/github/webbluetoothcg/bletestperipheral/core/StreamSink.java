@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives the {@link StreamPacket}s centrals write to a characteristic and checks them, for
+ * write throughput measurements.
+ *
+ * While a sink runs, writes to its characteristic are consumed by the sink and never reach the
+ * service handler. Every packet is checked against its checksum, and per device its sequence
+ * number is compared with the ones seen before:
+ * <ul>
+ *   <li>a jump forward counts the skipped packets as lost,
+ *   <li>a skipped packet that shows up late is reordered and no longer counts as lost,
+ *   <li>a packet older than the first one of the sequence is reordered too, but was never
+ *   counted as lost,
+ *   <li>a packet seen before is a duplicate,
+ *   <li>a jump back further than the last {@link #HISTORY_LENGTH} packets is taken as the
+ *   central restarting its sequence, which starts over from there.
+ * </ul>
+ *
+ * Created with {@link GattPeripheral#startSink}. Packets are checked on the event loop; the
+ * statistics may be read from any thread.
+ */
+public class StreamSink {
+
+  // Number of sequence numbers behind the highest one that are remembered.
+  public static final int HISTORY_LENGTH = Long.SIZE;
+
+  /**
+   * Counters of a device, or of every device together.
+   */
+  public static class Stats {
+    long packets;
+    long bytes;
+    long corrupted;
+    long lost;
+    long duplicates;
+    long reordered;
+
+    /**
+     * @return Packets received with a valid checksum, duplicates included.
+     */
+    public long getPackets() {
+      return packets;
+    }
+
+    /**
+     * @return Bytes received, invalid packets included.
+     */
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return Packets that were too short or didn't match their checksum.
+     */
+    public long getCorrupted() {
+      return corrupted;
+    }
+
+    public long getLost() {
+      return lost;
+    }
+
+    public long getDuplicates() {
+      return duplicates;
+    }
+
+    public long getReordered() {
+      return reordered;
+    }
+
+    private void add(Stats other) {
+      packets += other.packets;
+      bytes += other.bytes;
+      corrupted += other.corrupted;
+      lost += other.lost;
+      duplicates += other.duplicates;
+      reordered += other.reordered;
+    }
+
+    private Stats copy() {
+      Stats copy = new Stats();
+      copy.add(this);
+      return copy;
+    }
+  }
+
+  private static class DeviceState {
+    final Stats stats = new Stats();
+    boolean started;
+    int highestSequence;
+    // Bit i is set if highestSequence - i was received.
+    long history;
+    // Bit i is set if highestSequence - i is older than the first packet of the sequence and
+    // hasn't been received, so it was never counted as lost.
+    long beforeStart;
+  }
+
+  private final GattPeripheral mPeripheral;
+  private final GattCharacteristic mCharacteristic;
+  private final long mStartTimeNanos = System.nanoTime();
+  // Guarded by this. Devices are kept after they disconnect so their counters stay visible.
+  private final LinkedHashMap<String, DeviceState> mDevices = new LinkedHashMap<>();
+
+  StreamSink(GattPeripheral peripheral, GattCharacteristic characteristic) {
+    mPeripheral = peripheral;
+    mCharacteristic = characteristic;
+  }
+
+  public GattCharacteristic getCharacteristic() {
+    return mCharacteristic;
+  }
+
+  /**
+   * Stops consuming the writes, which go to the service handler again.
+   */
+  public void stop() {
+    mPeripheral.stopSink(this);
+  }
+
+  public long getStartTimeNanos() {
+    return mStartTimeNanos;
+  }
+
+  /**
+   * @return Devices that wrote to the sink, in the order of their first write.
+   */
+  public synchronized List<String> getDevices() {
+    return new ArrayList<>(mDevices.keySet());
+  }
+
+  /**
+   * @return A snapshot of the counters of a device, all zero if it never wrote to the sink.
+   */
+  public synchronized Stats getStats(String device) {
+    DeviceState state = mDevices.get(device);
+    return state == null ? new Stats() : state.stats.copy();
+  }
+
+  /**
+   * @return A snapshot of the counters of every device added together.
+   */
+  public synchronized Stats getTotalStats() {
+    Stats total = new Stats();
+    for (Map.Entry<String, DeviceState> entry : mDevices.entrySet()) {
+      total.add(entry.getValue().stats);
+    }
+    return total;
+  }
+
+  /*
+   * Runs on the event loop.
+   */
+  synchronized void onPacketReceived(String device, byte[] value) {
+    DeviceState state = mDevices.get(device);
+    if (state == null) {
+      state = new DeviceState();
+      mDevices.put(device, state);
+    }
+    Stats stats = state.stats;
+    stats.bytes += value.length;
+    if (!StreamPacket.isValid(value)) {
+      stats.corrupted++;
+      return;
+    }
+    stats.packets++;
+    int sequence = StreamPacket.getSequence(value);
+    // Differences rather than comparisons so the sequence number can wrap around.
+    int ahead = sequence - state.highestSequence;
+    if (!state.started || ahead <= -HISTORY_LENGTH) {
+      state.started = true;
+      state.highestSequence = sequence;
+      state.history = 1;
+      state.beforeStart = ~1L;
+    } else if (ahead > 0) {
+      stats.lost += ahead - 1;
+      state.highestSequence = sequence;
+      state.history = ahead < HISTORY_LENGTH ? (state.history << ahead) | 1 : 1;
+      state.beforeStart = ahead < HISTORY_LENGTH ? state.beforeStart << ahead : 0;
+    } else {
+      long bit = 1L << -ahead;
+      if ((state.history & bit) != 0) {
+        stats.duplicates++;
+      } else {
+        stats.reordered++;
+        if ((state.beforeStart & bit) != 0) {
+          state.beforeStart &= ~bit;
+        } else {
+          stats.lost--;
+        }
+        state.history |= bit;
+      }
+    }
+  }
+}
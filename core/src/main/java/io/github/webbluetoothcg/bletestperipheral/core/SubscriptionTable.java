@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Client Characteristic Configuration of every connected device.
+ *
+ * The CCCD is per client (Core spec Vol 3, Part G, 3.3.3.3): one central enabling notifications
+ * must not enable them for the others, and each central must read back its own configuration.
+ */
+public class SubscriptionTable {
+
+  public static final int SUBSCRIPTION_NONE = 0;
+  public static final int SUBSCRIPTION_NOTIFY = 1;
+  public static final int SUBSCRIPTION_INDICATE = 2;
+
+  private final HashMap<String, IdentityHashMap<GattCharacteristic, Integer>>
+      mSubscriptions = new HashMap<>();
+  // Number of devices subscribed to each characteristic.
+  private final IdentityHashMap<GattCharacteristic, Integer> mSubscriberCounts =
+      new IdentityHashMap<>();
+
+  /**
+   * @param subscription One of {@link #SUBSCRIPTION_NONE}, {@link #SUBSCRIPTION_NOTIFY} or
+   * {@link #SUBSCRIPTION_INDICATE}.
+   */
+  public synchronized void setSubscription(String device,
+      GattCharacteristic characteristic, int subscription) {
+    IdentityHashMap<GattCharacteristic, Integer> subscriptions =
+        mSubscriptions.get(device);
+    if (subscriptions == null) {
+      if (subscription == SUBSCRIPTION_NONE) {
+        return;
+      }
+      subscriptions = new IdentityHashMap<>();
+      mSubscriptions.put(device, subscriptions);
+    }
+    Integer previous = subscription == SUBSCRIPTION_NONE
+        ? subscriptions.remove(characteristic)
+        : subscriptions.put(characteristic, subscription);
+    if (previous == null && subscription != SUBSCRIPTION_NONE) {
+      addSubscribers(characteristic, 1);
+    } else if (previous != null && subscription == SUBSCRIPTION_NONE) {
+      addSubscribers(characteristic, -1);
+    }
+  }
+
+  public synchronized int getSubscription(String device,
+      GattCharacteristic characteristic) {
+    IdentityHashMap<GattCharacteristic, Integer> subscriptions =
+        mSubscriptions.get(device);
+    if (subscriptions == null) {
+      return SUBSCRIPTION_NONE;
+    }
+    Integer subscription = subscriptions.get(characteristic);
+    return subscription == null ? SUBSCRIPTION_NONE : subscription;
+  }
+
+  /**
+   * @return The value of the CCC descriptor as seen by the device. The returned array is shared
+   * and must not be modified.
+   */
+  public byte[] getDescriptorValue(String device,
+      GattCharacteristic characteristic) {
+    switch (getSubscription(device, characteristic)) {
+      case SUBSCRIPTION_NOTIFY:
+        return GattDescriptor.ENABLE_NOTIFICATION_VALUE;
+      case SUBSCRIPTION_INDICATE:
+        return GattDescriptor.ENABLE_INDICATION_VALUE;
+      default:
+        return GattDescriptor.DISABLE_NOTIFICATION_VALUE;
+    }
+  }
+
+  public synchronized boolean hasSubscribers(GattCharacteristic characteristic) {
+    return mSubscriberCounts.containsKey(characteristic);
+  }
+
+  /**
+   * Forgets the configuration of a device that disconnected.
+   *
+   * @return Characteristics that no device is subscribed to anymore.
+   */
+  public synchronized List<GattCharacteristic> removeDevice(String device) {
+    List<GattCharacteristic> unsubscribed = new ArrayList<>();
+    IdentityHashMap<GattCharacteristic, Integer> subscriptions =
+        mSubscriptions.remove(device);
+    if (subscriptions != null) {
+      for (GattCharacteristic characteristic : subscriptions.keySet()) {
+        addSubscribers(characteristic, -1);
+        if (!mSubscriberCounts.containsKey(characteristic)) {
+          unsubscribed.add(characteristic);
+        }
+      }
+    }
+    return unsubscribed;
+  }
+
+  public synchronized void clear() {
+    mSubscriptions.clear();
+    mSubscriberCounts.clear();
+  }
+
+  private void addSubscribers(GattCharacteristic characteristic, int delta) {
+    Integer count = mSubscriberCounts.get(characteristic);
+    int newCount = (count == null ? 0 : count) + delta;
+    if (newCount > 0) {
+      mSubscriberCounts.put(characteristic, newCount);
+    } else {
+      mSubscriberCounts.remove(characteristic);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import java.util.Calendar;
+
+/**
+ * Encodes the value of the org.bluetooth.characteristic.temperature_measurement characteristic.
+ */
+public final class TemperatureMeasurement {
+
+  /*
+   * Flags:
+   *   Temperature Units Flag (0) -> Celsius
+   *   Time Stamp Flag (0) -> Time Stamp field not present
+   *   Temperature Type Flag (0) -> Temperature Type field not present
+   *   Unused (00000)
+   */
+  public static final int FLAGS_CELSIUS = 0b00000000;
+  public static final int FLAGS_TIME_STAMP_PRESENT = 0b00000010;
+
+  public static final int TEMPERATURE_OFFSET = 1;
+  // Flags (8bit) + Temperature Measurement Value (float) = 5 bytes
+  public static final int LENGTH = 5;
+  // + Time Stamp (org.bluetooth.characteristic.date_time, 7 bytes) = 12 bytes
+  public static final int LENGTH_WITH_TIME_STAMP = 12;
+
+  private TemperatureMeasurement() {
+  }
+
+  /**
+   * @param temperature Temperature in degrees Celsius.
+   * @return [flags, temperature measurement value (FLOAT, little-endian)]
+   */
+  public static byte[] encode(float temperature) {
+    byte[] value = new byte[LENGTH];
+    encode(temperature, value, /* offset */ 0);
+    return value;
+  }
+
+  /**
+   * Writes the measurement into a buffer, e.g. the current value of the characteristic, without
+   * allocating.
+   *
+   * @return The offset following the measurement.
+   */
+  public static int encode(float temperature, byte[] buffer, int offset) {
+    buffer[offset] = (byte) FLAGS_CELSIUS;
+    // The 7 digits of the mantissa round 36.6f, which is 36.59999847 in binary, back to the
+    // 36.6 that was typed.
+    return Ieee11073Float.writeFloat(Ieee11073Float.toFloat(temperature), buffer,
+        offset + TEMPERATURE_OFFSET);
+  }
+
+  /**
+   * @param timeStamp When the temperature was measured, in local time.
+   * @return [flags, temperature measurement value (FLOAT), year (LSB), year (MSB), month, day,
+   * hours, minutes, seconds]
+   */
+  public static byte[] encode(float temperature, Calendar timeStamp) {
+    byte[] value = new byte[LENGTH_WITH_TIME_STAMP];
+    int offset = encode(temperature, value, /* offset */ 0);
+    value[0] = (byte) (FLAGS_CELSIUS | FLAGS_TIME_STAMP_PRESENT);
+    int year = timeStamp.get(Calendar.YEAR);
+    value[offset++] = (byte) year;
+    value[offset++] = (byte) (year >> 8);
+    // Calendar months start at 0, Date Time months at 1.
+    value[offset++] = (byte) (timeStamp.get(Calendar.MONTH) + 1);
+    value[offset++] = (byte) timeStamp.get(Calendar.DAY_OF_MONTH);
+    value[offset++] = (byte) timeStamp.get(Calendar.HOUR_OF_DAY);
+    value[offset++] = (byte) timeStamp.get(Calendar.MINUTE);
+    value[offset] = (byte) timeStamp.get(Calendar.SECOND);
+    return value;
+  }
+}
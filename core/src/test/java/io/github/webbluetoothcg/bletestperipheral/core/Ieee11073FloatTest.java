@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.webbluetoothcg.bletestperipheral.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Ieee11073FloatTest {
+
+  private static final int[] FLOAT_MANTISSAS = {
+      0, 1, -1, 7, -7, 10, -10, 366, -366, 123456, -123456, 1000000, -1000000,
+      Ieee11073Float.FLOAT_MAX_MANTISSA, -Ieee11073Float.FLOAT_MAX_MANTISSA,
+  };
+
+  @Test
+  public void sfloat_everyBitPattern_roundTrips() {
+    for (int bits = 0; bits <= 0xFFFF; bits++) {
+      if (isSfloatSpecial(bits)) {
+        continue;
+      }
+      int mantissa = Ieee11073Float.getSfloatMantissa(bits);
+      int exponent = Ieee11073Float.getSfloatExponent(bits);
+      double value = Ieee11073Float.sfloatToDouble(bits);
+      String message = String.format("bits 0x%04X", bits);
+      assertEquals(message, mantissa * Math.pow(10, exponent), value, Math.ulp(value) * 2);
+      if (Math.abs(mantissa) > Ieee11073Float.SFLOAT_MAX_MANTISSA) {
+        // Mantissas the special values take at exponent 0 are out of range at every exponent.
+        assertEquals(message, Ieee11073Float.SFLOAT_NRES,
+            Ieee11073Float.toSfloat(value, exponent));
+        continue;
+      }
+      assertEquals(message, bits, Ieee11073Float.toSfloat(value, exponent));
+      assertEquals(message, value,
+          Ieee11073Float.sfloatToDouble(Ieee11073Float.toSfloat(value)), 0);
+    }
+  }
+
+  @Test
+  public void sfloat_shortestForm_hasNoTrailingZeros() {
+    int bits = Ieee11073Float.toSfloat(1200);
+    assertEquals(12, Ieee11073Float.getSfloatMantissa(bits));
+    assertEquals(2, Ieee11073Float.getSfloatExponent(bits));
+    bits = Ieee11073Float.toSfloat(36.6);
+    assertEquals(366, Ieee11073Float.getSfloatMantissa(bits));
+    assertEquals(-1, Ieee11073Float.getSfloatExponent(bits));
+  }
+
+  @Test
+  public void float_mantissasAcrossExponents_roundTrip() {
+    Random random = new Random(11073);
+    for (int exponent = Ieee11073Float.FLOAT_MIN_EXPONENT;
+        exponent <= Ieee11073Float.FLOAT_MAX_EXPONENT; exponent++) {
+      for (int mantissa : FLOAT_MANTISSAS) {
+        checkFloatRoundTrip(mantissa, exponent);
+      }
+      for (int i = 0; i < 64; i++) {
+        checkFloatRoundTrip(random.nextInt(2 * Ieee11073Float.FLOAT_MAX_MANTISSA + 1)
+            - Ieee11073Float.FLOAT_MAX_MANTISSA, exponent);
+      }
+    }
+  }
+
+  @Test
+  public void float_shortestForm_keepsSevenDigits() {
+    int bits = Ieee11073Float.toFloat(3.14159265);
+    assertEquals(3141593, Ieee11073Float.getFloatMantissa(bits));
+    assertEquals(-6, Ieee11073Float.getFloatExponent(bits));
+    bits = Ieee11073Float.toFloat(-0.001);
+    assertEquals(-1, Ieee11073Float.getFloatMantissa(bits));
+    assertEquals(-3, Ieee11073Float.getFloatExponent(bits));
+    // 9999999 doesn't fit in the mantissa: a digit is lost, and the carry of the rounding
+    // removed as a trailing zero.
+    bits = Ieee11073Float.toFloat(9999999);
+    assertEquals(1, Ieee11073Float.getFloatMantissa(bits));
+    assertEquals(7, Ieee11073Float.getFloatExponent(bits));
+  }
+
+  @Test
+  public void specialValues_encode() {
+    assertEquals(Ieee11073Float.FLOAT_NAN, Ieee11073Float.toFloat(Double.NaN));
+    assertEquals(Ieee11073Float.FLOAT_POSITIVE_INFINITY,
+        Ieee11073Float.toFloat(Double.POSITIVE_INFINITY));
+    assertEquals(Ieee11073Float.FLOAT_NEGATIVE_INFINITY,
+        Ieee11073Float.toFloat(Double.NEGATIVE_INFINITY));
+    assertEquals(Ieee11073Float.FLOAT_NAN, Ieee11073Float.toFloat(Double.NaN, -2));
+    assertEquals(Ieee11073Float.FLOAT_POSITIVE_INFINITY,
+        Ieee11073Float.toFloat(Double.POSITIVE_INFINITY, -2));
+    assertEquals(Ieee11073Float.SFLOAT_NAN, Ieee11073Float.toSfloat(Double.NaN));
+    assertEquals(Ieee11073Float.SFLOAT_POSITIVE_INFINITY,
+        Ieee11073Float.toSfloat(Double.POSITIVE_INFINITY));
+    assertEquals(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY,
+        Ieee11073Float.toSfloat(Double.NEGATIVE_INFINITY));
+    assertEquals(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY,
+        Ieee11073Float.toSfloat(Double.NEGATIVE_INFINITY, -1));
+  }
+
+  @Test
+  public void specialValues_decode() {
+    assertTrue(Double.isNaN(Ieee11073Float.floatToDouble(Ieee11073Float.FLOAT_NAN)));
+    assertTrue(Double.isNaN(Ieee11073Float.floatToDouble(Ieee11073Float.FLOAT_NRES)));
+    assertTrue(Double.isNaN(Ieee11073Float.floatToDouble(Ieee11073Float.FLOAT_RESERVED)));
+    assertEquals(Double.POSITIVE_INFINITY,
+        Ieee11073Float.floatToDouble(Ieee11073Float.FLOAT_POSITIVE_INFINITY), 0);
+    assertEquals(Double.NEGATIVE_INFINITY,
+        Ieee11073Float.floatToDouble(Ieee11073Float.FLOAT_NEGATIVE_INFINITY), 0);
+    assertTrue(Double.isNaN(Ieee11073Float.sfloatToDouble(Ieee11073Float.SFLOAT_NAN)));
+    assertTrue(Double.isNaN(Ieee11073Float.sfloatToDouble(Ieee11073Float.SFLOAT_NRES)));
+    assertTrue(Double.isNaN(Ieee11073Float.sfloatToDouble(Ieee11073Float.SFLOAT_RESERVED)));
+    assertEquals(Double.POSITIVE_INFINITY,
+        Ieee11073Float.sfloatToDouble(Ieee11073Float.SFLOAT_POSITIVE_INFINITY), 0);
+    assertEquals(Double.NEGATIVE_INFINITY,
+        Ieee11073Float.sfloatToDouble(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY), 0);
+  }
+
+  @Test
+  public void outOfRange_saturates() {
+    assertEquals(Ieee11073Float.SFLOAT_POSITIVE_INFINITY, Ieee11073Float.toSfloat(1e20));
+    assertEquals(Ieee11073Float.SFLOAT_NEGATIVE_INFINITY, Ieee11073Float.toSfloat(-1e20));
+    assertEquals(Ieee11073Float.FLOAT_POSITIVE_INFINITY, Ieee11073Float.toFloat(1e200));
+    assertEquals(0, Ieee11073Float.toSfloat(1e-20));
+    assertEquals(0, Ieee11073Float.toFloat(-1e-200));
+  }
+
+  @Test
+  public void ties_roundHalfAwayFromZero() {
+    assertEquals(sfloat(3, -1), Ieee11073Float.toSfloat(0.25, -1));
+    assertEquals(sfloat(-3, -1), Ieee11073Float.toSfloat(-0.25, -1));
+    assertEquals(sfloat(3, 0), Ieee11073Float.toSfloat(2.5, 0));
+    assertEquals(sfloat(-3, 0), Ieee11073Float.toSfloat(-2.5, 0));
+    assertEquals(sfloat(13, -2), Ieee11073Float.toSfloat(0.125, -2));
+    assertEquals(sfloat(-13, -2), Ieee11073Float.toSfloat(-0.125, -2));
+    assertEquals(sfloat(2, 1), Ieee11073Float.toSfloat(15, 1));
+    assertEquals(sfloat(-2, 1), Ieee11073Float.toSfloat(-15, 1));
+    assertEquals(floatBits(1, 0), Ieee11073Float.toFloat(0.5, 0));
+    assertEquals(floatBits(-1, 0), Ieee11073Float.toFloat(-0.5, 0));
+    assertEquals(floatBits(1000001, -6), Ieee11073Float.toFloat(1.0000005, -6));
+    // Below the tie stays below.
+    assertEquals(sfloat(2, -1), Ieee11073Float.toSfloat(0.249, -1));
+  }
+
+  @Test
+  public void fixedExponent_overflowIsNres() {
+    assertEquals(sfloat(Ieee11073Float.SFLOAT_MAX_MANTISSA, -1),
+        Ieee11073Float.toSfloat(204.5, -1));
+    assertEquals(Ieee11073Float.SFLOAT_NRES, Ieee11073Float.toSfloat(204.6, -1));
+    assertEquals(Ieee11073Float.SFLOAT_NRES, Ieee11073Float.toSfloat(-204.6, -1));
+    assertEquals(Ieee11073Float.SFLOAT_NRES, Ieee11073Float.toSfloat(1e11, 7));
+    assertEquals(floatBits(Ieee11073Float.FLOAT_MAX_MANTISSA, -1),
+        Ieee11073Float.toFloat(838860.5, -1));
+    assertEquals(Ieee11073Float.FLOAT_NRES, Ieee11073Float.toFloat(838860.6, -1));
+    assertEquals(Ieee11073Float.FLOAT_NRES, Ieee11073Float.toFloat(-1e140, 127));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void fixedExponent_outOfRange_throws() {
+    Ieee11073Float.toSfloat(1, Ieee11073Float.SFLOAT_MAX_EXPONENT + 1);
+  }
+
+  @Test
+  public void writeAndRead_littleEndian() {
+    byte[] buffer = new byte[7];
+    int bits = floatBits(-123456, -3);
+    assertEquals(5, Ieee11073Float.writeFloat(bits, buffer, 1));
+    assertEquals(bits, Ieee11073Float.readFloat(buffer, 1));
+    assertEquals((byte) 0xC0, buffer[1]);
+    assertEquals((byte) 0xFD, buffer[4]);
+    int sfloatBits = sfloat(-366, -1);
+    assertEquals(7, Ieee11073Float.writeSfloat(sfloatBits, buffer, 5));
+    assertEquals(sfloatBits, Ieee11073Float.readSfloat(buffer, 5));
+    assertEquals((byte) 0x92, buffer[5]);
+    assertEquals((byte) 0xFE, buffer[6]);
+  }
+
+  private static void checkFloatRoundTrip(int mantissa, int exponent) {
+    int bits = floatBits(mantissa, exponent);
+    String message = String.format("%d * 10^%d", mantissa, exponent);
+    assertEquals(message, mantissa, Ieee11073Float.getFloatMantissa(bits));
+    assertEquals(message, exponent, Ieee11073Float.getFloatExponent(bits));
+    double value = Ieee11073Float.floatToDouble(bits);
+    assertEquals(message, bits, Ieee11073Float.toFloat(value, exponent));
+    assertEquals(message, value,
+        Ieee11073Float.floatToDouble(Ieee11073Float.toFloat(value)), 0);
+  }
+
+  private static boolean isSfloatSpecial(int bits) {
+    return bits == Ieee11073Float.SFLOAT_NAN || bits == Ieee11073Float.SFLOAT_NRES
+        || bits == Ieee11073Float.SFLOAT_RESERVED
+        || bits == Ieee11073Float.SFLOAT_POSITIVE_INFINITY
+        || bits == Ieee11073Float.SFLOAT_NEGATIVE_INFINITY;
+  }
+
+  private static int sfloat(int mantissa, int exponent) {
+    return (exponent & 0xF) << 12 | (mantissa & 0xFFF);
+  }
+
+  private static int floatBits(int mantissa, int exponent) {
+    return (exponent & 0xFF) << 24 | (mantissa & 0xFFFFFF);
+  }
+}